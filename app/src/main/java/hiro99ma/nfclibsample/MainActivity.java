@@ -8,12 +8,19 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.blogpost.hiro99ma.pcd.CardId;
 import com.blogpost.hiro99ma.pcd.NfcF;
 import com.blogpost.hiro99ma.pcd.NfcPcd;
+import com.blogpost.hiro99ma.pcd.PcdPoller;
+import com.blogpost.hiro99ma.pcd.PcdSession;
+import com.blogpost.hiro99ma.pcd.PcdWorker;
 
 public class MainActivity extends Activity implements com.blogpost.hiro99ma.pcd.UsbHost.UsbListener {
     private TextView mResultText = null;
     private com.blogpost.hiro99ma.pcd.UsbHost mUsbHost = null;
+    private PcdWorker mWorker = null;
+    /// ワーカースレッドからだけ使う
+    private PcdPoller mPoller = null;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -23,6 +30,8 @@ public class MainActivity extends Activity implements com.blogpost.hiro99ma.pcd.
         mUsbHost = new com.blogpost.hiro99ma.pcd.UsbHost();
         boolean ret = mUsbHost.onCreate(this);
         if(ret) {
+            mWorker = new PcdWorker();
+            mWorker.start();
             Button btn = (Button)findViewById(R.id.button_read);
             btn.setOnClickListener(mReadListener);
             mResultText = (TextView)findViewById(R.id.text_result);
@@ -31,6 +40,9 @@ public class MainActivity extends Activity implements com.blogpost.hiro99ma.pcd.
 
     @Override
     public void onDestroy() {
+        if(mWorker != null) {
+            mWorker.shutdown();
+        }
         mUsbHost.onDestroy(this);
         super.onDestroy();
     }
@@ -48,36 +60,54 @@ public class MainActivity extends Activity implements com.blogpost.hiro99ma.pcd.
 
     private OnClickListener mReadListener = new OnClickListener() {
         public void onClick(View v) {
-            final NfcPcd.NfcId nfcid = NfcPcd.getNfcId();
+            //USBアクセスはワーカースレッドで行い、結果だけUIスレッドで表示する
+            mWorker.submit(mPollingJob, new PcdWorker.Callback<String>() {
+                @Override
+                public void completed(final String result) {
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            mResultText.setText(result);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            mResultText.setText("fail.");
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    private PcdWorker.Job<String> mPollingJob = new PcdWorker.Job<String>() {
+        public String run(PcdSession s) {
+            if(mPoller == null) {
+                mPoller = new PcdPoller(s,
+                        PcdPoller.Target.nfcF(NfcF.SYSCODE),
+                        PcdPoller.Target.nfcF(),
+                        PcdPoller.Target.nfcA());
+            }
 
             StringBuffer sb = null;
             String title = "polling";
             String sub = "";
-            boolean ret = NfcPcd.pollingF(NfcF.SYSCODE);
-            boolean ret2 = false;
-            if(!ret) {
-                ret2 = NfcPcd.pollingF();
-            }
-            if(ret || ret2) {
-                ret = true;
-                sub = "(System Code:" + String.format("%04x", nfcid.SensRes & 0xffff) + ")";
-            } else {
-                ret = NfcPcd.pollingA();
-            }
-            if(ret) {
-                //NfcIdは1つしかないので、ちょっと格好が悪いな
-                title = nfcid.Label;
-                byte len = nfcid.Length;
-                sb = new StringBuffer(len * 2);
-                sb.append(String.format("%02x", nfcid.Id[0] & 0xff));
-                for(byte i=1; i<len; i++) {
-                    sb.append("-" + String.format("%02x", nfcid.Id[i] & 0xff));
+            PcdPoller.Result res = mPoller.poll();
+            if(res != null) {
+                final CardId id = res.getCardId();
+                if(res.getTech() == PcdPoller.Tech.NFC_F) {
+                    sub = "(System Code:" + String.format("%04x", id.getSensRes() & 0xffff) + ")";
                 }
+                title = id.getLabel();
+                sb = new StringBuffer(id.toHexString());
             } else {
                 sb = new StringBuffer("fail.");
             }
-            mResultText.setText(title + " : "+ sb + sub);
-            NfcPcd.rfOff();
+            NfcPcd.rfOff(s);
+            return title + " : "+ sb + sub;
         }
     };
 }
@@ -0,0 +1,89 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		BitRateMemory
+ * @brief		FeliCa Pollingで最初に試す通信速度
+ *
+ * Pollingの時点ではまだIDmが分からないので、要求したシステムコード(=カードの種類)ごとに覚える。
+ * 424kbpsで失敗して212kbpsで捕捉できた場合だけ「212kbpsから試す」を覚え、それ以外は424kbpsから試す。
+ *
+ * 212kbpsで捕捉できても424kbps対応かは分からないため、#PROBE_INTERVAL回に1回は424kbpsから試す。
+ * リクエストコード0x02(通信性能)の応答があれば、それで確定する。
+ */
+final class BitRateMemory {
+
+	///////////////////////////
+	// fields
+	///////////////////////////
+
+	/// 覚えるシステムコード数
+	private static final int SLOTS = 8;
+	/// 212kbpsを覚えていても、この回数に1回は424kbpsから試す
+	static final int PROBE_INTERVAL = 16;
+
+	private final int[] mKey = new int[SLOTS];
+	private final int[] mCount = new int[SLOTS];
+	/// 次に置き換える位置
+	private int mNext = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	BitRateMemory() {
+		clear();
+	}
+
+	private int find(int key) {
+		for(int i=0; i<SLOTS; i++) {
+			if(mKey[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 最初に試す通信速度
+	 *
+	 * @param[in]	key		システムコード
+	 * @return		NfcPcd#BR_424K / NfcPcd#BR_212K
+	 */
+	byte first(int key) {
+		final int i = find(key);
+		if(i < 0) {
+			return NfcPcd.BR_424K;
+		}
+		return (++mCount[i] % PROBE_INTERVAL == 0) ? NfcPcd.BR_424K : NfcPcd.BR_212K;
+	}
+
+	/**
+	 * 捕捉できた通信速度
+	 *
+	 * @param[in]	key		システムコード
+	 * @param[in]	br		NfcPcd#BR_424K / NfcPcd#BR_212K
+	 */
+	void learned(int key, byte br) {
+		int i = find(key);
+		if(br != NfcPcd.BR_212K) {
+			if(i >= 0) {
+				mKey[i] = -1;
+			}
+			return;
+		}
+		if(i < 0) {
+			i = mNext;
+			mNext = (mNext + 1) % SLOTS;
+			mKey[i] = key;
+		}
+		mCount[i] = 0;
+	}
+
+	void clear() {
+		for(int i=0; i<SLOTS; i++) {
+			mKey[i] = -1;
+			mCount[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		BlockCache
+ * @brief		FeliCaブロックのキャッシュ
+ *
+ * 捕捉中のカード(IDm)について、読み書きしたブロックを(サービス番号, ブロック番号)で覚えておき、
+ * 同じブロックを読むときはカードと通信しない。
+ * RO/RWのサービスコードは同じサービス番号なので、同じ領域として扱う。
+ *
+ * 初期状態は無効。PcdSession#getBlockCache()で取得して#setEnabled()で有効にする。
+ * Polling、rfOff()、IDmが違うカードへのアクセスで全て破棄する。
+ *
+ * どのブロックを覚えてよいかはNfcFが決める(MACのように読むたびに変わるブロックは覚えない)。
+ */
+public final class BlockCache {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	/// 覚えるブロック数
+	private static final int ENTRIES = 64;
+
+	private boolean mEnabled = false;
+
+	/// 覚えているカードのIDm
+	private long mIdm = 0;
+	/// (サービス番号 << 16) | ブロック番号 (-1:空き)
+	private final long[] mKey = new long[ENTRIES];
+	private final byte[] mData = new byte[ENTRIES * NfcPcd.SIZE_BLOCK];
+	/// 次に置き換える位置
+	private int mNext = 0;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	BlockCache() {
+		clear();
+	}
+
+	/**
+	 * 有効/無効
+	 *
+	 * 無効にすると覚えていた内容も破棄する。
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		clear();
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * 全て破棄する
+	 */
+	public void clear() {
+		for(int i=0; i<ENTRIES; i++) {
+			mKey[i] = -1;
+		}
+		mNext = 0;
+	}
+
+	/**
+	 * 1ブロック破棄する
+	 *
+	 * カードに書き込めたかを読んで確かめる前などに使う。
+	 *
+	 * @param[in]	svCode		サービスコード
+	 * @param[in]	blockNo		ブロック番号
+	 */
+	public void invalidate(int svCode, int blockNo) {
+		final int i = find(key(svCode, blockNo));
+		if(i >= 0) {
+			mKey[i] = -1;
+		}
+	}
+
+	/**
+	 * サービスのブロックを全て破棄する
+	 */
+	void invalidateService(int svCode) {
+		final long sv = key(svCode, 0) >> 16;
+		for(int i=0; i<ENTRIES; i++) {
+			if((mKey[i] >= 0) && ((mKey[i] >> 16) == sv)) {
+				mKey[i] = -1;
+			}
+		}
+	}
+
+	/**
+	 * キャッシュから読んだブロック数
+	 */
+	public long getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * カードから読んだブロック数
+	 */
+	public long getMissCount() {
+		return mMisses;
+	}
+
+	public void resetCount() {
+		mHits = 0;
+		mMisses = 0;
+	}
+
+	private static long key(int svCode, int blockNo) {
+		return ((long)((svCode & 0xffff) >> 6) << 16) | (blockNo & 0xffff);
+	}
+
+	private static long idm(NfcPcd.NfcId id) {
+		long v = 0;
+		for(int i=0; i<NfcPcd.SIZE_NFCID2; i++) {
+			v = (v << 8) | (id.Id[i] & 0xff);
+		}
+		return v;
+	}
+
+	/**
+	 * 別のカードなら破棄する
+	 */
+	private void checkCard(NfcPcd.NfcId id) {
+		final long v = idm(id);
+		if(v != mIdm) {
+			clear();
+			mIdm = v;
+		}
+	}
+
+	private int find(long key) {
+		for(int i=0; i<ENTRIES; i++) {
+			if(mKey[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 読む
+	 *
+	 * @param[in]	id			捕捉中のカード
+	 * @param[out]	buf			読んだデータ
+	 * @param[in]	offset		bufの書込み位置
+	 * @return		false		覚えていない
+	 */
+	boolean get(NfcPcd.NfcId id, int svCode, int blockNo, byte[] buf, int offset) {
+		checkCard(id);
+		final int i = find(key(svCode, blockNo));
+		if(i < 0) {
+			return false;
+		}
+		System.arraycopy(mData, i * NfcPcd.SIZE_BLOCK, buf, offset, NfcPcd.SIZE_BLOCK);
+		return true;
+	}
+
+	/**
+	 * 覚える(カードから読んだ/カードに書いたデータ)
+	 *
+	 * @param[in]	id			捕捉中のカード
+	 * @param[in]	buf			データ
+	 * @param[in]	offset		bufの読込み位置
+	 */
+	void put(NfcPcd.NfcId id, int svCode, int blockNo, byte[] buf, int offset) {
+		checkCard(id);
+		final long key = key(svCode, blockNo);
+		int i = find(key);
+		if(i < 0) {
+			i = mNext;
+			mNext = (mNext + 1) % ENTRIES;
+			mKey[i] = key;
+		}
+		System.arraycopy(buf, offset, mData, i * NfcPcd.SIZE_BLOCK, NfcPcd.SIZE_BLOCK);
+	}
+
+	void hit(int num) {
+		mHits += num;
+	}
+
+	void miss(int num) {
+		mMisses += num;
+	}
+}
@@ -0,0 +1,198 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		CardId
+ * @brief		捕捉したカードのID(変更不可)
+ *
+ * NfcPcd.NfcIdはセッションが持つ1つを使い回すので、次のPollingやrfOff()で書き換わる。
+ * こちらは捕捉した時点の値を保持し、後から変わらないので、別スレッドに渡したり、
+ * HashMapのキーにしたりできる。
+ *
+ * IDはlong 2つに詰めて持つ(先頭8byte + 残り)。
+ * IDm(8byte)、UID(4/7/10byte)、NFCID0(4byte)のどれでも配列を持たずに比較できる。
+ *
+ * 同じカードを捕捉し続けている間は、PcdSession#getCardId()が同じインスタンスを返す。
+ */
+public final class CardId {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final NfcPcd.NfcIdType mType;
+	private final int mLength;
+	/// ID 0～7byte目(ビッグエンディアン、足りない分は0)
+	private final long mId0;
+	/// ID 8byte目以降(ビッグエンディアン、足りない分は0)
+	private final long mId1;
+	/// PMm(FeliCaのみ)
+	private final long mPMm;
+	private final short mSensRes;
+	private final byte mSelRes;
+	private final String mLabel;
+
+	/// toHexString()の結果(初回に作る)
+	private String mHex = null;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	id		捕捉したNFC ID
+	 */
+	CardId(NfcPcd.NfcId id) {
+		mType = id.Type;
+		mLength = (id.Length > 0) ? id.Length : 0;
+		mId0 = pack(id.Id, 0, mLength);
+		mId1 = pack(id.Id, 8, mLength - 8);
+		mPMm = (id.Type == NfcPcd.NfcIdType.NFCID2) ? pack(id.PMm, 0, NfcPcd.SIZE_PMM) : 0;
+		mSensRes = id.SensRes;
+		mSelRes = id.SelRes;
+		mLabel = id.Label;
+	}
+
+	private static long pack(byte[] buf, int offset, int len) {
+		long v = 0;
+		for(int i=0; i<8; i++) {
+			v <<= 8;
+			if(i < len) {
+				v |= buf[offset + i] & 0xff;
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * NFC IDと同じ値か(メモリを確保せずに比べる)
+	 */
+	boolean matches(NfcPcd.NfcId id) {
+		final int len = (id.Length > 0) ? id.Length : 0;
+		return (mType == id.Type) && (mLength == len)
+				&& (mId0 == pack(id.Id, 0, len)) && (mId1 == pack(id.Id, 8, len - 8))
+				&& (mSensRes == id.SensRes) && (mSelRes == id.SelRes)
+				&& ((mType != NfcPcd.NfcIdType.NFCID2) || (mPMm == pack(id.PMm, 0, NfcPcd.SIZE_PMM)));
+	}
+
+	public NfcPcd.NfcIdType getType() {
+		return mType;
+	}
+
+	/**
+	 * IDの長さ[byte]
+	 */
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * IDの先頭8byte
+	 *
+	 * IDmならそのまま、8byteより短いIDは下位を0で埋めた値。
+	 */
+	public long getHigh() {
+		return mId0;
+	}
+
+	/**
+	 * IDの8byte目以降(8byte以下のIDなら0)
+	 */
+	public long getLow() {
+		return mId1;
+	}
+
+	/**
+	 * PMm(FeliCa以外は0)
+	 */
+	public long getPMm() {
+		return mPMm;
+	}
+
+	/**
+	 * SENS_RES(NFC-A)、システムコード(NFC-F)
+	 */
+	public short getSensRes() {
+		return mSensRes;
+	}
+
+	public byte getSelRes() {
+		return mSelRes;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	/**
+	 * IDのbyte配列
+	 *
+	 * @return		新しく作った配列
+	 */
+	public byte[] getBytes() {
+		byte[] buf = new byte[mLength];
+		copyTo(buf, 0);
+		return buf;
+	}
+
+	/**
+	 * IDをbyte配列に書き込む
+	 *
+	 * @param[out]	buf		書込み先(#length()以上空いていること)
+	 * @param[in]	offset	書込み開始位置
+	 */
+	public void copyTo(byte[] buf, int offset) {
+		for(int i=0; i<mLength; i++) {
+			final long v = (i < 8) ? mId0 : mId1;
+			buf[offset + i] = (byte)(v >>> (56 - (i % 8) * 8));
+		}
+	}
+
+	/**
+	 * IDの16進文字列(区切りなし、小文字)
+	 */
+	public String toHexString() {
+		String hex = mHex;
+		if(hex == null) {
+			char[] str = new char[mLength * 2];
+			for(int i=0; i<mLength; i++) {
+				final long v = (i < 8) ? mId0 : mId1;
+				final int b = (int)(v >>> (56 - (i % 8) * 8)) & 0xff;
+				str[i * 2] = HEX[b >> 4];
+				str[i * 2 + 1] = HEX[b & 0x0f];
+			}
+			hex = new String(str);
+			mHex = hex;
+		}
+		return hex;
+	}
+
+	/**
+	 * 同じカードか(種類とIDで比べる)
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if(o == this) {
+			return true;
+		}
+		if(!(o instanceof CardId)) {
+			return false;
+		}
+		final CardId id = (CardId)o;
+		return (mType == id.mType) && (mLength == id.mLength)
+				&& (mId0 == id.mId0) && (mId1 == id.mId1);
+	}
+
+	@Override
+	public int hashCode() {
+		final long h = mId0 * 31 + mId1;
+		return (int)(h ^ (h >>> 32)) * 31 + mLength;
+	}
+
+	@Override
+	public String toString() {
+		return mType + ":" + toHexString();
+	}
+}
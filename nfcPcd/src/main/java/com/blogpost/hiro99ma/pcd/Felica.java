@@ -51,6 +51,7 @@ public class Felica extends NfcF {
 	/**
 	 * [FeliCa]PUSHコマンド
 	 *
+	 * @param[in]	s			セッション
 	 * @param[in]	data		PUSHデータ
 	 * @param[in]	dataLen		dataの長さ
 	 *
@@ -59,27 +60,29 @@ public class Felica extends NfcF {
 	 *
 	 * @attention	- dataはそのまま送信するため、上位層で加工しておくこと。
 	 */
-	public static boolean push(byte[] data, int dataLen) {
+	public static boolean push(PcdSession s, byte[] data, int dataLen) {
 		boolean ret;
 		byte[] responseLen = new byte[1];
-		final NfcPcd.NfcId id = NfcPcd.getNfcId();
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+		final byte[] res = s.resBuf;
 
 		if (dataLen > 224) {
 			Log.e(TAG, "bad len");
 			return false;
 		}
 
-		s_CommandBuf[0] = (byte)0xb0;			//PUSH
-		NfcPcd.MemCpy(s_CommandBuf, id.Id, id.Length, 1, 0);
-		s_CommandBuf[9] = (byte)dataLen;
-		NfcPcd.MemCpy(s_CommandBuf, data, dataLen, 10, 0);
+		cmd[0] = (byte)0xb0;			//PUSH
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		cmd[9] = (byte)dataLen;
+		NfcPcd.MemCpy(cmd, data, dataLen, 10, 0);
 
 		// xx:IDm
 		// [cmd]b0 xx xx xx xx xx xx xx xx len (push data...)
-		ret = NfcPcd.communicateThruEx(kPUSH_TIMEOUT, s_CommandBuf, 10 + dataLen, s_ResponseBuf, responseLen);
-		if (!ret || (responseLen[0] != 10) || (s_ResponseBuf[0] != s_CommandBuf[0]+1) ||
-		  !NfcPcd.MemCmp(s_ResponseBuf, id.Id, id.Length, 1, 0) ||
-		  (s_ResponseBuf[9] != dataLen)) {
+		ret = NfcPcd.communicateThruEx(s, kPUSH_TIMEOUT, cmd, 10 + dataLen, res, responseLen);
+		if (!ret || (responseLen[0] != 10) || (res[0] != cmd[0]+1) ||
+		  !NfcPcd.MemCmp(res, id.Id, id.Length, 1, 0) ||
+		  (res[9] != dataLen)) {
 
 			Log.e(TAG, "push1 : ret=" + ret);
 			return false;
@@ -87,14 +90,14 @@ public class Felica extends NfcF {
 
 		// xx:IDm
 		// [cmd]a4 xx xx xx xx xx xx xx xx 00
-		s_CommandBuf[0] = (byte)0xa4;			//inactivate? activate2?
-		NfcPcd.MemCpy(s_CommandBuf, id.Id, id.Length, 1, 0);
-		s_CommandBuf[9] = 0x00;
+		cmd[0] = (byte)0xa4;			//inactivate? activate2?
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		cmd[9] = 0x00;
 
-		ret = NfcPcd.communicateThruEx(s_CommandBuf, 10, s_ResponseBuf, responseLen);
-		if (!ret || (responseLen[0] != 10) || (s_ResponseBuf[0] != s_CommandBuf[0]+1) ||
-		  !NfcPcd.MemCmp(s_ResponseBuf, id.Id, id.Length, 1, 0) ||
-		  (s_ResponseBuf[9] != 0x00)) {
+		ret = NfcPcd.communicateThruEx(s, cmd, 10, res, responseLen);
+		if (!ret || (responseLen[0] != 10) || (res[0] != cmd[0]+1) ||
+		  !NfcPcd.MemCmp(res, id.Id, id.Length, 1, 0) ||
+		  (res[9] != 0x00)) {
 
 			Log.e(TAG, "push2 : ret=" + ret);
 			return false;
@@ -103,7 +106,11 @@ public class Felica extends NfcF {
 		return true;
 	}
 
-	public static boolean pushUrl(String str) {
+	public static boolean push(byte[] data, int dataLen) {
+		return push(NfcPcd.getSession(), data, dataLen);
+	}
+
+	public static boolean pushUrl(PcdSession s, String str) {
 		boolean ret = false;
 		byte[] data = null;
 		int data_len = 0;
@@ -154,8 +161,12 @@ public class Felica extends NfcF {
 		cnt++;
 
 		data_len = cnt;
-		ret = push(data, data_len);
+		ret = push(s, data, data_len);
 
 		return ret;
 	}
+
+	public static boolean pushUrl(String str) {
+		return pushUrl(NfcPcd.getSession(), str);
+	}
 }
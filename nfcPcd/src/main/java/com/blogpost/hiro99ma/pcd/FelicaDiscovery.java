@@ -0,0 +1,404 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * @class		FelicaDiscovery
+ * @brief		FeliCaカードの構成(システム/サービス)の調査
+ *
+ * Request System CodeとSearch Service Codeでカードにあるシステムとサービスを調べる。
+ * 同じ機種(PMmが同じ)のカードは同じ構成なので、結果をPMmごとに覚えておき、
+ * 2枚目からは通信せずに返す。覚えた内容は#save()でファイルに残せる。
+ *
+ * FeliCa LiteはSearch Service Codeに対応していないので、決まった構成を返す。
+ *
+ * @code
+ * FelicaDiscovery disc = new FelicaDiscovery();
+ * disc.load(file);
+ * if(NfcPcd.pollingF(s)) {
+ *     FelicaDiscovery.Layout layout = disc.discover(s);
+ *     ...
+ * }
+ * disc.save(file);
+ * @endcode
+ *
+ * @attention	同じPMmで構成が違うカード(発行後にサービスを追加したものなど)は区別できない。
+ */
+public final class FelicaDiscovery {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final String TAG = "FelicaDiscovery";
+
+	/// ファイル識別子
+	private static final int MAGIC = 0x46444c31;		//"FDL1"
+	/// Search Service Codeで調べる最大数
+	private static final int MAX_SEARCH = 512;
+
+	/// PMmのICコード
+	private static final byte IC_LITE = (byte)0xf0;
+	private static final byte IC_LITE_S = (byte)0xf1;
+	/// FeliCa Liteの構成
+	private static final Layout LITE_LAYOUT = new Layout(
+			new int[] { NfcF.SysCode.Lite.val() },
+			new int[][] { { NfcF.SVCODE_RW, NfcF.SVCODE_RO } });
+
+	/// key : PMm
+	private final Map<Long, Layout> mLayouts = new HashMap<Long, Layout>();
+
+	/// mLayoutsで守る
+	private long mHits = 0;
+	private long mMisses = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	public FelicaDiscovery() {
+	}
+
+	/**
+	 * 捕捉中のカードの構成
+	 *
+	 * 同じPMmのカードを調べたことがあれば、通信せずに返す。
+	 * 調べる場合はシステムごとにPollingし直し、最後に元のシステムをPollingする。
+	 *
+	 * @param[in]	s			セッション(FeliCaを捕捉していること)
+	 * @return		構成(失敗時はnull)
+	 */
+	public Layout discover(PcdSession s) {
+		final NfcPcd.NfcId id = s.nfcId;
+		if(id.Type != NfcPcd.NfcIdType.NFCID2) {
+			Log.e(TAG, "discover : not FeliCa");
+			return null;
+		}
+		if((id.PMm[1] == IC_LITE) || (id.PMm[1] == IC_LITE_S)) {
+			return LITE_LAYOUT;
+		}
+
+		final Long key = Long.valueOf(pmm(id));
+		synchronized(mLayouts) {
+			final Layout layout = mLayouts.get(key);
+			if(layout != null) {
+				mHits++;
+				return layout;
+			}
+			mMisses++;
+		}
+
+		final Layout layout = search(s);
+		if(layout != null) {
+			synchronized(mLayouts) {
+				mLayouts.put(key, layout);
+			}
+		}
+		return layout;
+	}
+
+	public Layout discover() {
+		return discover(NfcPcd.getSession());
+	}
+
+	private static long pmm(NfcPcd.NfcId id) {
+		long v = 0;
+		for(int i=0; i<NfcPcd.SIZE_PMM; i++) {
+			v = (v << 8) | (id.PMm[i] & 0xff);
+		}
+		return v;
+	}
+
+	/**
+	 * カードと通信して調べる
+	 */
+	private static Layout search(PcdSession s) {
+		final NfcF f = NfcF.getInstance();
+		final int polled = s.nfcId.SensRes & 0xffff;
+
+		int[] sys = new int[16];
+		int sysNum = f.requestSystemCode(s, sys);
+		if(sysNum < 0) {
+			return null;
+		}
+		sysNum = Math.min(sysNum, sys.length);
+
+		int[][] svc = new int[sysNum][];
+		boolean repoll = false;
+		for(int i=0; i<sysNum; i++) {
+			if(sys[i] != polled) {
+				//システムごとにIDmが違うので、そのシステムで捕捉し直す
+				if(!NfcPcd.pollingF(s, sys[i])) {
+					Log.e(TAG, "search : polling " + Integer.toHexString(sys[i]));
+					return null;
+				}
+				repoll = true;
+			}
+			svc[i] = searchServices(s, f);
+			if(svc[i] == null) {
+				return null;
+			}
+		}
+		if(repoll && !NfcPcd.pollingF(s, polled)) {
+			Log.e(TAG, "search : polling " + Integer.toHexString(polled));
+			return null;
+		}
+
+		int[] sysCodes = new int[sysNum];
+		System.arraycopy(sys, 0, sysCodes, 0, sysNum);
+		return new Layout(sysCodes, svc);
+	}
+
+	/**
+	 * 捕捉中のシステムのサービスコード(エリアは除く)
+	 */
+	private static int[] searchServices(PcdSession s, NfcF f) {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		final int[] end = new int[1];
+		for(int i=0; i<MAX_SEARCH; i++) {
+			final int code = f.searchServiceCode(s, i, end);
+			if(code < 0) {
+				return null;
+			}
+			if(code == 0xffff) {
+				break;
+			}
+			if(end[0] < 0) {
+				list.add(code);
+			}
+		}
+		int[] svc = new int[list.size()];
+		for(int i=0; i<svc.length; i++) {
+			svc[i] = list.get(i);
+		}
+		return svc;
+	}
+
+	/**
+	 * 覚えている機種の数
+	 */
+	public int size() {
+		synchronized(mLayouts) {
+			return mLayouts.size();
+		}
+	}
+
+	/**
+	 * 覚えた構成を使った回数
+	 */
+	public long getHitCount() {
+		synchronized(mLayouts) {
+			return mHits;
+		}
+	}
+
+	/**
+	 * カードと通信して調べた回数
+	 */
+	public long getMissCount() {
+		synchronized(mLayouts) {
+			return mMisses;
+		}
+	}
+
+	/**
+	 * 覚えた構成を全て忘れる
+	 */
+	public void clear() {
+		synchronized(mLayouts) {
+			mLayouts.clear();
+		}
+	}
+
+	/**
+	 * 覚えた構成を保存する
+	 *
+	 * 形式 : MAGIC(4) 機種数(2) { PMm(8) システム数(1) { システムコード(2) サービス数(2) サービスコード(2)... }... }...
+	 */
+	public void save(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		synchronized(mLayouts) {
+			dos.writeInt(MAGIC);
+			dos.writeShort(mLayouts.size());
+			for(Map.Entry<Long, Layout> e : mLayouts.entrySet()) {
+				final Layout layout = e.getValue();
+				dos.writeLong(e.getKey());
+				dos.writeByte(layout.mSysCode.length);
+				for(int i=0; i<layout.mSysCode.length; i++) {
+					dos.writeShort(layout.mSysCode[i]);
+					dos.writeShort(layout.mSvCode[i].length);
+					for(int svc : layout.mSvCode[i]) {
+						dos.writeShort(svc);
+					}
+				}
+			}
+		}
+		dos.flush();
+	}
+
+	public boolean save(File file) {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(file);
+			save(fos);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "save : " + e);
+			return false;
+		} finally {
+			if(fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 保存した構成を読み込む(覚えている構成に追加する)
+	 */
+	public void load(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+		if(dis.readInt() != MAGIC) {
+			throw new IOException("bad magic");
+		}
+		final int num = dis.readUnsignedShort();
+		HashMap<Long, Layout> map = new HashMap<Long, Layout>();
+		for(int n=0; n<num; n++) {
+			final long key = dis.readLong();
+			final int sysNum = dis.readUnsignedByte();
+			int[] sys = new int[sysNum];
+			int[][] svc = new int[sysNum][];
+			for(int i=0; i<sysNum; i++) {
+				sys[i] = dis.readUnsignedShort();
+				svc[i] = new int[dis.readUnsignedShort()];
+				for(int j=0; j<svc[i].length; j++) {
+					svc[i][j] = dis.readUnsignedShort();
+				}
+			}
+			map.put(key, new Layout(sys, svc));
+		}
+		synchronized(mLayouts) {
+			mLayouts.putAll(map);
+		}
+	}
+
+	public boolean load(File file) {
+		if(!file.exists()) {
+			return false;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			load(fis);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "load : " + e);
+			return false;
+		} finally {
+			if(fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	Layout
+	 * @brief	カードの構成(変更不可)
+	 */
+	public static final class Layout {
+		private final int[] mSysCode;
+		/// [システム][サービス]
+		private final int[][] mSvCode;
+
+		private Layout(int[] sysCode, int[][] svCode) {
+			mSysCode = sysCode;
+			mSvCode = svCode;
+		}
+
+		public int getSystemCount() {
+			return mSysCode.length;
+		}
+
+		public int getSystemCode(int index) {
+			return mSysCode[index];
+		}
+
+		public int getServiceCount(int index) {
+			return mSvCode[index].length;
+		}
+
+		public int getServiceCode(int index, int svIndex) {
+			return mSvCode[index][svIndex];
+		}
+
+		/**
+		 * システムがあるか
+		 */
+		public boolean hasSystem(int sysCode) {
+			return indexOf(sysCode) >= 0;
+		}
+
+		/**
+		 * サービスがあるか
+		 *
+		 * @param[in]	sysCode		システムコード
+		 * @param[in]	svCode		サービスコード
+		 */
+		public boolean hasService(int sysCode, int svCode) {
+			final int i = indexOf(sysCode);
+			if(i < 0) {
+				return false;
+			}
+			for(int svc : mSvCode[i]) {
+				if(svc == (svCode & 0xffff)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int indexOf(int sysCode) {
+			for(int i=0; i<mSysCode.length; i++) {
+				if(mSysCode[i] == (sysCode & 0xffff)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(int i=0; i<mSysCode.length; i++) {
+				sb.append(String.format("%04x:", mSysCode[i]));
+				for(int svc : mSvCode[i]) {
+					sb.append(String.format(" %04x", svc));
+				}
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+	}
+}
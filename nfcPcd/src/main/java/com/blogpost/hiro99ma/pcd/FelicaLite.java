@@ -49,6 +49,9 @@ public class FelicaLite extends NfcF {
 	private static final String TAG = "FelicaLite";
 	private static FelicaLite mNfc = null;
 
+	/// dump()で読むブロック数
+	public static final int DUMP_BLOCKS = Block.values().length - 3;
+
 
 	///////////////////////////
 	// methods
@@ -66,14 +69,19 @@ public class FelicaLite extends NfcF {
 	/**
 	 * read from card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			read buffer(16byte * blockNum)
 	 * @param[in]	blockNo[]	ブロック番号(0～)
-	 * @param[in]	blockNum	ブロック数(1～4)
+	 * @param[in]	blockNum	ブロック数(1～、4を超える分は複数回に分ける)
 	 */
-	public boolean read(byte[] buf, int[] blockNo, int blockNum) {
+	public boolean read(PcdSession s, byte[] buf, int[] blockNo, int blockNum) {
 		Log.d(TAG, "read");
         final int[] optr = new int[] { NfcF.SVCODE_RO };				//service code
-		return read(buf, blockNo, blockNum, optr);
+		return read(s, buf, blockNo, blockNum, optr);
+	}
+
+	public boolean read(byte[] buf, int[] blockNo, int blockNum) {
+		return read(NfcPcd.getSession(), buf, blockNo, blockNum);
 	}
 
 	/**
@@ -91,13 +99,18 @@ public class FelicaLite extends NfcF {
 	/**
 	 * read from card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			read buffer(16byte)
 	 * @param[in]		blk			ブロック(PAD0～)
 	 */
-	public boolean read(byte[] buf, Block blk) {
+	public boolean read(PcdSession s, byte[] buf, Block blk) {
 		Log.d(TAG, "read1");
 		final int[] bno = new int[] { blk.val() };
-		return read(buf, bno, 1);
+		return read(s, buf, bno, 1);
+	}
+
+	public boolean read(byte[] buf, Block blk) {
+		return read(NfcPcd.getSession(), buf, blk);
 	}
 
 	/**
@@ -116,13 +129,67 @@ public class FelicaLite extends NfcF {
 	/**
 	 * write to card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			write buffer(16byte)
 	 * @param[in]		blk			ブロック(PAD0～)
 	 */
-	public boolean write(byte[] buf, Block blk) {
+	public boolean write(PcdSession s, byte[] buf, Block blk) {
 		Log.d(TAG, "write");
 		final int[] optw = new int[] { NfcF.SVCODE_RW };
 		final int[] bno = new int[] { blk.val() };
-		return write(buf, bno, 1, optw);
+		return write(s, buf, bno, 1, optw);
+	}
+
+	public boolean write(byte[] buf, Block blk) {
+		return write(NfcPcd.getSession(), buf, blk);
+	}
+
+	/**
+	 * PADの内容をimageに合わせる
+	 *
+	 * 違うブロックだけを書いて確かめる(NfcF#sync())。
+	 * 前の内容を覚えておくには、PcdSession#getBlockCache()を有効にしておく。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	first		先頭のブロック(PAD0～PAD13)
+	 * @param[in]	num			ブロック数(PAD13まで)
+	 * @param[in]	image		書きたい内容(16byte * num)
+	 * @return		書いたブロック数(0:全て同じだった / -1:失敗)
+	 */
+	public int sync(PcdSession s, Block first, int num, byte[] image) {
+		if(first.val() + num - 1 > Block.PAD13.val()) {
+			Log.e(TAG, "sync : not PAD");
+			return -1;
+		}
+		NfcF.BlockList list = new NfcF.BlockList(num);
+		list.add(NfcF.SVCODE_RW, first.val(), num);
+		return sync(s, list, image);
+	}
+
+	public int sync(Block first, int num, byte[] image) {
+		return sync(NfcPcd.getSession(), first, num, image);
+	}
+
+	/**
+	 * 全ブロックを読む
+	 *
+	 * Blockの順に、RC/CK(書込み専用)とMAC(単独では意味がない)を除いた#DUMP_BLOCKS個を読む。
+	 * 1コマンドで読める4ブロックずつまとめて読む。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[out]	buf			read buffer(16byte * #DUMP_BLOCKS)
+	 */
+	public boolean dump(PcdSession s, byte[] buf) {
+		NfcF.BlockList list = new NfcF.BlockList(DUMP_BLOCKS);
+		for(Block blk : Block.values()) {
+			if((blk != Block.RC) && (blk != Block.MAC) && (blk != Block.CK)) {
+				list.add(NfcF.SVCODE_RO, blk.val());
+			}
+		}
+		return read(s, list, buf);
+	}
+
+	public boolean dump(byte[] buf) {
+		return dump(NfcPcd.getSession(), buf);
 	}
 }
@@ -42,29 +42,30 @@ public final class FelicaLiteIssuance {
 	/**
 	 * １次発行(システムブロックの書き換え禁止設定は行わない)
 	 *
+	 * @param s			セッション
 	 * @param dfd			DFD
 	 * @param masterKey		個別化マスター鍵(24byte)
 	 * @param keyVersion	鍵バージョン
 	 *
 	 * @return			true	１次発行成功
 	 */
-	public static Result issuance1(short dfd, byte[] masterKey, short keyVersion) {
+	public static Result issuance1(PcdSession s, short dfd, byte[] masterKey, short keyVersion) {
 		// 7.3.1 Pollingレスポンスの確認
-		boolean ret = NfcPcd.pollingF(FelicaLite.SYSCODE);
+		boolean ret = NfcPcd.pollingF(s, FelicaLite.SYSCODE);
 		if(!ret) {
 			Log.e(TAG, "card not found.");
 			return Result.ENOTCARD;
 		}
 
 		// 7.3.2 システムコードの確認
-		ret = checkSystemCode();
+		ret = checkSystemCode(s);
 		if(!ret) {
 			Log.e(TAG, "bad system code.");
 			return Result.EBADSYSCODE;
 		}
 
 		// おまけ
-		ret = checkNotIssuance();
+		ret = checkNotIssuance(s);
 		if(!ret) {
 			Log.e(TAG, "issuanced card.");
 			return Result.EISSUED;
@@ -72,7 +73,7 @@ public final class FelicaLiteIssuance {
 
 		// 7.3.3 IDの設定
 		byte[] id = new byte[NfcPcd.SIZE_BLOCK];
-		ret = writeID(id, dfd);
+		ret = writeID(s, id, dfd);
 		if(!ret) {
 			Log.e(TAG, "write ID fail.");
 			return Result.ERROR;
@@ -80,14 +81,14 @@ public final class FelicaLiteIssuance {
 
 		// 7.3.4 カード鍵の書き込み
 		// 7.3.5 カード鍵の確認
-		ret = writeCardKey(id, masterKey);
+		ret = writeCardKey(s, id, masterKey);
 		if(!ret) {
 			Log.e(TAG, "write Card Key fail.");
 			return Result.ERROR;
 		}
 
 		// 7.3.6 カード鍵バージョンの書き込み
-		ret = writeKeyVersion(keyVersion);
+		ret = writeKeyVersion(s, keyVersion);
 		if(!ret) {
 			Log.e(TAG, "write Key Version fail.");
 			return Result.ERROR;
@@ -103,15 +104,19 @@ public final class FelicaLiteIssuance {
 		return Result.SUCCESS;
 	}
 
+	public static Result issuance1(short dfd, byte[] masterKey, short keyVersion) {
+		return issuance1(NfcPcd.getSession(), dfd, masterKey, keyVersion);
+	}
+
 	/**
 	 * システムコード確認
 	 *
 	 * @return	true	FeliCa Liteである
 	 */
-	private static boolean checkSystemCode() {
+	private static boolean checkSystemCode(PcdSession s) {
 		byte[] buf = new byte[NfcPcd.SIZE_BLOCK];
 		FelicaLite f = FelicaLite.getInstance();
-		boolean ret = f.read(buf,  FelicaLite.Block.SYS_C);
+		boolean ret = f.read(s, buf,  FelicaLite.Block.SYS_C);
 		if(ret == false) {
 			Log.v(TAG, "checkSystemCode : read fail");
 			return false;
@@ -135,10 +140,10 @@ public final class FelicaLiteIssuance {
 	 *
 	 * @return		true	未発行である
 	 */
-	private static boolean checkNotIssuance() {
+	private static boolean checkNotIssuance(PcdSession s) {
 		byte[] buf = new byte[NfcPcd.SIZE_BLOCK];
 		FelicaLite f = FelicaLite.getInstance();
-		boolean ret = f.read(buf,  FelicaLite.Block.MC);
+		boolean ret = f.read(s, buf,  FelicaLite.Block.MC);
 		if(ret == false) {
 			Log.v(TAG, "checkNotIssuance : read fail");
 			return false;
@@ -158,9 +163,9 @@ public final class FelicaLiteIssuance {
 	 * ID設定
 	 *
 	 */
-	private static boolean writeID(byte[] id, short dfd) {
+	private static boolean writeID(PcdSession s, byte[] id, short dfd) {
 		FelicaLite f = FelicaLite.getInstance();
-		boolean ret = f.read(id,  FelicaLite.Block.D_ID);
+		boolean ret = f.read(s, id,  FelicaLite.Block.D_ID);
 		if(ret == false) {
 			Log.v(TAG, "writeID : read fail");
 			return false;
@@ -171,7 +176,7 @@ public final class FelicaLiteIssuance {
 		for(int i=10; i<NfcPcd.SIZE_BLOCK; i++) {
 			id[i] = 0x00;
 		}
-		ret = writeWithCheck(id, FelicaLite.Block.ID);
+		ret = writeWithCheck(s, id, FelicaLite.Block.ID);
 		if(ret == false) {
 			Log.v(TAG, "writeID : write fail");
 			return false;
@@ -187,7 +192,7 @@ public final class FelicaLiteIssuance {
 	 *
 	 * @return
 	 */
-	private static boolean writeCardKey(byte[] id, byte[] masterKey) {
+	private static boolean writeCardKey(PcdSession s, byte[] id, byte[] masterKey) {
 		byte[] ck = new byte[NfcPcd.SIZE_BLOCK];
 		boolean ret = calcPersonalCardKey(ck, masterKey, id);
 		if(ret == false) {
@@ -197,13 +202,13 @@ public final class FelicaLiteIssuance {
 
 		//CKはチェックできない
 		FelicaLite f = FelicaLite.getInstance();
-		ret = f.write(ck, FelicaLite.Block.CK);
+		ret = f.write(s, ck, FelicaLite.Block.CK);
 		if(ret == false) {
 			Log.v(TAG, "writeCardKey : write fail");
 			return false;
 		}
 
-		ret = macCheck(ck);
+		ret = macCheck(s, ck);
 		if(ret == false) {
 			Log.v(TAG, "writeCardKey : mac fail");
 			return false;
@@ -212,33 +217,34 @@ public final class FelicaLiteIssuance {
 		return true;
 	}
 
-	private static boolean macCheck(byte[] ck) {
-		return macCheck(null, ck);
+	private static boolean macCheck(PcdSession s, byte[] ck) {
+		return macCheck(s, null, ck);
 	}
 
 	/**
 	 * MAC比較
 	 *
+	 * @param s			セッション
 	 * @param masterKey	個別化マスター鍵(24byte)
 	 * @param dummy		nullを設定してください
 	 *
 	 * @return		true	MAC一致
 	 */
-	public static boolean macCheck(byte[] masterKey, byte[] dummy) {
+	public static boolean macCheck(PcdSession s, byte[] masterKey, byte[] dummy) {
 		byte[] rc = new byte[NfcPcd.SIZE_BLOCK];			//ランダム値を入れる
 		SecureRandom random = new SecureRandom();
 		random.nextBytes(rc);
 
 		FelicaLite f = FelicaLite.getInstance();
 
-		boolean ret = f.write(rc, FelicaLite.Block.RC);
+		boolean ret = f.write(s, rc, FelicaLite.Block.RC);
 		if(ret == false) {
 			Log.v(TAG, "macCheck : write rc fail");
 			return false;
 		}
 		int[] blkNo = new int[] { FelicaLite.Block.ID.val(), FelicaLite.Block.MAC.val() };
 		byte[] buf = new byte[NfcPcd.SIZE_BLOCK * blkNo.length];
-		ret = f.read(buf,  blkNo, blkNo.length);
+		ret = f.read(s, buf,  blkNo, blkNo.length);
 		if(ret == false) {
 			Log.v(TAG, "macCheck : read fail");
 			return false;
@@ -266,6 +272,10 @@ public final class FelicaLiteIssuance {
 		return ret;
 	}
 
+	public static boolean macCheck(byte[] masterKey, byte[] dummy) {
+		return macCheck(NfcPcd.getSession(), masterKey, dummy);
+	}
+
 
 	/**
 	 * 鍵バージョン書き込み
@@ -274,11 +284,11 @@ public final class FelicaLiteIssuance {
 	 *
 	 * @return		true	書き込み成功
 	 */
-	private static boolean writeKeyVersion(short keyVersion) {
+	private static boolean writeKeyVersion(PcdSession s, short keyVersion) {
 		byte[] buf = new byte[NfcPcd.SIZE_BLOCK];
 		buf[0] = NfcPcd.h16(keyVersion);
 		buf[1] = NfcPcd.l16(keyVersion);
-		boolean ret = writeWithCheck(buf, FelicaLite.Block.CKV);
+		boolean ret = writeWithCheck(s, buf, FelicaLite.Block.CKV);
 		if(ret == false) {
 			Log.v(TAG, "writeKeyVersion : write fail");
 			return false;
@@ -295,17 +305,19 @@ public final class FelicaLiteIssuance {
 	 *
 	 * @return	true	チェックOK
 	 */
-	private static boolean writeWithCheck(byte[] buf, Block blk) {
+	private static boolean writeWithCheck(PcdSession s, byte[] buf, Block blk) {
 		byte[] bufChk = new byte[NfcPcd.SIZE_BLOCK];
 		FelicaLite f = FelicaLite.getInstance();
 
-		boolean ret = f.write(buf, blk);
+		boolean ret = f.write(s, buf, blk);
 		if(ret == false) {
 			Log.v(TAG, "checkWrite : write fail");
 			return false;
 		}
 
-		ret = f.read(bufChk, blk);
+		//キャッシュではなくカードから読んで確かめる
+		s.getBlockCache().invalidate(NfcF.SVCODE_RO, blk.val());
+		ret = f.read(s, bufChk, blk);
 		if(ret == false) {
 			Log.v(TAG, "checkWrite : read fail");
 			return false;
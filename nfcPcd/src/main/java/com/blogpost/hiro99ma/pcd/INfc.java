@@ -1,14 +1,12 @@
 package com.blogpost.hiro99ma.pcd;
 
 public interface INfc {
-	static byte[] s_CommandBuf = new byte[NfcPcd.SIZE_CMDBUF];
-	static byte[] s_ResponseBuf = new byte[NfcPcd.SIZE_RESBUF];
-
 	abstract void deselect();
 
 	/**
 	 * read from card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			read buffer(16byte)
 	 * @param[in]	blockNo		ブロック番号(0～)
 	 * @param[in]	blockNum	ブロック数(1～)
@@ -16,11 +14,17 @@ public interface INfc {
 	 *
 	 * @return		true		成功
 	 */
+	abstract boolean read(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt);
+
+	/**
+	 * read from card(デフォルトセッション)
+	 */
 	abstract boolean read(byte[] buf, int[] blockNo, int blockNum, int[] opt);
 
 	/**
 	 * write to card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			write buffer(16byte * blockNum)
 	 * @param[in]	blockNo[]	ブロック番号(0～)
 	 * @param[in]	blockNum	ブロック数(1～)
@@ -28,5 +32,10 @@ public interface INfc {
 	 *
 	 * @return		true		成功
 	 */
+	abstract boolean write(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt);
+
+	/**
+	 * write to card(デフォルトセッション)
+	 */
 	abstract boolean write(byte[] buf, int[] blockNo, int blockNum, int[] opt);
 }
@@ -0,0 +1,37 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @brief		PCDとの通信路
+ *
+ * NfcPcdはこのインターフェース経由でPCDとフレームをやり取りする。
+ * USBのPaSoRi以外にも、シミュレータなどを差し替えられる。
+ */
+public interface IPcdPort {
+
+	/**
+	 * write to PCD
+	 *
+	 * @param[in]	data		送信データ
+	 * @param[in]	len			dataの長さ
+	 * @param[in]	timeout		タイムアウト[msec]
+	 *
+	 * @return		送信したサイズ(負値はエラー)
+	 */
+	abstract int write(byte[] data, int len, int timeout);
+
+	/**
+	 * read from PCD
+	 *
+	 * @param[out]	data		受信バッファ
+	 * @param[in]	len			dataの長さ
+	 * @param[in]	timeout		タイムアウト[msec]
+	 *
+	 * @return		受信したサイズ(負値はエラー)
+	 */
+	abstract int read(byte[] data, int len, int timeout);
+
+	/**
+	 * 通信路を閉じる
+	 */
+	abstract void close();
+}
@@ -57,6 +57,7 @@ public class NfcA implements INfc {
 	/**
 	 * read from card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			read buffer(16byte)
 	 * @param[in]	blockNo		ブロック番号(0～)
 	 * @param[in]	blockNum	ブロック数(1～)
@@ -65,43 +66,45 @@ public class NfcA implements INfc {
 	 * @return		true		成功
 	 */
 	@Override
-	public boolean read(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+	public boolean read(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt) {
 		if(buf.length < blockNum * NfcPcd.SIZE_BLOCK) {
 			Log.e(TAG, "less read buffer");
 			return false;
 		}
 		byte[] len = new byte[1];
-		final NfcPcd.NfcId id = NfcPcd.getNfcId();
-
-		s_CommandBuf[0] = (byte)blockNo[0];
-		s_CommandBuf[2] = (byte)1;
-		s_CommandBuf[3] = (byte)opt[0];
-		s_CommandBuf[4] = (byte)opt[1];
-		s_CommandBuf[5] = (byte)opt[2];
-		s_CommandBuf[6] = (byte)opt[3];
-		s_CommandBuf[7] = (byte)opt[4];
-		s_CommandBuf[8] = (byte)opt[5];
-		NfcPcd.MemCpy(s_CommandBuf, id.Id, id.Length, 9, 0);
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+		final byte[] res = s.resBuf;
+
+		cmd[0] = (byte)blockNo[0];
+		cmd[2] = (byte)1;
+		cmd[3] = (byte)opt[0];
+		cmd[4] = (byte)opt[1];
+		cmd[5] = (byte)opt[2];
+		cmd[6] = (byte)opt[3];
+		cmd[7] = (byte)opt[4];
+		cmd[8] = (byte)opt[5];
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 9, 0);
 
 		// Key A Authentication
-		s_CommandBuf[1] = 0x60;		//Key A Auth
-		boolean ret = NfcPcd.inDataExchange(
-						s_CommandBuf, 9 + id.Length,
-						s_ResponseBuf, len);
+		cmd[1] = 0x60;		//Key A Auth
+		boolean ret = NfcPcd.inDataExchange(s,
+						cmd, 9 + id.Length,
+						res, len);
 		if(!ret) {
 			Log.e(TAG, "Auth A fail");
 
 			// Key B Authentication
-			s_CommandBuf[1] = 0x61;		//Key B Auth
-			s_CommandBuf[3] = (byte)opt[6];
-			s_CommandBuf[4] = (byte)opt[7];
-			s_CommandBuf[5] = (byte)opt[8];
-			s_CommandBuf[6] = (byte)opt[9];
-			s_CommandBuf[7] = (byte)opt[10];
-			s_CommandBuf[8] = (byte)opt[11];
-			ret = NfcPcd.inDataExchange(
-							s_CommandBuf, 9 + id.Length,
-							s_ResponseBuf, len);
+			cmd[1] = 0x61;		//Key B Auth
+			cmd[3] = (byte)opt[6];
+			cmd[4] = (byte)opt[7];
+			cmd[5] = (byte)opt[8];
+			cmd[6] = (byte)opt[9];
+			cmd[7] = (byte)opt[10];
+			cmd[8] = (byte)opt[11];
+			ret = NfcPcd.inDataExchange(s,
+							cmd, 9 + id.Length,
+							res, len);
 			if(!ret) {
 				Log.e(TAG, "Auth B fail");
 				//return false;
@@ -109,12 +112,12 @@ public class NfcA implements INfc {
 		}
 
 		// Read
-		s_CommandBuf[1] = 0x30;		//read
-		ret = NfcPcd.inDataExchange(
-						s_CommandBuf, 3,
-						s_ResponseBuf, len);
+		cmd[1] = 0x30;		//read
+		ret = NfcPcd.inDataExchange(s,
+						cmd, 3,
+						res, len);
 		if(ret) {
-			NfcPcd.MemCpy(buf, s_ResponseBuf, len[0], 0, 0);
+			NfcPcd.MemCpy(buf, res, len[0], 0, 0);
 		} else {
 			Log.e(TAG, "read fail3");
 		}
@@ -122,6 +125,11 @@ public class NfcA implements INfc {
 		return ret;
 	}
 
+	@Override
+	public boolean read(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+		return read(NfcPcd.getSession(), buf, blockNo, blockNum, opt);
+	}
+
 
 	/**
 	 * read from card
@@ -148,9 +156,14 @@ public class NfcA implements INfc {
 	 * @return		true		成功
 	 */
 	@Override
-	public boolean write(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+	public boolean write(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt) {
 		// TODO Auto-generated method stub
 		return false;
 	}
 
+	@Override
+	public boolean write(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+		return write(NfcPcd.getSession(), buf, blockNo, blockNum, opt);
+	}
+
 }
@@ -1,5 +1,7 @@
 package com.blogpost.hiro99ma.pcd;
 
+import java.nio.ByteBuffer;
+
 import android.util.Log;
 
 public class NfcF implements INfc {
@@ -24,6 +26,13 @@ public class NfcF implements INfc {
 	public static final short SVCODE_RW = (short)0x0009;		//Read/Write
 	public static final short SVCODE_RO = (short)0x000b;		//ReadOnly
 
+	/// 1コマンドで指定できるサービス数
+	public static final int MAX_SERVICE = 16;
+	/// Request Serviceで指定できるノード数
+	public static final int MAX_NODE = 32;
+	/// Request Serviceの応答で、ノードが存在しない場合の鍵バージョン
+	public static final int KEYVER_NONE = 0xffff;
+
 
 	///////////////////////////
 	// private fields
@@ -34,10 +43,32 @@ public class NfcF implements INfc {
 
 	//block parameter
 	private static final short BM_LEN2 = (short)0x8000;	//block list element length 2byte
-	//private static final short BM_LEN3 = 0x0000;		//block list element length 3byte
+	private static final short BM_LEN3 = 0x0000;		//block list element length 3byte
 	private static final short AM_NORMAL = 0x0000;		//ramdom, cyclic, parse(dec, direct)
 	//private static final short AM_CACHEBACK = 0x1000;	//parse(cacheback access)
-	private static final short SCN_NORMAL = 0x00;		//Service Code Number(0～)
+	//private static final short SCN_NORMAL = 0x00;		//Service Code Number(0～)
+
+	/// 2byteブロックリストエレメントで指定できるブロック番号
+	private static final int MAX_BLOCKNO2 = 0xff;
+	/// 3byteブロックリストエレメントで指定できるブロック番号
+	private static final int MAX_BLOCKNO3 = 0xffff;
+
+	/// Read/Writeレスポンスの結果(これ以外はステータスフラグ1,2)
+	private static final int RES_OK = 0;				//正常
+	private static final int RES_NONE = -1;				//応答なし/不正
+	/// ステータスフラグ2
+	private static final int ST_BLKNUM = 0xa2;			//ブロック数不正
+
+	/// サービス属性(サービスコード下位6bitのうち、アクセス属性を除いた部分)
+	private static final int SVATTR_MASK = 0x3c;
+	private static final int SVATTR_RANDOM = 0x08;		//ランダムサービス
+
+	/// PMmのICコード
+	private static final byte IC_LITE = (byte)0xf0;		//FeliCa Lite
+	private static final byte IC_LITE_S = (byte)0xf1;	//FeliCa Lite-S
+	/// FeliCa Liteの1コマンドあたりのブロック数
+	private static final int LITE_READ_BLOCKS = 4;
+	private static final int LITE_WRITE_BLOCKS = 1;
 
 
 	///////////////////////////
@@ -61,96 +92,1125 @@ public class NfcF implements INfc {
 
 	/**
 	 * 2byteブロック長
+	 * @param scn			サービスコードリストの順番(0～15)
 	 * @param blockNo		ブロック番号(0～)
 	 * @return				ブロックリストエレメント
 	 */
-	private static short create_blocklist2(int blockNo) {
-		return (short)(BM_LEN2 | AM_NORMAL | (SCN_NORMAL << 8) | (short)blockNo);
+	private static short create_blocklist2(int scn, int blockNo) {
+		return (short)(BM_LEN2 | AM_NORMAL | (scn << 8) | (blockNo & 0xff));
+	}
+
+	/**
+	 * 3byteブロック長
+	 * @param scn			サービスコードリストの順番(0～15)
+	 * @param blockNo		ブロック番号(0～)
+	 * @return				ブロックリストエレメント(下位3byte。D0, D1(ブロック番号下位), D2(上位)の順)
+	 */
+	private static int create_blocklist3(int scn, int blockNo) {
+		return ((BM_LEN3 | AM_NORMAL | (scn << 8)) << 8) | ((blockNo & 0xff) << 8) | ((blockNo >> 8) & 0xff);
+	}
+
+	/**
+	 * ブロックリストエレメントの長さ
+	 *
+	 * 255以下なら2byte、それより大きければ3byte。
+	 */
+	private static int elementLength(int blockNo) {
+		return (blockNo <= MAX_BLOCKNO2) ? 2 : 3;
+	}
+
+	/**
+	 * ブロック番号が範囲内(0～65535)か
+	 */
+	private static boolean isValidBlockNo(int blockNo) {
+		return (0 <= blockNo) && (blockNo <= MAX_BLOCKNO3);
+	}
+
+	/**
+	 * blockNo[0]～blockNo[blockNum-1]が全て範囲内か
+	 */
+	private static boolean isValidBlockNo(int[] blockNo, int blockNum) {
+		if((blockNum < 0) || (blockNum > blockNo.length)) {
+			return false;
+		}
+		for(int i=0; i<blockNum; i++) {
+			if(!isValidBlockNo(blockNo[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 1コマンドあたりのブロック数の上限を設定する
+	 *
+	 * カードによって上限が違うので、分かっている場合は設定する。
+	 * 0にすると、フレームに入る数(FeliCa Lite/Lite-Sは仕様の数)にする。
+	 *
+	 * @param[in]	s			セッション(設定はセッションごと)
+	 * @param[in]	read		Read Without Encryption
+	 * @param[in]	write		Write Without Encryption
+	 */
+	public static void setMaxBlocks(PcdSession s, int read, int write) {
+		s.maxReadBlocks = read;
+		s.maxWriteBlocks = write;
+	}
+
+	public static void setMaxBlocks(int read, int write) {
+		setMaxBlocks(NfcPcd.getSession(), read, write);
+	}
+
+	/**
+	 * FeliCa Lite/Lite-Sか
+	 */
+	private static boolean isLite(NfcPcd.NfcId id) {
+		return (id.PMm[1] == IC_LITE) || (id.PMm[1] == IC_LITE_S);
+	}
+
+	/**
+	 * 1コマンドあたりのブロック数の上限
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	write		true:Write / false:Read
+	 */
+	static int maxBlocks(PcdSession s, boolean write) {
+		final int max = write ? s.maxWriteBlocks : s.maxReadBlocks;
+		if(max > 0) {
+			return max;
+		}
+		if(isLite(s.nfcId)) {
+			return write ? LITE_WRITE_BLOCKS : LITE_READ_BLOCKS;
+		}
+		if(write) {
+			//cmd(1) IDm(8) サービス数(1) サービス(2) ブロック数(1) + (ブロック(2) + データ(16)) * n
+			return (NfcPcd.SIZE_FELICA_CMD - 13) / (2 + NfcPcd.SIZE_BLOCK);
+		} else {
+			//res(1) IDm(8) ステータス(2) ブロック数(1) + データ(16) * n
+			return (NfcPcd.SIZE_FELICA_CMD - 12) / NfcPcd.SIZE_BLOCK;
+		}
+	}
+
+	/**
+	 * サービスコードリストとブロックリストを作る
+	 *
+	 * @param[out]	cmd			コマンドバッファ(サービス数の位置から書く)
+	 * @param[in]	pos			サービス数の位置
+	 * @param[in]	svCode		ブロックごとのサービスコード(nullならsvCodeOneのみ)
+	 * @param[in]	svCodeOne	svCodeがnullの場合のサービスコード
+	 * @param[in]	blockNo		ブロック番号(nullならtopからの連番)
+	 * @param[in]	top			先頭のブロック(svCode/blockNoの添字)
+	 * @param[in]	num			ブロック数
+	 * @return		ブロックリストの次の位置
+	 */
+	private static int setBlockList(byte[] cmd, int pos,
+					int[] svCode, int svCodeOne, int[] blockNo, int top, int num) {
+		//サービスコードリスト(出てきた順)
+		final int svpos = pos++;
+		int svnum = 0;
+		final int blkpos = pos + ((svCode == null) ? 2 : countServices(svCode, top, num) * 2);
+		cmd[blkpos] = (byte)num;				//ブロック数
+		int blk = blkpos + 1;
+		for(int i=0; i<num; i++) {
+			final int sv = ((svCode == null) ? svCodeOne : svCode[top + i]) & 0xffff;
+			int scn = 0;
+			while((scn < svnum)
+			  && (sv != (NfcPcd.hl16(cmd[svpos + 2 + scn * 2], cmd[svpos + 1 + scn * 2]) & 0xffff))) {
+				scn++;
+			}
+			if(scn == svnum) {
+				cmd[svpos + 1 + scn * 2] = NfcPcd.l16((short)sv);		//Service Code List(lower)
+				cmd[svpos + 2 + scn * 2] = NfcPcd.h16((short)sv);		//Service Code List(upper)
+				svnum++;
+			}
+			final int bno = (blockNo == null) ? top + i : blockNo[top + i];
+			if(elementLength(bno) == 2) {
+				final short blist = create_blocklist2(scn, bno);
+				cmd[blk++] = NfcPcd.h16(blist);
+				cmd[blk++] = NfcPcd.l16(blist);
+			} else {
+				final int blist = create_blocklist3(scn, bno);
+				cmd[blk++] = (byte)(blist >> 16);
+				cmd[blk++] = (byte)(blist >> 8);
+				cmd[blk++] = (byte)blist;
+			}
+		}
+		cmd[svpos] = (byte)svnum;				//サービス数
+		return blk;
+	}
+
+	/**
+	 * サービスの種類数
+	 */
+	private static int countServices(int[] svCode, int top, int num) {
+		int cnt = 0;
+		for(int i=0; i<num; i++) {
+			int j = 0;
+			while((j < i) && (svCode[top + j] != svCode[top + i])) {
+				j++;
+			}
+			if(j == i) {
+				cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * 1コマンドに入れるブロック数
+	 *
+	 * 上限のブロック数、サービス数(#MAX_SERVICE)、コマンド長(#NfcPcd.SIZE_FELICA_CMD)のいずれかに達するまで。
+	 * ブロックリストエレメントは、ブロックごとに2byte/3byteの短い方で数える。
+	 *
+	 * @param[in]	svCode		ブロックごとのサービスコード(nullなら1つ)
+	 * @param[in]	blockNo		ブロック番号(nullならtopからの連番)
+	 * @param[in]	top			先頭のブロック(svCode/blockNoの添字)
+	 * @param[in]	remain		top以降のブロック数
+	 * @param[in]	max			上限のブロック数
+	 * @param[in]	dataLen		ブロックあたりのデータ長(Read:0 / Write:16)
+	 */
+	private static int fitBlocks(int[] svCode, int[] blockNo, int top, int remain, int max, int dataLen) {
+		int num = 0;
+		int svnum = 0;
+		//cmd(1) IDm(8) サービス数(1) ブロック数(1)
+		int len = 11;
+		while((num < remain) && (num < max)) {
+			boolean newsv;
+			if(svCode == null) {
+				newsv = (num == 0);
+			} else {
+				final int sv = svCode[top + num];
+				int j = 0;
+				while((j < num) && (svCode[top + j] != sv)) {
+					j++;
+				}
+				newsv = (j == num);
+			}
+			if(newsv && (svnum == MAX_SERVICE)) {
+				break;
+			}
+			final int bno = (blockNo == null) ? top + num : blockNo[top + num];
+			final int add = (newsv ? 2 : 0) + elementLength(bno) + dataLen;
+			if(len + add > NfcPcd.SIZE_FELICA_CMD) {
+				break;
+			}
+			len += add;
+			if(newsv) {
+				svnum++;
+			}
+			num++;
+		}
+		return num;
+	}
+
+	/**
+	 * Read/Writeレスポンスの確認
+	 *
+	 * @param[in]	res			CommunicateThruEXのレスポンス
+	 * @param[in]	cmd			送信したコマンドコード
+	 * @param[in]	id			IDm
+	 * @return		true		ステータスフラグが正常
+	 */
+	private static boolean checkResponse(ByteBuffer res, byte cmd, NfcPcd.NfcId id) {
+		return responseStatus(res, cmd, id) == RES_OK;
+	}
+
+	/**
+	 * Read/Writeレスポンスのステータス
+	 *
+	 * @return		#RES_OK / #RES_NONE / ステータスフラグ1,2(上位,下位)
+	 */
+	private static int responseStatus(ByteBuffer res, byte cmd, NfcPcd.NfcId id) {
+		if(!checkHeader(res, cmd, id, 11)) {
+			return RES_NONE;
+		}
+		final int top = res.position();
+		return ((res.get(top + 9) & 0xff) << 8) | (res.get(top + 10) & 0xff);
+	}
+
+	/**
+	 * @class	ReadLimit
+	 * @brief	1コマンドで読めるブロック数の探索
+	 *
+	 * ブロック数不正になったら、読めた数と不正になった数の間を二分探索する。
+	 */
+	private static final class ReadLimit {
+		/// 次のコマンドのブロック数の上限
+		int max;
+		/// 読めた最大のブロック数
+		private int mOk = 0;
+		/// ブロック数不正になった最小のブロック数
+		private int mNg;
+
+		ReadLimit(int max) {
+			this.max = max;
+			mNg = max + 1;
+		}
+
+		/**
+		 * 読めた
+		 *
+		 * 上限いっぱいで読めて、まだ不正になった数との間があれば上限を上げる。
+		 */
+		void accepted(int num) {
+			if(num > mOk) {
+				mOk = num;
+			}
+			if((num == max) && (mNg - mOk > 1)) {
+				max = (mOk + mNg) / 2;
+			}
+		}
+
+		/**
+		 * ブロック数不正だった
+		 *
+		 * @return		false		これ以上減らせない
+		 */
+		boolean rejected(int num) {
+			if(num < mNg) {
+				mNg = num;
+			}
+			if(mNg <= 1) {
+				return false;
+			}
+			if(mOk >= mNg) {
+				//以前読めた数で不正になった(カードが替わったなど)ので、やり直す
+				mOk = 0;
+			}
+			max = Math.max((mOk + mNg) / 2, 1);
+			return true;
+		}
+	}
+
+	/**
+	 * ブロック数不正か
+	 *
+	 * ステータスフラグ1はリストの位置を示すか、位置によらないエラーならFFになる。
+	 *
+	 * @param[in]	st			#responseStatus()の結果
+	 */
+	private static boolean isBlockNumError(int st) {
+		return (st > 0) && ((st >> 8) != 0) && ((st & 0xff) == ST_BLKNUM);
+	}
+
+	/**
+	 * レスポンスコードとIDmの確認
+	 *
+	 * @param[in]	res			CommunicateThruEXのレスポンス
+	 * @param[in]	cmd			送信したコマンドコード
+	 * @param[in]	id			IDm
+	 * @param[in]	len			レスポンスの最小長
+	 * @return		true		宛先のカードからのレスポンス
+	 */
+	private static boolean checkHeader(ByteBuffer res, byte cmd, NfcPcd.NfcId id, int len) {
+		if((res == null) || (res.remaining() < len)) {
+			return false;
+		}
+		final int top = res.position();
+		if(res.get(top) != cmd + 1) {
+			return false;
+		}
+		for(int i=0; i<id.Length; i++) {
+			if(res.get(top + 1 + i) != id.Id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read Without Encryption 1回分
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	svCode		ブロックごとのサービスコード(nullならsvCodeOneのみ)
+	 * @param[in]	svCodeOne	svCodeがnullの場合のサービスコード
+	 * @param[in]	blockNo		ブロック番号(nullならtopからの連番)
+	 * @param[in]	top			先頭のブロック(svCode/blockNoの添字)
+	 * @param[in]	num			ブロック数
+	 * @param[out]	buf			read buffer
+	 * @param[in]	offset		bufの書込み開始位置
+	 * @return		#RES_OK / #RES_NONE / ステータスフラグ
+	 */
+	private static int readBlocks(PcdSession s, int[] svCode, int svCodeOne, int[] blockNo,
+					int top, int num, byte[] buf, int offset) {
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+
+		cmd[0] = 0x06;
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		final int len = setBlockList(cmd, 9, svCode, svCodeOne, blockNo, top, num);
+		ByteBuffer res = NfcPcd.communicateThruExView(s,
+							NfcPcd.felicaTimeout(id, NfcPcd.PMM_READ, num),
+							cmd, len);
+		final int st = responseStatus(res, cmd[0], id);
+		if(st != RES_OK) {
+			return st;
+		}
+		if(res.remaining() < 12 + num * NfcPcd.SIZE_BLOCK) {
+			return RES_NONE;
+		}
+		//[11] : block num
+		res.position(res.position() + 12);
+		res.get(buf, offset, num * NfcPcd.SIZE_BLOCK);
+
+		final BlockCache cache = s.blockCache;
+		if(cache.isEnabled()) {
+			cache.miss(num);
+			for(int i=0; i<num; i++) {
+				final int bno = (blockNo == null) ? top + i : blockNo[top + i];
+				if(cacheable(id, bno)) {
+					cache.put(id, (svCode == null) ? svCodeOne : svCode[top + i], bno,
+								buf, offset + i * NfcPcd.SIZE_BLOCK);
+				}
+			}
+		}
+		return RES_OK;
+	}
+
+	/**
+	 * キャッシュしてよいブロックか
+	 *
+	 * FeliCa LiteのRC/MAC/CK(読むたびに変わる/読めない)と、Lite-Sの0x90以降(カウンタなど)は覚えない。
+	 */
+	private static boolean cacheable(NfcPcd.NfcId id, int blockNo) {
+		if(!isLite(id) || (blockNo < FelicaLite.Block.RC.val())) {
+			return true;
+		}
+		return (blockNo >= FelicaLite.Block.ID.val()) && (blockNo <= FelicaLite.Block.MC.val())
+				&& (blockNo != FelicaLite.Block.CK.val());
+	}
+
+	/**
+	 * キャッシュから読む
+	 *
+	 * 引数はreadBlocks()と同じ。
+	 *
+	 * @return		true		全ブロックをキャッシュから読めた(1つでも無ければカードから全部読む)
+	 */
+	private static boolean readCache(PcdSession s, int[] svCode, int svCodeOne, int[] blockNo,
+					int top, int num, byte[] buf, int offset) {
+		final BlockCache cache = s.blockCache;
+		if(!cache.isEnabled()) {
+			return false;
+		}
+		final NfcPcd.NfcId id = s.nfcId;
+		for(int i=0; i<num; i++) {
+			final int bno = (blockNo == null) ? top + i : blockNo[top + i];
+			final int sv = (svCode == null) ? svCodeOne : svCode[top + i];
+			if(!cacheable(id, bno) || !cache.get(id, sv, bno, buf, offset + i * NfcPcd.SIZE_BLOCK)) {
+				return false;
+			}
+		}
+		cache.hit(num);
+		return true;
+	}
+
+	/**
+	 * 書き込めたブロックをキャッシュに反映する
+	 *
+	 * 書いた値がそのまま読めるブロック(#readsBack())だけ覚え直し、それ以外は破棄する。
+	 *
+	 * 引数はreadBlocks()と同じ。
+	 */
+	private static void writeCache(PcdSession s, int[] svCode, int svCodeOne, int[] blockNo,
+					int top, int num, byte[] buf, int offset) {
+		final BlockCache cache = s.blockCache;
+		if(!cache.isEnabled()) {
+			return;
+		}
+		final NfcPcd.NfcId id = s.nfcId;
+		for(int i=0; i<num; i++) {
+			final int bno = (blockNo == null) ? top + i : blockNo[top + i];
+			final int sv = (svCode == null) ? svCodeOne : svCode[top + i];
+			if(readsBack(id, sv, bno)) {
+				cache.put(id, sv, bno, buf, offset + i * NfcPcd.SIZE_BLOCK);
+			} else if(isLite(id)) {
+				cache.invalidate(sv, bno);
+			} else {
+				cache.invalidateService(sv);
+			}
+		}
+	}
+
+	/**
+	 * 書いた値がそのまま読めるブロックか
+	 *
+	 *  - FeliCa Lite : PAD0～PAD13のみ(REGは減算、システムブロックは書いた値と読む値が違う)
+	 *  - それ以外 : ランダムサービスのみ(サイクリックは他のブロックがずれる、パースは減算などがある)
+	 */
+	private static boolean readsBack(NfcPcd.NfcId id, int svCode, int blockNo) {
+		if(isLite(id)) {
+			return blockNo <= FelicaLite.Block.PAD13.val();
+		}
+		return (svCode & SVATTR_MASK) == SVATTR_RANDOM;
 	}
 
 	/**
 	 * read from card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			read buffer(16byte * blockNum)
-	 * @param[in]	blockNo[]	ブロック番号(0～)
-	 * @param[in]	blockNum	ブロック数(1～)
+	 * @param[in]	blockNo[]	ブロック番号(0～65535)
+	 * @param[in]	blockNum	ブロック数(1～、カードの上限を超える分は複数回に分ける)
 	 * @param[in]	opt			[0]Service Code
+	 *
+	 * @note		上限が分からないカードがブロック数不正を返したら、読めるブロック数を二分探索して読み直す。
 	 */
 	@Override
-	public boolean read(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+	public boolean read(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt) {
 		if(buf.length < blockNum * NfcPcd.SIZE_BLOCK) {
 			Log.e(TAG, "less read buffer");
 			return false;
 		}
-		byte[] len = new byte[1];
-		final NfcPcd.NfcId id = NfcPcd.getNfcId();
-
-		s_CommandBuf[0] = 0x06;
-		NfcPcd.MemCpy(s_CommandBuf, id.Id, id.Length, 1, 0);
-		s_CommandBuf[9] = 0x01;							//サービス数(今のところ、１つ)
-		s_CommandBuf[10] = NfcPcd.l16((short)opt[0]);	//Service Code List(upper)
-		s_CommandBuf[11] = NfcPcd.h16((short)opt[0]);	//Service Code List(lower)
-		s_CommandBuf[12] = (byte)blockNum;				//ブロック数
-		for(int i=0; i<blockNum; i++) {
-			short blist = create_blocklist2((short)(blockNo[i] & 0xffff));
-			s_CommandBuf[13 + i*2] = NfcPcd.h16(blist);
-			s_CommandBuf[14 + i*2] = NfcPcd.l16(blist);
-		}
-		boolean ret = NfcPcd.communicateThruEx(
-							s_CommandBuf, 13 + blockNum*2, s_ResponseBuf, len);
-		if (!ret || (s_ResponseBuf[0] != s_CommandBuf[0]+1)
-		  || !NfcPcd.MemCmp(s_ResponseBuf, id.Id, id.Length, 1, 0)
-		  || (s_ResponseBuf[9] != 0x00)
-		  || (s_ResponseBuf[10] != 0x00)) {
-			Log.e(TAG, "read : ret=" + ret);
+		if(!isValidBlockNo(blockNo, blockNum)) {
+			Log.e(TAG, "read : block number");
 			return false;
 		}
-		//s_ResponseBuf[11] == 0x01
-		NfcPcd.MemCpy(buf, s_ResponseBuf, blockNum * NfcPcd.SIZE_BLOCK, 0, 12);
+		if(readCache(s, null, opt[0], blockNo, 0, blockNum, buf, 0)) {
+			return true;
+		}
+		final ReadLimit limit = new ReadLimit(maxBlocks(s, false));
+
+		int top = 0;
+		while(top < blockNum) {
+			final int num = fitBlocks(null, blockNo, top, blockNum - top, limit.max, 0);
+			final int st = readBlocks(s, null, opt[0], blockNo, top, num, buf, top * NfcPcd.SIZE_BLOCK);
+			if(isBlockNumError(st) && limit.rejected(num)) {
+				continue;
+			}
+			if(st != RES_OK) {
+				Log.e(TAG, "read : st=" + Integer.toHexString(st));
+				return false;
+			}
+			limit.accepted(num);
+			top += num;
+		}
 
 		return true;
 	}
 
+	@Override
+	public boolean read(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+		return read(NfcPcd.getSession(), buf, blockNo, blockNum, opt);
+	}
+
 	/**
 	 * write to card
 	 *
+	 * @param[in]	s			セッション
 	 * @param[out]	buf			write buffer(16byte * blockNum)
-	 * @param[in]	blockNo[]	ブロック番号(0～)
-	 * @param[in]	blockNum	ブロック数(1～)
+	 * @param[in]	blockNo[]	ブロック番号(0～65535)
+	 * @param[in]	blockNum	ブロック数(1～、カードの上限を超える分は複数回に分ける)
 	 * @param[in]	opt			[0]Service Code
 	 */
 	@Override
-	public boolean write(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+	public boolean write(PcdSession s, byte[] buf, int[] blockNo, int blockNum, int[] opt) {
 		if(buf.length < blockNum * NfcPcd.SIZE_BLOCK) {
 			Log.e(TAG, "less write buffer");
 			return false;
 		}
-		byte[] len = new byte[1];
-		final NfcPcd.NfcId id = NfcPcd.getNfcId();
+		if(!isValidBlockNo(blockNo, blockNum)) {
+			Log.e(TAG, "write : block number");
+			return false;
+		}
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+		final int max = maxBlocks(s, true);
 
-		s_CommandBuf[0] = 0x08;
-		NfcPcd.MemCpy(s_CommandBuf, id.Id, id.Length, 1, 0);
-		s_CommandBuf[9] = 0x01;							//サービス数(今のところ、１つ)
-		s_CommandBuf[10] = NfcPcd.l16((short)opt[0]);	//Service Code List(upper)
-		s_CommandBuf[11] = NfcPcd.h16((short)opt[0]);	//Service Code List(lower)
-		s_CommandBuf[12] = (byte)blockNum;				//ブロック数
-		for(int i=0; i<blockNum; i++) {
-			short blist = create_blocklist2((short)(blockNo[i] & 0xffff));
-			s_CommandBuf[13 + i*2] = NfcPcd.h16(blist);
-			s_CommandBuf[14 + i*2] = NfcPcd.l16(blist);
-		}
-		NfcPcd.MemCpy(s_CommandBuf, buf, NfcPcd.SIZE_BLOCK * blockNum, 13 + blockNum*2, 0);
-		boolean ret = NfcPcd.communicateThruEx(
-							s_CommandBuf, 13 + blockNum*2 + NfcPcd.SIZE_BLOCK * blockNum,
-							s_ResponseBuf, len);
-		if (!ret || (s_ResponseBuf[0] != s_CommandBuf[0]+1)
-		  || !NfcPcd.MemCmp(s_ResponseBuf, id.Id, id.Length, 1, 0)
-		  || (s_ResponseBuf[9] != 0x00)
-		  || (s_ResponseBuf[10] != 0x00)) {
-			Log.e(TAG, "write : ret=" + ret);
+		int top = 0;
+		while(top < blockNum) {
+			final int num = fitBlocks(null, blockNo, top, blockNum - top, max, NfcPcd.SIZE_BLOCK);
+			cmd[0] = 0x08;
+			NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+			final int len = setBlockList(cmd, 9, null, opt[0], blockNo, top, num);
+			NfcPcd.MemCpy(cmd, buf, NfcPcd.SIZE_BLOCK * num, len, top * NfcPcd.SIZE_BLOCK);
+			ByteBuffer res = NfcPcd.communicateThruExView(s,
+								NfcPcd.felicaTimeout(id, NfcPcd.PMM_WRITE, num),
+								cmd, len + NfcPcd.SIZE_BLOCK * num);
+			if (!checkResponse(res, cmd[0], id)) {
+				Log.e(TAG, "write : ret=" + (res != null));
+				return false;
+			}
+			writeCache(s, null, opt[0], blockNo, top, num, buf, top * NfcPcd.SIZE_BLOCK);
+			top += num;
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean write(byte[] buf, int[] blockNo, int blockNum, int[] opt) {
+		return write(NfcPcd.getSession(), buf, blockNo, blockNum, opt);
+	}
+
+	/**
+	 * read from card(複数サービス)
+	 *
+	 * 一覧のブロックをまとめて1つのRead Without Encryptionで読む。
+	 * カードの上限(#setMaxBlocks())やサービス数を超える分だけ、複数回に分ける。
+	 * 上限が分からないカードがブロック数不正を返したら、読めるブロック数を二分探索して読み直す。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	list		読むブロックの一覧
+	 * @param[out]	buf			read buffer(16byte * list.size()、一覧の順)
+	 * @return		true		成功
+	 */
+	public boolean read(PcdSession s, BlockList list, byte[] buf) {
+		if(buf.length < list.mNum * NfcPcd.SIZE_BLOCK) {
+			Log.e(TAG, "less read buffer");
+			return false;
+		}
+		if(readCache(s, list.mSvCode, 0, list.mBlockNo, 0, list.mNum, buf, 0)) {
+			return true;
+		}
+		return readList(s, list, buf);
+	}
+
+	public boolean read(BlockList list, byte[] buf) {
+		return read(NfcPcd.getSession(), list, buf);
+	}
+
+	/**
+	 * write to card(複数サービス)
+	 *
+	 * 一覧のブロックをまとめて1つのWrite Without Encryptionで書く。
+	 * カードの上限(#setMaxBlocks())やサービス数を超える分だけ、複数回に分ける。
+	 * 途中で失敗した場合、それより前のコマンドで書いた分は書かれたままになる。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	list		書くブロックの一覧
+	 * @param[in]	buf			write buffer(16byte * list.size()、一覧の順)
+	 * @return		true		成功
+	 */
+	public boolean write(PcdSession s, BlockList list, byte[] buf) {
+		if(buf.length < list.mNum * NfcPcd.SIZE_BLOCK) {
+			Log.e(TAG, "less write buffer");
+			return false;
+		}
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+		final int max = maxBlocks(s, true);
+
+		int top = 0;
+		while(top < list.mNum) {
+			final int num = fitBlocks(list.mSvCode, list.mBlockNo, top, list.mNum - top, max, NfcPcd.SIZE_BLOCK);
+			cmd[0] = 0x08;
+			NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+			final int len = setBlockList(cmd, 9, list.mSvCode, 0, list.mBlockNo, top, num);
+			NfcPcd.MemCpy(cmd, buf, NfcPcd.SIZE_BLOCK * num, len, top * NfcPcd.SIZE_BLOCK);
+			ByteBuffer res = NfcPcd.communicateThruExView(s,
+								NfcPcd.felicaTimeout(id, NfcPcd.PMM_WRITE, num),
+								cmd, len + NfcPcd.SIZE_BLOCK * num);
+			if (!checkResponse(res, cmd[0], id)) {
+				Log.e(TAG, "write : ret=" + (res != null));
+				return false;
+			}
+			writeCache(s, list.mSvCode, 0, list.mBlockNo, top, num, buf, top * NfcPcd.SIZE_BLOCK);
+			top += num;
+		}
+
+		return true;
+	}
+
+	public boolean write(BlockList list, byte[] buf) {
+		return write(NfcPcd.getSession(), list, buf);
+	}
+
+	/**
+	 * 一覧のブロックをカードから読む(キャッシュは見ない)
+	 */
+	private static boolean readList(PcdSession s, BlockList list, byte[] buf) {
+		final ReadLimit limit = new ReadLimit(maxBlocks(s, false));
+
+		int top = 0;
+		while(top < list.mNum) {
+			final int num = fitBlocks(list.mSvCode, list.mBlockNo, top, list.mNum - top, limit.max, 0);
+			final int st = readBlocks(s, list.mSvCode, 0, list.mBlockNo, top, num,
+							buf, top * NfcPcd.SIZE_BLOCK);
+			if(isBlockNumError(st) && limit.rejected(num)) {
+				continue;
+			}
+			if(st != RES_OK) {
+				Log.e(TAG, "read : st=" + Integer.toHexString(st));
+				return false;
+			}
+			limit.accepted(num);
+			top += num;
+		}
+
+		return true;
+	}
+
+	/**
+	 * 一覧を読む/書くのに必要なコマンド数
+	 */
+	private static int countCommands(PcdSession s, BlockList list, boolean write) {
+		final int max = maxBlocks(s, write);
+		final int dataLen = write ? NfcPcd.SIZE_BLOCK : 0;
+		int cnt = 0;
+		int top = 0;
+		while(top < list.mNum) {
+			top += fitBlocks(list.mSvCode, list.mBlockNo, top, list.mNum - top, max, dataLen);
+			cnt++;
+		}
+		return cnt;
+	}
+
+	/**
+	 * カードの内容をimageに合わせる
+	 *
+	 * キャッシュ(#BlockCache)にある内容と比べて、違うブロックだけをまとめて書き、
+	 * 書いたブロックをまとめて読み直して確かめる。
+	 * キャッシュにないブロックは、まとめて読んで比べる方がコマンド数が少なければ読み、
+	 * そうでなければ違うものとして書く。
+	 * 書いた値がそのまま読めないブロック(FeliCa Liteのシステムブロック、ランダムでないサービス)は、
+	 * 比べずに書き、確かめもしない。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	list		ブロックの一覧
+	 * @param[in]	image		書きたい内容(16byte * list.size()、一覧の順)
+	 * @return		書いたブロック数(0:全て同じだった / -1:失敗)
+	 */
+	public int sync(PcdSession s, BlockList list, byte[] image) {
+		if(image.length < list.mNum * NfcPcd.SIZE_BLOCK) {
+			Log.e(TAG, "less image buffer");
+			return -1;
+		}
+		final NfcPcd.NfcId id = s.nfcId;
+		final BlockCache cache = s.blockCache;
+		final byte[] cur = new byte[list.mNum * NfcPcd.SIZE_BLOCK];
+		final boolean[] dirty = new boolean[list.mNum];
+
+		//分からないブロック
+		BlockList unknown = new BlockList(list.mNum);
+		int[] unknownIdx = new int[list.mNum];
+		int hit = 0;
+		for(int i=0; i<list.mNum; i++) {
+			final int sv = list.mSvCode[i];
+			final int bno = list.mBlockNo[i];
+			final int pos = i * NfcPcd.SIZE_BLOCK;
+			if(!readsBack(id, sv, bno)) {
+				dirty[i] = true;
+			} else if(cache.isEnabled() && cacheable(id, bno) && cache.get(id, sv, bno, cur, pos)) {
+				dirty[i] = !sameBlock(cur, pos, image, pos);
+				hit++;
+			} else {
+				unknownIdx[unknown.mNum] = i;
+				unknown.add(sv, bno);
+			}
+		}
+		if(cache.isEnabled()) {
+			cache.hit(hit);
+		}
+		if(unknown.mNum > 0) {
+			if(countCommands(s, unknown, false) < countCommands(s, unknown, true)) {
+				if(!readList(s, unknown, cur)) {
+					return -1;
+				}
+				for(int i=0; i<unknown.mNum; i++) {
+					dirty[unknownIdx[i]] = !sameBlock(cur, i * NfcPcd.SIZE_BLOCK,
+											image, unknownIdx[i] * NfcPcd.SIZE_BLOCK);
+				}
+			} else {
+				for(int i=0; i<unknown.mNum; i++) {
+					dirty[unknownIdx[i]] = true;
+				}
+			}
+		}
+
+		//書く
+		BlockList wlist = new BlockList(list.mNum);
+		for(int i=0; i<list.mNum; i++) {
+			if(dirty[i]) {
+				NfcPcd.MemCpy(cur, image, NfcPcd.SIZE_BLOCK,
+							wlist.mNum * NfcPcd.SIZE_BLOCK, i * NfcPcd.SIZE_BLOCK);
+				wlist.add(list.mSvCode[i], list.mBlockNo[i]);
+			}
+		}
+		if(wlist.mNum == 0) {
+			return 0;
+		}
+		if(!write(s, wlist, cur)) {
+			return -1;
+		}
+
+		//確かめる(書いたデータはcurの先頭からwlistの順)
+		BlockList vlist = new BlockList(wlist.mNum);
+		int[] vIdx = new int[wlist.mNum];
+		for(int i=0; i<wlist.mNum; i++) {
+			if(readsBack(id, wlist.mSvCode[i], wlist.mBlockNo[i])) {
+				vIdx[vlist.mNum] = i;
+				vlist.add(wlist.mSvCode[i], wlist.mBlockNo[i]);
+			}
+		}
+		if(vlist.mNum > 0) {
+			final byte[] chk = new byte[vlist.mNum * NfcPcd.SIZE_BLOCK];
+			if(!readList(s, vlist, chk)) {
+				return -1;
+			}
+			for(int i=0; i<vlist.mNum; i++) {
+				if(!sameBlock(chk, i * NfcPcd.SIZE_BLOCK, cur, vIdx[i] * NfcPcd.SIZE_BLOCK)) {
+					Log.e(TAG, "sync : verify blk=" + vlist.mBlockNo[i]);
+					return -1;
+				}
+			}
+		}
+		return wlist.mNum;
+	}
+
+	public int sync(BlockList list, byte[] image) {
+		return sync(NfcPcd.getSession(), list, image);
+	}
+
+	private static boolean sameBlock(byte[] a, int aPos, byte[] b, int bPos) {
+		for(int i=0; i<NfcPcd.SIZE_BLOCK; i++) {
+			if(a[aPos + i] != b[bPos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * read from card(連続したブロック)
+	 *
+	 * first～first+num-1を、カードの上限いっぱいのブロック数ずつ読み、bufに順に書き込む。
+	 * 上限が分からないカードがブロック数不正を返したら、読めるブロック数を二分探索して読み直す。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	svCode		サービスコード
+	 * @param[in]	first		先頭のブロック番号
+	 * @param[in]	num			ブロック数
+	 * @param[out]	buf			read buffer(16byte * num)
+	 * @param[in]	offset		bufの書込み開始位置
+	 * @return		true		成功
+	 */
+	public boolean readRange(PcdSession s, int svCode, int first, int num, byte[] buf, int offset) {
+		if(buf.length < offset + num * NfcPcd.SIZE_BLOCK) {
+			Log.e(TAG, "less read buffer");
+			return false;
+		}
+		if((first < 0) || (num < 0) || (first + num - 1 > MAX_BLOCKNO3)) {
+			Log.e(TAG, "readRange : block number");
+			return false;
+		}
+		if(readCache(s, null, svCode, null, first, num, buf, offset)) {
+			return true;
+		}
+		final ReadLimit limit = new ReadLimit(maxBlocks(s, false));
+		int pos = 0;
+		while(pos < num) {
+			final int n = fitBlocks(null, null, first + pos, num - pos, limit.max, 0);
+			final int st = readBlocks(s, null, svCode, null, first + pos, n,
+							buf, offset + pos * NfcPcd.SIZE_BLOCK);
+			if(isBlockNumError(st) && limit.rejected(n)) {
+				continue;
+			}
+			if(st != RES_OK) {
+				Log.e(TAG, "readRange : st=" + Integer.toHexString(st));
+				return false;
+			}
+			limit.accepted(n);
+			pos += n;
+		}
+		return true;
+	}
+
+	public boolean readRange(int svCode, int first, int num, byte[] buf, int offset) {
+		return readRange(NfcPcd.getSession(), svCode, first, num, buf, offset);
+	}
+
+	/**
+	 * サービスの全ブロックを読む
+	 *
+	 * ブロック0から、カードの上限いっぱいのブロック数ずつ、ブロック番号不正になるまで読む。
+	 * 最後の1回だけ、読めるブロック数を二分探索する。
+	 * 上限が分からないカードがブロック数不正を返したら、1コマンドのブロック数も二分探索する。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	svCode		サービスコード
+	 * @param[out]	buf			read buffer(一杯になったらそこで終わる)
+	 * @return		読めたブロック数(-1:通信失敗)
+	 */
+	public int dump(PcdSession s, int svCode, byte[] buf) {
+		final int cap = Math.min(buf.length / NfcPcd.SIZE_BLOCK, MAX_BLOCKNO3 + 1);
+		final ReadLimit limit = new ReadLimit(maxBlocks(s, false));
+		int top = 0;
+		while(top < cap) {
+			final int n = fitBlocks(null, null, top, cap - top, limit.max, 0);
+			final int st = readBlocks(s, null, svCode, null, top, n, buf, top * NfcPcd.SIZE_BLOCK);
+			if(st == RES_OK) {
+				limit.accepted(n);
+				top += n;
+				continue;
+			}
+			if(st == RES_NONE) {
+				Log.e(TAG, "dump : no response");
+				return -1;
+			}
+			if(isBlockNumError(st) && limit.rejected(n)) {
+				continue;
+			}
+
+			//この中に最後のブロックがある
+			int lo = 0;
+			int hi = n - 1;
+			while(lo < hi) {
+				final int mid = (lo + hi + 1) / 2;
+				final int st2 = readBlocks(s, null, svCode, null, top, mid, buf, top * NfcPcd.SIZE_BLOCK);
+				if(st2 == RES_OK) {
+					lo = mid;
+				} else if(st2 == RES_NONE) {
+					Log.e(TAG, "dump : no response");
+					return -1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			//失敗した読み込みはbufを書き換えないので、最後に成功した読み込み(lo個)が残っている
+			top += lo;
+			break;
+		}
+		return top;
+	}
+
+	public int dump(int svCode, byte[] buf) {
+		return dump(NfcPcd.getSession(), svCode, buf);
+	}
+
+	/**
+	 * Request Service
+	 *
+	 * エリア/サービスの有無と鍵バージョンを得る。読み書きを試して失敗を待つより速い。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	nodeCode	エリアコード/サービスコード
+	 * @param[in]	num			ノード数(1～#MAX_NODE)
+	 * @param[out]	keyVer		鍵バージョン(存在しないノードは#KEYVER_NONE)
+	 * @return		true		成功
+	 */
+	public boolean requestService(PcdSession s, int[] nodeCode, int num, int[] keyVer) {
+		if((num < 1) || (num > MAX_NODE)) {
+			Log.e(TAG, "requestService : num");
 			return false;
 		}
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+
+		cmd[0] = 0x02;
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		cmd[9] = (byte)num;						//ノード数
+		for(int i=0; i<num; i++) {
+			cmd[10 + i*2] = NfcPcd.l16((short)nodeCode[i]);		//Node Code List(lower)
+			cmd[11 + i*2] = NfcPcd.h16((short)nodeCode[i]);		//Node Code List(upper)
+		}
+		ByteBuffer res = NfcPcd.communicateThruExView(s,
+							NfcPcd.felicaTimeout(id, NfcPcd.PMM_REQ_SERVICE, num),
+							cmd, 10 + num*2);
+		if(!checkHeader(res, cmd[0], id, 10 + num*2)
+		  || ((res.get(res.position() + 9) & 0xff) != num)) {
+			Log.e(TAG, "requestService : ret=" + (res != null));
+			return false;
+		}
+		final int top = res.position() + 10;
+		for(int i=0; i<num; i++) {
+			keyVer[i] = NfcPcd.hl16(res.get(top + 1 + i*2), res.get(top + i*2)) & 0xffff;
+		}
 
 		return true;
 	}
+
+	public boolean requestService(int[] nodeCode, int num, int[] keyVer) {
+		return requestService(NfcPcd.getSession(), nodeCode, num, keyVer);
+	}
+
+	/**
+	 * Request Response
+	 *
+	 * カードがまだ読み取り範囲にあるかを、最短の1往復で確かめる。
+	 *
+	 * @param[in]	s			セッション
+	 * @return		カードのモード(0～3)。応答がなければ-1
+	 */
+	public int requestResponse(PcdSession s) {
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+
+		cmd[0] = 0x04;
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		ByteBuffer res = NfcPcd.communicateThruExView(s,
+							NfcPcd.felicaTimeout(id, NfcPcd.PMM_REQ_RESPONSE, 1),
+							cmd, 9);
+		if(!checkHeader(res, cmd[0], id, 10)) {
+			Log.v(TAG, "requestResponse : no response");
+			return -1;
+		}
+		return res.get(res.position() + 9) & 0xff;
+	}
+
+	public int requestResponse() {
+		return requestResponse(NfcPcd.getSession());
+	}
+
+	/**
+	 * Request System Code
+	 *
+	 * カードにあるシステムのシステムコードを得る。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[out]	sysCode		システムコード(カードにある数だけ、足りなければ入るだけ)
+	 * @return		カードにあるシステム数(失敗時は-1)
+	 */
+	public int requestSystemCode(PcdSession s, int[] sysCode) {
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+
+		cmd[0] = 0x0c;
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		ByteBuffer res = NfcPcd.communicateThruExView(s,
+							NfcPcd.felicaTimeout(id, NfcPcd.PMM_OTHER, 1),
+							cmd, 9);
+		if(!checkHeader(res, cmd[0], id, 10)) {
+			Log.e(TAG, "requestSystemCode : ret=" + (res != null));
+			return -1;
+		}
+		final int top = res.position();
+		final int num = res.get(top + 9) & 0xff;
+		if(res.remaining() < 10 + num * 2) {
+			Log.e(TAG, "requestSystemCode : length");
+			return -1;
+		}
+		for(int i=0; (i<num) && (i<sysCode.length); i++) {
+			//システムコードはビッグエンディアン
+			sysCode[i] = NfcPcd.hl16(res.get(top + 10 + i*2), res.get(top + 11 + i*2)) & 0xffff;
+		}
+		return num;
+	}
+
+	public int requestSystemCode(int[] sysCode) {
+		return requestSystemCode(NfcPcd.getSession(), sysCode);
+	}
+
+	/**
+	 * Search Service Code
+	 *
+	 * 捕捉中のシステムにあるエリア/サービスを、index番目から1つずつ得る。
+	 * 0xffffが返ったら終わり。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	index		何番目か(0～)
+	 * @param[out]	areaEnd		エリアだった場合は[0]にエンドコード(サービスなら-1)。null可
+	 * @return		エリアコード/サービスコード(0xffff:終わり、-1:失敗)
+	 */
+	public int searchServiceCode(PcdSession s, int index, int[] areaEnd) {
+		final NfcPcd.NfcId id = s.nfcId;
+		final byte[] cmd = s.cmdBuf;
+
+		cmd[0] = 0x0a;
+		NfcPcd.MemCpy(cmd, id.Id, id.Length, 1, 0);
+		cmd[9] = NfcPcd.l16((short)index);
+		cmd[10] = NfcPcd.h16((short)index);
+		ByteBuffer res = NfcPcd.communicateThruExView(s,
+							NfcPcd.felicaTimeout(id, NfcPcd.PMM_OTHER, 1),
+							cmd, 11);
+		if(!checkHeader(res, cmd[0], id, 11)) {
+			Log.e(TAG, "searchServiceCode : ret=" + (res != null));
+			return -1;
+		}
+		final int top = res.position();
+		final int code = NfcPcd.hl16(res.get(top + 10), res.get(top + 9)) & 0xffff;
+		if(areaEnd != null) {
+			//エリアならエンドコードが続く
+			areaEnd[0] = (res.remaining() >= 13)
+						? NfcPcd.hl16(res.get(top + 12), res.get(top + 11)) & 0xffff : -1;
+		}
+		return code;
+	}
+
+	public int searchServiceCode(int index, int[] areaEnd) {
+		return searchServiceCode(NfcPcd.getSession(), index, areaEnd);
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	BlockList
+	 * @brief	読み書きするブロックの一覧
+	 *
+	 * (サービスコード, ブロック番号)を読み書きする順に並べたもの。
+	 * 同じサービスのブロックが離れていてもよい。clear()して使い回せる。
+	 *
+	 * @code
+	 * NfcF.BlockList list = new NfcF.BlockList(32);
+	 * list.add(0x090f, 0, 10);		// 履歴
+	 * list.add(0x008b, 0);			// 残高
+	 * NfcF.getInstance().read(s, list, buf);
+	 * @endcode
+	 */
+	public static final class BlockList {
+		final int[] mSvCode;
+		final int[] mBlockNo;
+		int mNum = 0;
+
+		/**
+		 * @param[in]	capacity	最大ブロック数
+		 */
+		public BlockList(int capacity) {
+			mSvCode = new int[capacity];
+			mBlockNo = new int[capacity];
+		}
+
+		/**
+		 * ブロック追加
+		 *
+		 * @param[in]	svCode		サービスコード
+		 * @param[in]	blockNo		ブロック番号(0～65535)
+		 * @return		false		一杯、またはブロック番号が範囲外
+		 */
+		public boolean add(int svCode, int blockNo) {
+			if(!isValidBlockNo(blockNo)) {
+				Log.e(TAG, "add : block number");
+				return false;
+			}
+			if(mNum >= mSvCode.length) {
+				return false;
+			}
+			mSvCode[mNum] = svCode & 0xffff;
+			mBlockNo[mNum] = blockNo;
+			mNum++;
+			return true;
+		}
+
+		/**
+		 * 連続したブロック追加
+		 *
+		 * @param[in]	svCode		サービスコード
+		 * @param[in]	blockNo		先頭のブロック番号(0～65535)
+		 * @param[in]	num			ブロック数
+		 * @return		false		一杯、またはブロック番号が範囲外(それまでの分は追加される)
+		 */
+		public boolean add(int svCode, int blockNo, int num) {
+			for(int i=0; i<num; i++) {
+				if(!add(svCode, blockNo + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public int size() {
+			return mNum;
+		}
+
+		public int getServiceCode(int index) {
+			return mSvCode[index];
+		}
+
+		public int getBlockNo(int index) {
+			return mBlockNo[index];
+		}
+
+		public void clear() {
+			mNum = 0;
+		}
+	}
 }
@@ -1,17 +1,20 @@
 package com.blogpost.hiro99ma.pcd;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import com.blogpost.hiro99ma.pcd.NfcF.SysCode;
+import com.blogpost.hiro99ma.pcd.PcdStats.Failure;
+import com.blogpost.hiro99ma.pcd.PcdStats.Phase;
 
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
@@ -23,6 +26,9 @@ import android.util.Log;
  * @defgroup	gp_NfcPcd	NfcPcdクラス
  *
  * NFCのPCD(Proximity Card Device)にアクセスするPHY部
+ *
+ * 通信状態はPcdSessionが持つ。PcdSessionを引数に取らないメソッドは、
+ * init()/open()で開いたデフォルトセッションを使う。
  */
 public final class NfcPcd {
 
@@ -37,15 +43,29 @@ public final class NfcPcd {
 		UNKNOWN,
 	}
 
-	public static final int SIZE_CMDBUF = 254;
-	public static final int SIZE_RESBUF = 254;
+	/// カードコマンドの最大長(InDataExchange : 拡張フレームのデータ長 - 3)
+	public static final int SIZE_CMDBUF = PcdFrame.MAX_DATA - 3;
+	public static final int SIZE_RESBUF = PcdFrame.MAX_DATA - 3;
+	/// FeliCaコマンドの最大長(LENの1byteを除く)
+	public static final int SIZE_FELICA_CMD = 254;
 
 	public static final int SIZE_NFCID2 = 8;
+	public static final int SIZE_PMM = 8;
 	public static final int SIZE_NFCID3 = 10;
 	public static final int SIZE_NFCIDMAX = 12;
+	/// InListPassiveTargetで一度に捕捉できるTarget数
+	public static final int MAX_TG = 2;
 
 	public static final int SIZE_BLOCK = 16;			///< block size
 
+	/// PMmの最大応答時間パラメータ位置(#felicaTimeout())
+	public static final int PMM_REQ_SERVICE = 2;		///< Request Service
+	public static final int PMM_REQ_RESPONSE = 3;		///< Request Response
+	public static final int PMM_AUTH = 4;				///< 認証
+	public static final int PMM_READ = 5;				///< Read
+	public static final int PMM_WRITE = 6;				///< Write
+	public static final int PMM_OTHER = 7;				///< その他
+
 	/// Active/Passive
 	public static final byte AP_PASSIVE = 0x01;		///< パッシブ
 	public static final byte AP_ACTIVE = 0x02;		///< アクティブ
@@ -77,19 +97,36 @@ public final class NfcPcd {
     	public NfcIdType	Type;
 		public byte		Length;
 		public String		Label;
-		//public byte		TargetNo;
+		public byte		TargetNo;		///< InListPassiveTargetのTg
     	public short		SensRes;
 		public byte		SelRes;
+		public byte[]		PMm = new byte[SIZE_PMM];		///< FeliCaのみ
 
 		public static NfcId allocate() { return new NfcId(); }
 		public void reset() {
 			Type = NfcIdType.NONE;
 			Length = -1;
 			Label = "unknown";
-			//TargetNo = -1;
+			TargetNo = 0;
 			SensRes = 0;
 			SelRes = SELRES_UNKNOWN;
 			Arrays.fill(Id, (byte)0x00);
+			Arrays.fill(PMm, (byte)0x00);
+		}
+		public void copyTo(NfcId dst) {
+			dst.Type = Type;
+			dst.Length = Length;
+			dst.Label = Label;
+			dst.TargetNo = TargetNo;
+			dst.SensRes = SensRes;
+			dst.SelRes = SelRes;
+			System.arraycopy(Id, 0, dst.Id, 0, Id.length);
+			System.arraycopy(PMm, 0, dst.PMm, 0, PMm.length);
+		}
+		/// 同じカードか(種類とIDで比べる)
+		public boolean isSame(NfcId id) {
+			return (Type == id.Type) && (Length == id.Length)
+					&& ((Length <= 0) || MemCmp(Id, id.Id, Length, 0, 0));
 		}
     }
 
@@ -98,44 +135,35 @@ public final class NfcPcd {
 	// private fields
 	///////////////////////////
 
-    private static NfcId mNfcId = NfcId.allocate();				///< NFC ID
-
-    private static byte[] mNfcId3i = new byte[SIZE_NFCID3];	///< NFCID3 for Initiator
-    private static byte[] mNfcId3t = new byte[SIZE_NFCID3];	///< NFCID3 for Target
-
-
 	private static final String TAG = "NfcPcd";
 	private static final String ACTION_USB_PERMISSION = "com.blogpost.hiro99ma.pcd.USB_PERMISSION";
 
     private static final int PASORI_VID = 0x054c;
     private static final int PASORI_PID = 0x02e1;
 
-    //timeout
+    //timeout(CommunicateThruEXのTimeoutは0.5msec単位)
 	private static final short DEFAULT_TIMEOUT = (short)(1000 * 2);
 
+    //USB bulkTransfer timeout
+	private static final int PORT_TIMEOUT = 500;
+
+	/// FeliCa応答時間の単位(256×16/fc)[nsec]
+	private static final long FELICA_T0_NSEC = 302065;
+	/// PMmから求めた時間に掛ける倍率
+	private static final int FELICA_TIMEOUT_RATE = 2;
+	/// PMmから求めた時間に足す時間(コマンド・レスポンスの転送分)[msec]
+	private static final int FELICA_TIMEOUT_MARGIN = 20;
+
     private static UsbManager mManager;
     private static UsbDevice mDevice;
-    private static UsbDeviceConnection mDeviceConnection;
-    private static UsbInterface mInterface;
-    private static UsbEndpoint mEndpointOut;
-    private static UsbEndpoint mEndpointIn;
-
-	private static final short RW_COMMAND_LEN = 265;
-	private static final short RW_RESPONSE_LEN = 265;
+    /// init()/open()で開くセッション
+    private static final PcdSession s_Default = new PcdSession();
 
 	private static byte MAINCMD = (byte)0xd4;
-	private static byte[] ACK = { 0x00, 0x00, (byte)0xff, 0x00, (byte)0xff, 0x00 };
-
-	/// PCDへの送信バッファ
-	private static byte[] s_SendBuf = new byte[RW_COMMAND_LEN];
-	/// PCDからの受信バッファ
-	private static byte[] s_RecvBuf = new byte[RW_RESPONSE_LEN];
+	private static byte[] ACK = PcdFrame.ACK;
 
 	/// コマンド開始位置
-	private static final int POS_CMD = 5;
-
-	/// カードコマンド用受信バッファ
-	private static byte[] s_ResponseBuf = new byte[RW_RESPONSE_LEN];
+	private static final int POS_CMD = PcdFrame.POS_CMD;
 
 	///
 	private static boolean mOpened = false;
@@ -158,13 +186,30 @@ public final class NfcPcd {
 	 * NFC IDオブジェクトを取得する。
 	 *
 	 * @return
+	 * @attention	次のPollingやrfOff()で書き換わる。保持する場合は#getCardId()を使う。
 	 */
 	public static NfcId getNfcId() {
-		return mNfcId;
+		return s_Default.nfcId;
+	}
+
+	/**
+	 * 捕捉中のカードのID(変更不可)を取得する。
+	 *
+	 * @return		ID(捕捉していなければnull)
+	 */
+	public static CardId getCardId() {
+		return s_Default.getCardId();
 	}
 
 	public static void setNfcId(NfcId nfcid) {
-		mNfcId = nfcid;
+		s_Default.nfcId = nfcid;
+	}
+
+	/**
+	 * init()/open()で開いたセッションを取得する。
+	 */
+	public static PcdSession getSession() {
+		return s_Default;
 	}
 
     public static IntentFilter init(Context context, UsbManager mgr) {
@@ -175,10 +220,6 @@ public final class NfcPcd {
     	boolean ret = false;
         mManager = mgr;
 
-		s_SendBuf[0] = 0x00;
-		s_SendBuf[1] = 0x00;
-		s_SendBuf[2] = (byte)0xff;
-
         IntentFilter filter = null;
 
         // check for existing devices
@@ -211,8 +252,45 @@ public final class NfcPcd {
         return filter;
     }
 
+    /**
+     * USB以外の通信路でオープンする
+     *
+     * SimPcdなど、USB Host APIを使わない通信路を使う場合に呼び出す。
+     *
+     * @param[in]	port		PCDとの通信路
+     * @retval		true		初期化成功
+     */
+    public static boolean open(IPcdPort port) {
+    	closePort();
+    	mOpened = false;
+
+    	s_Default.setPort(port);
+    	if(!open(s_Default)) {
+    		closePort();
+    		return false;
+    	}
+    	mOpened = true;
+    	return true;
+    }
+
+    /**
+     * セッションを初期化する
+     *
+     * 複数のPCDを使う場合は、PCDごとにPcdSessionを作って呼び出す。
+     *
+     * @param[in]	s			通信路を設定したセッション
+     * @retval		true		初期化成功
+     */
+    public static boolean open(PcdSession s) {
+    	if(!rfConfigInit(s)) {
+    		Log.e(TAG, "open : init fail");
+    		return false;
+    	}
+    	return true;
+    }
+
     public static void destroy() {
-    	if(mDeviceConnection != null) {
+    	if(s_Default.port != null) {
     		rfOff();
     		reset();
     	}
@@ -275,35 +353,26 @@ public final class NfcPcd {
         return null;
     }
 
+    private static void closePort() {
+    	s_Default.close();
+    	mDevice = null;
+    }
+
     private static boolean setInterface(UsbDevice device, UsbInterface intf) {
-        if (mDeviceConnection != null) {
-            if (mInterface != null) {
-                mDeviceConnection.releaseInterface(mInterface);
-                mInterface = null;
-            }
-            mDeviceConnection.close();
-            mDevice = null;
-            mDeviceConnection = null;
+        if ((device != null) && device.equals(mDevice) && (s_Default.port != null)) {
+        	//ATTACHとPERMISSIONで同じPCDが2回来る。開いたままなので初期化し直さない
+        	Log.d(TAG, "setInterface : already opened");
+        	return true;
         }
+        closePort();
 
         if (device != null && intf != null) {
-        	try {
-	            UsbDeviceConnection connection = mManager.openDevice(device);
-	            if (connection != null) {
-	                if (connection.claimInterface(intf, false)) {
-	                    mDevice = device;
-	                    mDeviceConnection = connection;
-	                    mInterface = intf;
-	                    findEndPoint(connection, intf);
-	                    rfConfigInit();
-	                    return true;
-	                } else {
-	                    connection.close();
-	                }
-	            }
-        	}
-        	catch(Exception ex) {
-        		Log.e(TAG, ex.getStackTrace().toString());
+        	IPcdPort port = openUsbPort(mManager, device, intf);
+        	if (port != null) {
+        		mDevice = device;
+        		s_Default.setPort(port);
+        		rfConfigInit(s_Default);
+        		return true;
         	}
         }
 
@@ -311,28 +380,68 @@ public final class NfcPcd {
         return false;
     }
 
+    private static IPcdPort openUsbPort(UsbManager mgr, UsbDevice device, UsbInterface intf) {
+    	try {
+    		UsbDeviceConnection connection = mgr.openDevice(device);
+    		if (connection != null) {
+    			if (connection.claimInterface(intf, false)) {
+    				return new UsbPort(connection, intf);
+    			} else {
+    				connection.close();
+    			}
+    		}
+    	}
+    	catch(Exception ex) {
+    		Log.e(TAG, ex.getStackTrace().toString());
+    	}
+    	return null;
+    }
 
-    private static void findEndPoint(UsbDeviceConnection connection, UsbInterface intf) {
-        UsbEndpoint epOut = null;
-        UsbEndpoint epIn = null;
-        // look for our bulk end points
-        for (int i = 0; i < intf.getEndpointCount(); i++) {
-            UsbEndpoint ep = intf.getEndpoint(i);
-            if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-                if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
-                    epOut = ep;
-                } else {
-                    epIn = ep;
-                }
+    /**
+     * 接続されているRC-S370をすべて開く
+     *
+     * 複数のPCDを同時に使う場合(PcdPool)に呼び出す。
+     * 許可が得られていないPCDは、permissionIntentがあれば許可を要求し、今回は開かない。
+     * init()で開いたPCDは含まない。
+     *
+     * @param[in]	mgr					UsbManager
+     * @param[in]	permissionIntent	許可要求の結果を受け取るIntent(null可)
+     * @return		PCDごとのセッション
+     */
+    public static List<PcdSession> openAll(UsbManager mgr, PendingIntent permissionIntent) {
+    	List<PcdSession> sessions = new ArrayList<PcdSession>();
+
+        for (UsbDevice device : mgr.getDeviceList().values()) {
+        	if (device.equals(mDevice)) {
+        		continue;
+        	}
+            UsbInterface intf = findInterface(device);
+            if (intf == null) {
+            	continue;
+            }
+            if (!mgr.hasPermission(device)) {
+            	if (permissionIntent != null) {
+            		mgr.requestPermission(device, permissionIntent);
+            	}
+            	continue;
+            }
+            IPcdPort port = openUsbPort(mgr, device, intf);
+            if (port == null) {
+            	continue;
+            }
+            PcdSession s = new PcdSession(port);
+            if (open(s)) {
+            	Log.d(TAG, "openAll : " + device.getDeviceName());
+            	sessions.add(s);
+            } else {
+            	s.close();
             }
         }
-        if (epOut == null || epIn == null) {
-            throw new IllegalArgumentException("not all endpoints found");
-        }
-        mEndpointOut = epOut;
-        mEndpointIn = epIn;
+
+        return sessions;
     }
 
+
 	/**
 	 * @brief	上位8bit取得
 	 *
@@ -363,70 +472,86 @@ public final class NfcPcd {
 
 	////////////////////////////////////////////////////
 
-	static boolean sendCmd(
+	static boolean sendCmd(PcdSession s,
 			byte[] pCommand, int CommandLen,
 			byte[] pResponse, short[] pResponseLen) {
-		return sendCmd(pCommand, CommandLen, pResponse, pResponseLen, true);
+		return sendCmd(s, pCommand, CommandLen, pResponse, pResponseLen, true, PORT_TIMEOUT);
+	}
+
+	static boolean sendCmd(PcdSession s,
+			byte[] pCommand, int CommandLen,
+			byte[] pResponse, short[] pResponseLen,
+			boolean bRecv) {
+		return sendCmd(s, pCommand, CommandLen, pResponse, pResponseLen, bRecv, PORT_TIMEOUT);
 	}
 
 	/**
 	 * [RC-S620/S]パケット送受信
 	 *
-	 * @param[in]	pCommand		送信するコマンド
+	 * @param[in]	s				セッション
+	 * @param[in]	pCommand		送信するコマンド(nullの場合はs.sendBufに書かれている)
 	 * @param[in]	CommandLen		pCommandの長さ
-	 * @param[out]	pResponse		レスポンス
+	 * @param[out]	pResponse		レスポンス(nullの場合はs.recvBufを直接参照する)
 	 * @param[out]	pResponseLen	pResponseの長さ
+	 * @param[in]	bRecv			falseの場合、レスポンスの失敗を無視する
+	 * @param[in]	RecvTimeout		レスポンス待ち時間[msec](PCDのタイムアウト以上にすること)
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	static boolean sendCmd(
+	static boolean sendCmd(PcdSession s,
 				byte[] pCommand, int CommandLen,
 				byte[] pResponse, short[] pResponseLen,
-				boolean bRecv)
+				boolean bRecv, int RecvTimeout)
 	{
 		pResponseLen[0] = 0;
-		short send_len = 0;
+		if(CommandLen > PcdFrame.MAX_DATA) {
+			Log.e(TAG, "sendCmd : too long " + CommandLen);
+			return false;
+		}
 
 		//パケット送信
-		byte dcs = 0;
-		s_SendBuf[3] = (byte)CommandLen;
-		s_SendBuf[4] = (byte)(0 - s_SendBuf[3]);
-		send_len = 5;
 		if(pCommand != null) {
-			dcs = _calc_dcs(pCommand, CommandLen);
-			for(int i=0; i<CommandLen; i++) {
-				s_SendBuf[send_len + i] = pCommand[i];
-			}
-		} else {
-			dcs = _calc_dcs(s_SendBuf, CommandLen, POS_CMD);
+			System.arraycopy(pCommand, 0, s.sendBuf, POS_CMD, CommandLen);
+		}
+		final byte cmd_code = s.sendBuf[POS_CMD+1];
+		int send_len = s.txFrame.encode(CommandLen);
+		if(cmd_code == 0x18) {
+			//Reset
+			s.rf.clear();
+		} else if(cmd_code != 0x32) {
+			//RFConfiguration以外は搬送波を出すことがある
+			s.rf.forget(RfProfile.ITEM_FIELD);
 		}
 
-		send_len += CommandLen;
-		s_SendBuf[send_len++] = dcs;
-		s_SendBuf[send_len++] = 0x00;
-
-//		Log.d(TAG, "------------");
-//		for(int i=0; i<send_len; i++) {
-//			Log.d(TAG, "[W] " + String.format("%02x", s_SendBuf[i] & 0xff));
-//		}
-//		Log.d(TAG, "------------");
-
-		if(_port_write(s_SendBuf, send_len) != send_len) {
+		final long t_start = System.nanoTime();
+		if(_port_write(s, s.sendBuf, send_len) != send_len) {
 			Log.e(TAG, "write error.");
+			s.stats.fail(cmd_code, Failure.WRITE);
 			return false;
 		}
+		final long t_write = System.nanoTime();
+		s.stats.record(cmd_code, Phase.WRITE, t_write - t_start);
 
 		//ACK受信
-		short ret_len = _port_read(s_RecvBuf, s_RecvBuf.length);
-		if((ret_len != ACK.length) || !MemCmp(s_RecvBuf, ACK, ACK.length, 0, 0)) {
+		short ret_len = _port_read(s, s.recvBuf, s.recvBuf.length, PORT_TIMEOUT);
+		if((ret_len > ACK.length) || ((ret_len > 0) && (s.recvBuf[0] != 0x00))) {
+			ret_len = (short)s.rxFrame.resync(ret_len);
+		}
+		if((ret_len != ACK.length) || !MemCmp(s.recvBuf, ACK, ACK.length, 0, 0)) {
 			Log.e(TAG, "sendCmd 0: ret " + ret_len);
-			sendAck();
+			s.stats.fail(cmd_code, Failure.ACK);
+			sendAck(s, cmd_code);
 			return false;
 		}
+		final long t_ack = System.nanoTime();
+		s.stats.record(cmd_code, Phase.ACK, t_ack - t_write);
 
 		// レスポンス
-		boolean rret = recvResp(pResponse, pResponseLen, s_SendBuf[POS_CMD+1]);
+		boolean rret = recvResp(s, pResponse, pResponseLen, cmd_code, RecvTimeout);
+		if(rret) {
+			s.stats.record(cmd_code, Phase.RESPONSE, System.nanoTime() - t_ack);
+		}
 		return (bRecv) ? rret : true;
 	}
 
@@ -434,77 +559,77 @@ public final class NfcPcd {
 	/**
 	 * [RC-S620/S]レスポンス受信
 	 *
-	 * @param[out]	pResponse		レスポンス
+	 * レスポンスはs.recvBufの#POS_CMDから置かれる。
+	 *
+	 * @param[out]	pResponse		レスポンス(null可)
 	 * @param[out]	pResponseLen	pResponseの長さ
 	 * @param[in]	CmdCode			送信コマンド(省略可)
+	 * @param[in]	Timeout			待ち時間[msec]
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	private static boolean recvResp(byte[] pResponse, short[] pResponseLen, byte CmdCode/*=0xff*/)
+	private static boolean recvResp(PcdSession s, byte[] pResponse, short[] pResponseLen, byte CmdCode/*=0xff*/, int Timeout)
 	{
-		short ret_len = _port_read(s_RecvBuf, s_RecvBuf.length);
-
-//		Log.d(TAG, "------------");
-//		for(int i=0; i<ret_len; i++) {
-//			Log.d(TAG, "[R] " + String.format("%02x", s_RecvBuf[i] & 0xff));
-//		}
-//		Log.d(TAG, "------------");
+		short ret_len = _port_read(s, s.recvBuf, s.recvBuf.length, Timeout);
 
 		if(ret_len < 0) {
 			Log.e(TAG, "recvResp 1: ret=" + ret_len);
-			sendAck();
+			s.stats.fail(CmdCode, Failure.TIMEOUT);
+			sendAck(s, CmdCode);
 			return false;
 		}
 
-		if ((s_RecvBuf[0] != 0x00) || (s_RecvBuf[1] != 0x00) || (s_RecvBuf[2] != (byte)0xff)) {
-			Log.e(TAG, "recvResp 2");
-			return false;
-		}
-		if((s_RecvBuf[3] == 0xff) && (s_RecvBuf[4] == 0xff)) {
-			// extend frame
-//			if((ret_len != 3) || (((s_RecvBuf[0] + s_RecvBuf[1] + s_RecvBuf[2]) & 0xff) != 0)) {
-//				Log.e(TAG, "recvResp 3: ret " + ret_len);
-//				return false;
-//			}
-//			pResponseLen[0] = (short)(((short)res_buf[0] << 8) | res_buf[1]);
-		} else {
-			// normal frame
-			if((s_RecvBuf[3] + s_RecvBuf[4]) != 0) {
-				Log.e(TAG, "recvResp 4");
-				return false;
+		int len = s.rxFrame.decode(ret_len);
+		if(len == PcdFrame.EPREAMBLE) {
+			//先頭のゴミを飛ばしてやり直す
+			int rlen = s.rxFrame.resync(ret_len);
+			if(rlen > 0) {
+				len = s.rxFrame.decode(rlen);
 			}
-			pResponseLen[0] = s_RecvBuf[3];
 		}
-		if(pResponseLen[0] > RW_RESPONSE_LEN) {
-			Log.e(TAG, "recvResp 5  len " + pResponseLen[0]);
+		switch(len) {
+		case PcdFrame.EPREAMBLE:
+			Log.e(TAG, "recvResp 2");
+			s.stats.fail(CmdCode, Failure.PREAMBLE);
 			return false;
+		case PcdFrame.ELCS:
+			Log.e(TAG, "recvResp 4");
+			s.stats.fail(CmdCode, Failure.LCS);
+			return false;
+		case PcdFrame.ELEN:
+			Log.e(TAG, "recvResp 5  ret " + ret_len);
+			s.stats.fail(CmdCode, Failure.LEN);
+			return false;
+		case PcdFrame.EDCS:
+			Log.e(TAG, "recvResp 8");
+			s.stats.fail(CmdCode, Failure.DCS);
+			sendAck(s, CmdCode);
+			return false;
+		default:
+			break;
 		}
+		pResponseLen[0] = (short)len;
 
-		for(int i=0; i<pResponseLen[0]; i++) {
-			pResponse[i] = s_RecvBuf[POS_CMD+i];
-		}
-
-		if(pResponse[0] != (byte)0xd5) {
-			if((pResponseLen[0] == 1) && (pResponse[0] == 0x7f)) {
+		if(s.recvBuf[POS_CMD] != (byte)0xd5) {
+			if((len == 1) && (s.recvBuf[POS_CMD] == 0x7f)) {
 				Log.e(TAG, "recvResp 6 : Error Frame");
 			} else {
-				Log.e(TAG, "recvResp 6 :[" + pResponse[0] + "] ret_len " + pResponseLen[0]);
+				Log.e(TAG, "recvResp 6 :[" + s.recvBuf[POS_CMD] + "] ret_len " + len);
 			}
-			sendAck();
+			s.stats.fail(CmdCode, Failure.ERROR_FRAME);
+			sendAck(s, CmdCode);
 			return false;
 		}
-		if((CmdCode != (byte)0xff) && (pResponse[1] != (byte)(CmdCode+1))) {
-			Log.e(TAG, "recvResp 7 : ret " + pResponse[1]);
-			sendAck();
+		if((CmdCode != (byte)0xff) && (s.recvBuf[POS_CMD+1] != (byte)(CmdCode+1))) {
+			Log.e(TAG, "recvResp 7 : ret " + s.recvBuf[POS_CMD+1]);
+			s.stats.fail(CmdCode, Failure.CMD);
+			sendAck(s, CmdCode);
 			return false;
 		}
 
-		byte dcs = _calc_dcs(pResponse, pResponseLen[0]);
-		if((s_RecvBuf[POS_CMD+pResponseLen[0]] != dcs) || (s_RecvBuf[POS_CMD+pResponseLen[0]+1] != 0x00)) {
-			Log.e(TAG, "recvResp 8");
-			sendAck();
-			return false;
+		if(pResponse != null) {
+			System.arraycopy(s.recvBuf, POS_CMD, pResponse, 0, len);
 		}
 
 		return true;
@@ -513,47 +638,40 @@ public final class NfcPcd {
 
 	/**
 	 * ACK送信
+	 *
+	 * 処理中のコマンドを中断し、PCDが静かになるまで読み捨てる。
 	 */
-	private static void sendAck() {
-		_port_write(ACK, ACK.length);
-
-		// wait 1ms
-		try {
-			Thread.sleep(1000);
-		}
-		catch(Exception ex) {
+	private static void sendAck(PcdSession s, byte CmdCode) {
+		if(!s.recovery.recover(s.port, s.recvBuf)) {
+			Log.e(TAG, "sendAck : recovery fail " + s.recovery.getLastLatency() + "ns");
+			s.stats.fail(CmdCode, Failure.RECOVERY);
 		}
 	}
 
 	/**
-	 * DCS計算
+	 * 通信エラーからの復帰状況
 	 *
-	 * @param[in]		data		計算元データ
-	 * @param[in]		len			dataの長さ
-	 *
-	 * @return			DCS値
+	 * 復帰回数や復帰にかかった時間を取得できる。
 	 */
-	private static byte _calc_dcs(byte[] data, int len, int offset)
-	{
-		byte sum = 0;
-		for(short i = 0; i < len; i++) {
-			sum += data[offset + i];
-		}
-		return (byte)(0 - (sum & 0xff));
+	public static PcdRecovery getRecovery() {
+		return s_Default.recovery;
 	}
 
-	private static byte _calc_dcs(byte[] data, int len) {
-		return _calc_dcs(data, len, 0);
+	/**
+	 * コマンドごとの処理時間と失敗数
+	 */
+	public static PcdStats getStats() {
+		return s_Default.stats;
 	}
 
 	////////////////////////////////////////////////////
-	private static short _port_write(byte[] data, int len) {
-		int ret = mDeviceConnection.bulkTransfer(mEndpointOut, data, len, 500);
+	private static short _port_write(PcdSession s, byte[] data, int len) {
+		int ret = s.port.write(data, len, PORT_TIMEOUT);
     	return (short)ret;
 	}
 
-	private static short _port_read(byte[] data, int len) {
-		int ret = mDeviceConnection.bulkTransfer(mEndpointIn, data, len, 500);
+	private static short _port_read(PcdSession s, byte[] data, int len, int timeout) {
+		int ret = s.port.read(data, len, timeout);
     	return (short)ret;
 	}
 
@@ -569,8 +687,9 @@ public final class NfcPcd {
 	}
 
 	static void MemCpy(byte[] dst, byte[] src, int len, int doffset, int soffset) {
-		for(int i=0; i<len; i++) {
-			dst[doffset+i] = src[soffset+i];
+		//未捕捉のNfcIdはLength=-1なので、何もコピーしない
+		if(len > 0) {
+			System.arraycopy(src, soffset, dst, doffset, len);
 		}
 	}
 
@@ -582,84 +701,68 @@ public final class NfcPcd {
 	 * @retval	false		初期化失敗
 	 * @attention			初期化失敗時には、#rfOff()を呼び出すこと
 	 */
-	private static boolean rfConfigInit() {
+	private static boolean rfConfigInit(PcdSession s) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
-		boolean ret;
-		short[] res_len = new short[1];
-
-		// RF通信のT/O
-		final byte[] RFCONFIG1 = new byte[]{
-			MAINCMD, 0x32,
-			0x02,		// T/O
-			0x00,		// RFU
-			0x00,		// ATR_RES : no timeout
-			0x00,		// 非DEP通信時 : no timeout
-		};
-		ret = sendCmd(RFCONFIG1, RFCONFIG1.length, s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] != 2)) {
-			Log.e(TAG, "d4 32 02");
-			return false;
-		}
-
-		// Target捕捉時のRF通信リトライ回数
-		final byte[] RFCONFIG2 = new byte[]{
-			MAINCMD, 0x32,
-			0x05,		// Retry
-			0x00,		// ATR_REQ/RES : only once
-			0x00,		// PSL_REQ/RES : only once
-			0x00,		// InListPassiveTarget : only once
-		};
-		ret = sendCmd(RFCONFIG2, RFCONFIG2.length, s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] != 2)) {
-			Log.e(TAG, "d4 32 05");
-			return false;
-		}
-
-	// RF出力ONからTargetID取得コマンド送信までの追加ウェイト時間
-		final byte[] RFCONFIG3 = new byte[]{
-			MAINCMD, 0x32,
-			(byte)0x81,		// wait
-			(byte)0xb7,		// ?
-		};
-		ret = sendCmd(RFCONFIG3, RFCONFIG3.length, s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] != 2)) {
-			Log.e(TAG, "d4 32 81");
+		// RF通信のT/O、リトライ回数、ウェイト時間
+		if(!setRfProfile(s, RfProfile.DEFAULT)) {
 			return false;
 		}
 
 	// OFFにしておこう
-		ret = rfOff();
+		return rfOff(s);
+	}
 
-		return ret;
+
+	/**
+	 * RFConfiguration一式の切り替え
+	 *
+	 * PCDに設定済みの値と違う項目だけを送信する。
+	 *
+	 * @param[in]	s			セッション
+	 * @param[in]	profile		設定
+	 * @retval		true		成功
+	 * @retval		false		失敗
+	 */
+	public static boolean setRfProfile(PcdSession s, RfProfile profile) {
+		for(byte[] item : profile.items) {
+			if(!rfConfiguration(s, item, item.length)) {
+				Log.e(TAG, "setRfProfile(" + profile + ") : item " + item[0]);
+				s.rfProfile = null;
+				return false;
+			}
+		}
+		s.rfProfile = profile;
+		return true;
 	}
 
 
+	private static final byte[] RFCONFIG_RFOFF = new byte[] {
+		RfProfile.ITEM_FIELD,		// RF field
+		0x00,		// bit1 : Auto RFCA : OFF
+					// bit0 : RF ON/OFF : OFF
+	};
+
 	/**
 	 * 搬送波停止
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean rfOff() {
+	public static boolean rfOff(PcdSession s) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
-		short[] res_len = new short[1];
-		final byte[] RFCONFIG_RFOFF = new byte[] {
-			MAINCMD, 0x32,
-			0x01,		// RF field
-			0x00,		// bit1 : Auto RFCA : OFF
-						// bit0 : RF ON/OFF : OFF
-		};
-		boolean ret = sendCmd(RFCONFIG_RFOFF, RFCONFIG_RFOFF.length,
-						s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] != 2)) {
+		//止まっていれば送らない
+		boolean ret = rfConfiguration(s, RFCONFIG_RFOFF, RFCONFIG_RFOFF.length);
+		if(!ret) {
 			Log.e(TAG, "rfOff ret " + ret);
 			return false;
 		}
 
 		//搬送波停止で情報破棄
-		mNfcId.reset();
+		s.nfcId.reset();
+		s.targetNum = 0;
+		s.blockCache.clear();
 
 		return true;
 	}
@@ -668,25 +771,34 @@ public final class NfcPcd {
 	/**
 	 * RFConfiguration
 	 *
-	 * @param[in]	pCommand		送信するコマンド
+	 * PCDに設定済みの値と同じ場合は送信しない。
+	 *
+	 * @param[in]	pCommand		送信するコマンド(項目番号 + 設定値)
 	 * @param[in]	CommandLen		pCommandの長さ
 	 * @retval	true		成功
 	 * @retval	false		失敗
 	 */
-	public static boolean rfConfiguration(byte[] pCommand, int CommandLen) {
+	public static boolean rfConfiguration(PcdSession s, byte[] pCommand, int CommandLen) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = 0x32;		//RFConfiguration
+		if(s.rf.isApplied(pCommand, CommandLen)) {
+			s.rf.skipped();
+			return true;
+		}
+
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = 0x32;		//RFConfiguration
 		//memcpy(s_CommandBuf + 2, pCommand, CommandLen);
-		MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 2, 0);
+		MemCpy(s.sendBuf, pCommand, CommandLen, POS_CMD + 2, 0);
 
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, 2 + CommandLen, s_ResponseBuf, res_len);
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, null, 2 + CommandLen, null, res_len);
 		if(!ret || (res_len[0] != 2)) {
 			Log.e(TAG, "rfConfiguration ret " + ret);
+			s.rf.forget(pCommand[0]);
 			return false;
 		}
+		s.rf.applied(pCommand, CommandLen);
 
 		return true;
 	}
@@ -698,12 +810,12 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean reset() {
+	public static boolean reset(PcdSession s) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		final byte[] RESET = new byte[]{ MAINCMD, 0x18, 0x01 };
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(RESET, RESET.length, s_ResponseBuf, res_len);
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, RESET, RESET.length, null, res_len);
 		if(!ret || (res_len[0] != 2)) {
 			Log.e(TAG, "reset ret " + ret);
 		}
@@ -717,15 +829,15 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean setParameters(byte val) {
+	public static boolean setParameters(PcdSession s, byte val) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = 0x12;
-		s_SendBuf[POS_CMD + 2] = val;
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = 0x12;
+		s.sendBuf[POS_CMD + 2] = val;
 
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, 3, s_ResponseBuf, res_len);
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, null, 3, null, res_len);
 		if(!ret || (res_len[0] != 2)) {
 			Log.e(TAG, "setParam ret " + ret);
 		}
@@ -781,55 +893,83 @@ public final class NfcPcd {
 	/**
 	 * [RC-S620/S]CommunicateThruEX
 	 *
-	 * @param[in]	Timeout			タイムアウト値[msec]
+	 * @param[in]	Timeout			タイムアウト値[0.5msec](符号なし16bit)
 	 * @param[in]	pCommand		送信するコマンド
 	 * @param[in]	CommandLen		pCommandの長さ
 	 * @param[out]	pResponse		レスポンス
-	 * @param[out]	pResponseLen	pResponseの長さ
+	 * @param[out]	pResponseLen	pResponseの長さ(0～254なので、0xffでマスクして使うこと)
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 *
 	 * @note		-# #Timeoutは往復分の時間を設定すること.
+	 * 				-# FeliCaのコマンドは#felicaTimeout()で求めた値を使うとよい。
 	 */
-	public static boolean communicateThruEx(
+	public static boolean communicateThruEx(PcdSession s,
 				short Timeout,
 				byte[] pCommand, int CommandLen,
 				byte[] pResponse, byte[] pResponseLen) {
+		ByteBuffer res = communicateThruExView(s, Timeout, pCommand, CommandLen);
+		if(res == null) {
+			return false;
+		}
+		pResponseLen[0] = (byte)res.remaining();
+		res.get(pResponse, 0, res.remaining());
+
+		return true;
+	}
+
+	/**
+	 * [RC-S620/S]CommunicateThruEX(レスポンスをコピーしない)
+	 *
+	 * @param[in]	Timeout			タイムアウト値[0.5msec](符号なし16bit)
+	 * @param[in]	pCommand		送信するコマンド
+	 * @param[in]	CommandLen		pCommandの長さ
+	 *
+	 * @return		レスポンスのビュー(失敗時はnull)。
+	 * 				Statusのみの場合は1byteのStatusを返す。
+	 *
+	 * @attention	- ビューは受信バッファを直接指すため、次のコマンドを送るまでに使い終わること。
+	 */
+	public static ByteBuffer communicateThruExView(PcdSession s,
+				short Timeout,
+				byte[] pCommand, int CommandLen) {
 		//LOGD("%s : (%d)", __PRETTY_FUNCTION__, CommandLen);
+		if(CommandLen > SIZE_FELICA_CMD) {
+			Log.e(TAG, "communicateThruEx : too long " + CommandLen);
+			return null;
+		}
 
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = (byte)0xa0;		//CommunicateThruEX
-		s_SendBuf[POS_CMD + 2] = l16(Timeout);
-		s_SendBuf[POS_CMD + 3] = h16(Timeout);
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = (byte)0xa0;		//CommunicateThruEX
+		s.sendBuf[POS_CMD + 2] = l16(Timeout);
+		s.sendBuf[POS_CMD + 3] = h16(Timeout);
 		if(CommandLen != 0) {
-			s_SendBuf[POS_CMD + 4] = (byte)(CommandLen + 1);
-			MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 5, 0);
+			s.sendBuf[POS_CMD + 4] = (byte)(CommandLen + 1);
+			MemCpy(s.sendBuf, pCommand, CommandLen, POS_CMD + 5, 0);
 			CommandLen += 5;
 		} else {
 			CommandLen = 4;
 		}
 
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, CommandLen, s_ResponseBuf, res_len);
+		//PCDはTimeout後にステータスを返すので、それまでは待つ(USBの待ち時間はmsec)
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, null, CommandLen, null, res_len, true, ((Timeout & 0xffff) + 1) / 2 + PORT_TIMEOUT);
 		if(!ret || (res_len[0] < 3)) {
 			Log.e(TAG, "communicateThruEx ret " + ret);
-			return false;
+			return null;
 		}
 		if(res_len[0] == 3) {
 			//Statusを返す
-			pResponse[0] = s_ResponseBuf[2];
-			pResponseLen[0] = 1;
+			return s.rxFrame.view(2, 1);
 		} else {
 			//Statusは返さない
-			if((s_ResponseBuf[2] != 0x00) || (res_len[0] != (3 + s_ResponseBuf[3]))) {
-				return false;
+			final int len = s.recvBuf[POS_CMD + 3] & 0xff;
+			if((s.recvBuf[POS_CMD + 2] != 0x00) || (res_len[0] != (3 + len))) {
+				return null;
 			}
-			pResponseLen[0] = (byte)(s_ResponseBuf[3] - 1);
-			MemCpy(pResponse, s_ResponseBuf, pResponseLen[0], 0, 4);
+			return s.rxFrame.view(4, len - 1);
 		}
-
-		return true;
 	}
 
 	/**
@@ -843,13 +983,27 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 *
-	 * @note		-# タイムアウトは2秒
+	 * @note		-# タイムアウトは1秒
 	 */
-	public static boolean communicateThruEx(
+	public static boolean communicateThruEx(PcdSession s,
 				byte[] pCommand, int CommandLen,
 				byte[] pResponse, byte[] pResponseLen) {
-		return communicateThruEx(DEFAULT_TIMEOUT, pCommand, CommandLen, pResponse, pResponseLen);
+		return communicateThruEx(s, DEFAULT_TIMEOUT, pCommand, CommandLen, pResponse, pResponseLen);
+
+	}
 
+	/**
+	 * [RC-S620/S]CommunicateThruEX(レスポンスをコピーしない)
+	 *
+	 * @param[in]	pCommand		送信するコマンド
+	 * @param[in]	CommandLen		pCommandの長さ
+	 *
+	 * @return		レスポンスのビュー(失敗時はnull)
+	 *
+	 * @note		-# タイムアウトは1秒
+	 */
+	public static ByteBuffer communicateThruExView(PcdSession s, byte[] pCommand, int CommandLen) {
+		return communicateThruExView(s, DEFAULT_TIMEOUT, pCommand, CommandLen);
 	}
 
 	/**
@@ -863,10 +1017,10 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inDataExchange(
+	public static boolean inDataExchange(PcdSession s,
 					byte[] pCommand, int CommandLen,
 					byte[] pResponse, byte[] pResponseLen) {
-		return inDataExchange(pCommand, CommandLen, pResponse, pResponseLen, false);
+		return inDataExchange(s, pCommand, CommandLen, pResponse, pResponseLen, false);
 	}
 
 	/**
@@ -881,26 +1035,53 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inDataExchange(
+	public static boolean inDataExchange(PcdSession s,
 				byte[] pCommand, int CommandLen,
 				byte[] pResponse, byte[] pResponseLen, boolean bCoutinue) {
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = 0x40;			//InDataExchange
-		s_SendBuf[POS_CMD + 2] = 0x01;			//Tg
+		final short[] res_len = s.resLen;
+		boolean ret = inDataExchange(s, pCommand, CommandLen, pResponse, res_len, bCoutinue);
+		pResponseLen[0] = (byte)res_len[0];
+		return ret;
+	}
+
+	/**
+	 * InDataExchange(255byteを超えるAPDU向け)
+	 *
+	 * @param[in]	pCommand		送信するコマンド(～#SIZE_CMDBUF)
+	 * @param[in]	CommandLen		pCommandの長さ
+	 * @param[out]	pResponse		レスポンス(#SIZE_RESBUF以上)
+	 * @param[out]	pResponseLen	pResponseの長さ
+	 * @param[in]	bContinue		MI
+	 *
+	 * @retval		true			成功
+	 * @retval		false			失敗
+	 */
+	public static boolean inDataExchange(PcdSession s,
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, short[] pResponseLen, boolean bCoutinue) {
+		pResponseLen[0] = 0;
+		if(CommandLen > SIZE_CMDBUF) {
+			Log.e(TAG, "inDataExchange : too long " + CommandLen);
+			return false;
+		}
+
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = 0x40;			//InDataExchange
+		s.sendBuf[POS_CMD + 2] = (s.nfcId.TargetNo > 0) ? s.nfcId.TargetNo : 0x01;			//Tg
 		if(bCoutinue) {
-			s_SendBuf[POS_CMD + 2] |= 0x40;	//MI
+			s.sendBuf[POS_CMD + 2] |= 0x40;	//MI
 		}
-		MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 3, 0);
+		MemCpy(s.sendBuf, pCommand, CommandLen, POS_CMD + 3, 0);
 
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, 3 + CommandLen, s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] < 3) || (s_ResponseBuf[2] != 0x00)) {
-			Log.e(TAG, "inDataExchange ret=" + ret + " / len=" + res_len[0] + " / code=" + s_ResponseBuf[2]);
+		boolean ret = sendCmd(s, null, 3 + CommandLen, null, pResponseLen);
+		if(!ret || (pResponseLen[0] < 3) || (s.recvBuf[POS_CMD + 2] != 0x00)) {
+			Log.e(TAG, "inDataExchange ret=" + ret + " / len=" + pResponseLen[0] + " / code=" + s.recvBuf[POS_CMD + 2]);
+			pResponseLen[0] = 0;
 			return false;
 		}
 
-		pResponseLen[0] = (byte)(res_len[0] - 3);
-		MemCpy(pResponse, s_ResponseBuf, pResponseLen[0], 0, 3);
+		pResponseLen[0] -= 3;
+		MemCpy(pResponse, s.recvBuf, pResponseLen[0], 0, POS_CMD + 3);
 
 		return true;
 	}
@@ -917,25 +1098,22 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inCommunicateThru(
+	public static boolean inCommunicateThru(PcdSession s,
 				byte[] pCommand, int CommandLen,
 				byte[] pResponse, byte[] pResponseLen) {
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = 0x42;			//InCommunicateThru
-		MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 2, 0);
-
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, 2 + CommandLen, s_ResponseBuf, res_len);
-		for(int i=0; i<res_len[0]; i++) {
-			Log.d(TAG, "" + s_ResponseBuf[i]);
-		}
-		if(!ret || (res_len[0] < 3) || (s_ResponseBuf[2] != 0x00)) {
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = 0x42;			//InCommunicateThru
+		MemCpy(s.sendBuf, pCommand, CommandLen, POS_CMD + 2, 0);
+
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, null, 2 + CommandLen, null, res_len);
+		if(!ret || (res_len[0] < 3) || (s.recvBuf[POS_CMD + 2] != 0x00)) {
 			Log.e(TAG, "InCommunicateThru ret=" + ret);
 			return false;
 		}
 
 		pResponseLen[0] = (byte)(res_len[0] - 3);
-		MemCpy(pResponse, s_ResponseBuf, pResponseLen[0], 0, 3);
+		MemCpy(pResponse, s.recvBuf, pResponseLen[0], 0, POS_CMD + 3);
 
 		return true;
 	}
@@ -945,89 +1123,131 @@ public final class NfcPcd {
 	/**
 	 * InListPassiveTarget
 	 *
+	 * @param[in]	MaxTg			捕捉するTarget数(1～#MAX_TG)
 	 * @param[in]	pInitData		InListPassiveTargetの引数
 	 * @param[in]	InitLen			pInitDataの長さ
 	 * @param[out]	ppTgData		InListPassiveTargeの戻り値
 	 * @param[out]	pTgLen			*ppTgDataの長さ
 	 *
-	 * @retval		true			成功
+	 * @retval		true			成功(1つ以上捕捉した)
 	 * @retval		false			失敗
 	 */
-	static boolean inListPassiveTarget(
+	static boolean inListPassiveTarget(PcdSession s, int MaxTg,
 				byte[] pInitData, byte InitLen,
-				byte[] pTgData, byte[] pTgLen)
+				byte[] pTgData, short[] pTgLen)
 	{
 		//初期化
-		mNfcId.reset();
-
-		short[] res_len = new short[1];
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = 0x4a;				//InListPassiveTarget
-		s_SendBuf[POS_CMD + 2] = 0x01;
-		MemCpy(s_SendBuf, pInitData, InitLen, POS_CMD + 3, 0);
-
-		boolean ret = sendCmd(null, 3+InitLen, s_ResponseBuf, res_len);
-		if(!ret || s_ResponseBuf[2] != 0x01) {
-			Log.v(TAG, "inlistpassivelist error : " + ret);
+		s.nfcId.reset();
+		s.targetNum = 0;
+
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = 0x4a;				//InListPassiveTarget
+		s.sendBuf[POS_CMD + 2] = (byte)MaxTg;
+		MemCpy(s.sendBuf, pInitData, InitLen, POS_CMD + 3, 0);
+
+		boolean ret = sendCmd(s, null, 3+InitLen, null, pTgLen);
+		if(!ret || (s.recvBuf[POS_CMD + 2] < 0x01) || (s.recvBuf[POS_CMD + 2] > MaxTg)) {
+			//カードがないのは普通なので、文字列を作らない
+			Log.v(TAG, "inlistpassivelist error");
 			return false;
 		}
-		MemCpy(pTgData, s_ResponseBuf, res_len[0], 0, 0);
-		pTgLen[0] = (byte)res_len[0];
+		MemCpy(pTgData, s.recvBuf, pTgLen[0], 0, POS_CMD);
 
 		return true;
 	}
 
+	/// InListPassiveTargetの引数
+	private static final byte[] INLISTPASSIVETARGET_A = new byte[]{ BR_106K };
+	private static final byte[] INLISTPASSIVETARGET_B = new byte[]{ 0x03, 0x00 };
+
+	/**
+	 * 捕捉したTargetをセッションに残す
+	 *
+	 * 先頭のTargetを選択中にする。
+	 *
+	 * @param[in]	num			Target数
+	 * @return		Target数
+	 */
+	private static int setTargets(PcdSession s, int num) {
+		s.targetNum = num;
+		s.targets[0].copyTo(s.nfcId);
+		//捕捉し直したカードは中身が変わっているかもしれない
+		s.blockCache.clear();
+		return num;
+	}
+
 	/**
 	 * [NFC-A]Polling
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean pollingA() {
-		byte[] INLISTPASSIVETARGET = new byte[]{ 0x00 };
-		byte INLISTPASSIVETARGET_RES = 0x01;
+	public static boolean pollingA(PcdSession s) {
+		return listTargetsA(s, 1) > 0;
+	}
 
-		boolean ret;
-		byte[] res = new byte[50];
-		byte[] res_len = new byte[1];
+	/**
+	 * [NFC-A]複数カードのPolling
+	 *
+	 * 捕捉したカードはPcdSession#getTarget()で取得できる。先頭のカードが選択される。
+	 *
+	 * @param[in]	maxTg			捕捉するカード数(1～#MAX_TG)
+	 * @return		捕捉したカード数
+	 */
+	public static int listTargetsA(PcdSession s, int maxTg) {
+		final byte[] res = s.resBuf;
+		final short[] res_len = s.resLen;
 
-		ret = inListPassiveTarget(
-						INLISTPASSIVETARGET, (byte)INLISTPASSIVETARGET.length,
+		if((maxTg < 1) || (maxTg > MAX_TG)) {
+			Log.e(TAG, "listTargetsA : bad MaxTg " + maxTg);
+			return 0;
+		}
+		boolean ret = inListPassiveTarget(s, maxTg,
+						INLISTPASSIVETARGET_A, (byte)INLISTPASSIVETARGET_A.length,
 						res, res_len);
-		if (!ret
-		  || (res[2] != INLISTPASSIVETARGET_RES)) {
-			Log.e(TAG, "pollingA fail: ret=" + ret);
-			return false;
+		if (!ret) {
+			Log.e(TAG, "pollingA fail");
+			return 0;
 		}
 
-		//mNfcId.TargetNo = res[3];
-		//Log.d(TAG, "TargetNo : " + mNfcId.TargetNo);
-
-		mNfcId.SensRes = hl16(res[4], res[5]);
-		Log.d(TAG, "SENS_RES: " + mNfcId.SensRes);
-
-		mNfcId.SelRes = res[6];
-		String sel_res;
-		switch(mNfcId.SelRes) {
-		case SELRES_MIFARE_UL:			sel_res = "MIFARE Ultralight";		break;
-		case SELRES_MIFARE_1K:			sel_res = "MIFARE 1K";				break;
-		case SELRES_MIFARE_MINI:		sel_res = "MIFARE MINI";			break;
-		case SELRES_MIFARE_4K:			sel_res = "MIFARE 4K";				break;
-		case SELRES_MIFARE_DESFIRE:		sel_res = "MIFARE DESFIRE";			break;
-		case SELRES_JCOP30:				sel_res = "JCOP30";					break;
-		case SELRES_GEMPLUS_MPCOS:		sel_res = "Gemplus MPCOS";			break;
-		default:
-			mNfcId.SelRes = SELRES_UNKNOWN;
-			sel_res = "???";
-		}
-		Log.d(TAG, "SEL_RES:" + sel_res);
-		mNfcId.Label = sel_res;
+		final int num = res[2];
+		int pos = 3;
+		for(int i=0; i<num; i++) {
+			final NfcId id = s.targets[i];
+			id.reset();
+			id.TargetNo = res[pos];
+
+			id.SensRes = hl16(res[pos + 1], res[pos + 2]);
+
+			final byte sel = res[pos + 3];
+			id.SelRes = sel;
+			String sel_res;
+			switch(id.SelRes) {
+			case SELRES_MIFARE_UL:			sel_res = "MIFARE Ultralight";		break;
+			case SELRES_MIFARE_1K:			sel_res = "MIFARE 1K";				break;
+			case SELRES_MIFARE_MINI:		sel_res = "MIFARE MINI";			break;
+			case SELRES_MIFARE_4K:			sel_res = "MIFARE 4K";				break;
+			case SELRES_MIFARE_DESFIRE:		sel_res = "MIFARE DESFIRE";			break;
+			case SELRES_JCOP30:				sel_res = "JCOP30";					break;
+			case SELRES_GEMPLUS_MPCOS:		sel_res = "Gemplus MPCOS";			break;
+			default:
+				id.SelRes = SELRES_UNKNOWN;
+				sel_res = "???";
+			}
+			id.Label = sel_res;
 
-		mNfcId.Length = res[7];
-		MemCpy(mNfcId.Id, res, res[7], 0, 8);
-		mNfcId.Type = NfcIdType.NFCID1;
+			id.Length = res[pos + 4];
+			MemCpy(id.Id, res, id.Length, 0, pos + 5);
+			id.Type = NfcIdType.NFCID1;
 
-		return true;
+			//次のTarget(ISO/IEC14443-4対応ならATSが付く)
+			pos += 5 + id.Length;
+			if((sel & 0x20) != 0) {
+				pos += res[pos] & 0xff;
+			}
+		}
+
+		return setTargets(s, num);
 	}
 
 	/**
@@ -1036,28 +1256,48 @@ public final class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean pollingB() {
-		final byte[] INLISTPASSIVETARGET = new byte[]{ 0x03, 0x00 };
-		final byte INLISTPASSIVETARGET_RES = 0x01;
+	public static boolean pollingB(PcdSession s) {
+		return listTargetsB(s, 1) > 0;
+	}
 
-		boolean ret;
-		byte[] res = new byte[50];
-		byte[] res_len = new byte[1];
+	/**
+	 * [NFC-B]複数カードのPolling
+	 *
+	 * @param[in]	maxTg			捕捉するカード数(1～#MAX_TG)
+	 * @return		捕捉したカード数
+	 */
+	public static int listTargetsB(PcdSession s, int maxTg) {
+		final byte[] res = s.resBuf;
+		final short[] res_len = s.resLen;
 
-		ret = inListPassiveTarget(
-						INLISTPASSIVETARGET, (byte)INLISTPASSIVETARGET.length,
+		if((maxTg < 1) || (maxTg > MAX_TG)) {
+			Log.e(TAG, "listTargetsB : bad MaxTg " + maxTg);
+			return 0;
+		}
+		boolean ret = inListPassiveTarget(s, maxTg,
+						INLISTPASSIVETARGET_B, (byte)INLISTPASSIVETARGET_B.length,
 						res, res_len);
-		if (!ret
-		  || (res[1] != INLISTPASSIVETARGET_RES)) {
+		if (!ret) {
 			Log.e(TAG, "pollingB fail");
-			return false;
+			return 0;
 		}
 
-		mNfcId.Length = 12;
-		MemCpy(mNfcId.Id, res, mNfcId.Length, 0, 4);
-		mNfcId.Type = NfcIdType.NFCID0;
+		final int num = res[2];
+		int pos = 3;
+		for(int i=0; i<num; i++) {
+			final NfcId id = s.targets[i];
+			id.reset();
+			id.TargetNo = res[pos];
+			id.Length = 12;
+			MemCpy(id.Id, res, id.Length, 0, pos + 1);
+			id.Type = NfcIdType.NFCID0;
+
+			//Tg + ATQB + ATTRIB_RES(長さ付き)
+			pos += 1 + 12;
+			pos += 1 + (res[pos] & 0xff);
+		}
 
-		return true;
+		return setTargets(s, num);
 	}
 
 	/**
@@ -1070,65 +1310,178 @@ public final class NfcPcd {
 	 *
 	 * @attention	- 取得失敗は、主にカードが認識できない場合である。
 	 */
-	public static boolean pollingF(int systemCode, byte reqCode) {
-		//InListPassiveTarget
-		byte[] cmd = new byte[]{
-			0x02,				// 0x01:212Kbps  0x02:424Kbps
-			0x00,
-			h16((short)systemCode), l16((short)systemCode),			// SystemCode
-			reqCode,			// opt
-								//		0x00 : none
-								//		0x01 : + SystemCode
-								//		0x02 : + BitRate(0x0001:212K/0x0002:424K)
-			0x00				// Time Slot
-		};
-
-		boolean ret;
-		byte[] res = new byte[50];
-		byte[] res_len = new byte[1];
-
-		// 424Kbps
-		//MemCpy(cmd, INLISTPASSIVETARGET, INLISTPASSIVETARGET.length, 0, 0);
-
-		ret = inListPassiveTarget(
-					cmd, (byte)cmd.length,
+	public static boolean pollingF(PcdSession s, int systemCode, byte reqCode) {
+		return listTargetsF(s, systemCode, reqCode, 1, 1) > 0;
+	}
+
+	/**
+	 * [NFC-F]複数カードのPolling
+	 *
+	 * タイムスロットを増やすと、複数のカードが別々のスロットで応答して衝突しにくくなる。
+	 * ただしPCDが返すのは最大#MAX_TG枚まで。
+	 *
+	 * @param[in]	systemCode		システムコード
+	 * @param[in]	reqCode			リクエストコード(0x00:なし / 0x01:システムコード / 0x02:通信性能)
+	 * @param[in]	slots			タイムスロット数(1, 2, 4, 8, 16)
+	 * @param[in]	maxTg			捕捉するカード数(1～#MAX_TG)
+	 * @return		捕捉したカード数
+	 */
+	public static int listTargetsF(PcdSession s, int systemCode, byte reqCode, int slots, int maxTg) {
+		if((slots != 1) && (slots != 2) && (slots != 4) && (slots != 8) && (slots != 16)) {
+			Log.e(TAG, "listTargetsF : bad slots " + slots);
+			return 0;
+		}
+		if((maxTg < 1) || (maxTg > MAX_TG)) {
+			Log.e(TAG, "listTargetsF : bad MaxTg " + maxTg);
+			return 0;
+		}
+
+		//InListPassiveTarget(カード向けコマンドと同時には使わないので、cmdBufで作る)
+		final byte[] cmd = s.cmdBuf;
+		cmd[0] = BR_424K;			// 0x01:212Kbps  0x02:424Kbps
+		cmd[1] = 0x00;
+		cmd[2] = h16((short)systemCode);			// SystemCode
+		cmd[3] = l16((short)systemCode);
+		cmd[4] = reqCode;			// opt
+									//		0x00 : none
+									//		0x01 : + SystemCode
+									//		0x02 : + BitRate(0x0001:212K/0x0002:424K)
+		cmd[5] = (byte)(slots - 1);	// Time Slot
+
+		final byte[] res = s.resBuf;
+		final short[] res_len = s.resLen;
+
+		// 前回捕捉できた速度から試す(覚えていなければ424Kbps)
+		cmd[0] = s.bitRate.first(systemCode);
+		boolean ret = inListPassiveTarget(s, maxTg,
+					cmd, (byte)6,
 					res, res_len);
-		if (!ret
-		  || (res[3] != 0x01) || (res[4] < 0x12) || (res[5] != 0x01)) {
-			//Log.d(TAG, "pollingF fail(424Kbps): ret=" + ret + " / len=" + res_len);
-
-			//212Kbps
-			cmd[0] = 0x01;
-			ret = inListPassiveTarget(
-					cmd, (byte)cmd.length,
+		if (!ret || !checkTargetsF(res)) {
+			//Log.d(TAG, "pollingF fail(1st): ret=" + ret + " / len=" + res_len);
+
+			//もう一方
+			cmd[0] = (cmd[0] == BR_424K) ? BR_212K : BR_424K;
+			ret = inListPassiveTarget(s, maxTg,
+					cmd, (byte)6,
 					res, res_len);
-			if (!ret
-							  || (res[3] != 0x01) || (res[4] < 0x12) || (res[5] != 0x01)) {
-				Log.e(TAG, "pollingF fail(424K & 212Kbps): ret=" + ret + "/len=" + res_len);
-				return false;
+			if (!ret || !checkTargetsF(res)) {
+				Log.e(TAG, "pollingF fail(424K & 212Kbps)");
+				return 0;
 			}
+			s.bitRate.learned(systemCode, cmd[0]);
+		} else if(cmd[0] == BR_424K) {
+			s.bitRate.learned(systemCode, BR_424K);
 		}
-		MemCpy(mNfcId.Id, res, SIZE_NFCID2, 0, 6);
-		mNfcId.Type = NfcIdType.NFCID2;
-		mNfcId.Length = SIZE_NFCID2;
-		mNfcId.Label = "FeliCa";
-		if(reqCode == 0x01) {
-			mNfcId.SensRes = hl16(res[22], res[23]);	//サイズが同じだから、いいや
+		if((reqCode == 0x02) && (res[4] >= 0x14)) {
+			//通信性能(bit1:424Kbps)で確定
+			s.bitRate.learned(systemCode, ((res[3 + 20] & 0x02) != 0) ? BR_424K : BR_212K);
 		}
 
+		final int num = res[2];
+		int pos = 3;
+		for(int i=0; i<num; i++) {
+			final NfcId id = s.targets[i];
+			id.reset();
+			id.TargetNo = res[pos];
+			MemCpy(id.Id, res, SIZE_NFCID2, 0, pos + 3);
+			MemCpy(id.PMm, res, SIZE_PMM, 0, pos + 3 + SIZE_NFCID2);
+			id.Type = NfcIdType.NFCID2;
+			id.Length = SIZE_NFCID2;
+			id.Label = "FeliCa";
+			if(reqCode == 0x01) {
+				id.SensRes = hl16(res[pos + 19], res[pos + 20]);	//サイズが同じだから、いいや
+			}
+
+			//Tg + POL_RES(長さ込み)
+			pos += 1 + (res[pos + 1] & 0xff);
+		}
+
+		return setTargets(s, num);
+	}
+
+	/**
+	 * [NFC-F]InListPassiveTargetのレスポンス確認
+	 */
+	private static boolean checkTargetsF(byte[] res) {
+		int pos = 3;
+		for(int i=0; i<res[2]; i++) {
+			if((res[pos + 1] < 0x12) || (res[pos + 2] != 0x01)) {
+				return false;
+			}
+			pos += 1 + (res[pos + 1] & 0xff);
+		}
 		return true;
 	}
 
-	public static boolean pollingF(int systemCode) {
-		return pollingF(systemCode, (byte)0x01);
+	/**
+	 * 捕捉したカードの選択
+	 *
+	 * listTargetsA/B/F()で捕捉したカードの中から、以降の通信相手を選ぶ。
+	 * NFC-A/BはInSelectを送る。FeliCaはコマンドにIDmが入るので、NFC IDを切り替えるだけ。
+	 *
+	 * @param[in]	tg			Target番号(NfcId#TargetNo)
+	 * @retval		true		成功
+	 * @retval		false		失敗
+	 */
+	public static boolean selectTarget(PcdSession s, int tg) {
+		for(int i=0; i<s.targetNum; i++) {
+			final NfcId id = s.targets[i];
+			if(id.TargetNo != tg) {
+				continue;
+			}
+			if(id.Type != NfcIdType.NFCID2) {
+				//InSelect
+				final byte[] INSELECT = new byte[]{ MAINCMD, 0x54, (byte)tg };
+				final short[] res_len = s.resLen;
+				boolean ret = sendCmd(s, INSELECT, INSELECT.length, null, res_len);
+				if(!ret || (res_len[0] < 3) || (s.recvBuf[POS_CMD + 2] != 0x00)) {
+					Log.e(TAG, "selectTarget ret=" + ret + " / len=" + res_len[0]);
+					return false;
+				}
+			}
+			id.copyTo(s.nfcId);
+			return true;
+		}
+		Log.e(TAG, "selectTarget : no target " + tg);
+		return false;
 	}
 
-	public static boolean pollingF(SysCode code) {
-		return pollingF(code.val(), (byte)0x01);
+	/**
+	 * [FeliCa]コマンドのタイムアウト
+	 *
+	 * PollingのPMmに含まれる最大応答時間パラメータ(E:bit7-6, B:bit5-3, A:bit2-0)から求める。
+	 *   T = T0 × ((B + 1) × n + (A + 1)) × 4^E		(T0 ≒ 0.302msec)
+	 * 遅いカードでも失敗しないよう、Tを#FELICA_TIMEOUT_RATE倍し、転送時間分を足す。
+	 *
+	 * @param[in]	id			Pollingで取得したNFC ID
+	 * @param[in]	pmmPos		パラメータ位置(#PMM_READなど)
+	 * @param[in]	n			ブロック数(Read/Write)やサービス数(Request Service)
+	 *
+	 * @return		CommunicateThruEXのタイムアウト値[0.5msec](PMmがない場合は#DEFAULT_TIMEOUT)
+	 */
+	public static short felicaTimeout(NfcId id, int pmmPos, int n) {
+		if(id.Type != NfcIdType.NFCID2) {
+			return DEFAULT_TIMEOUT;
+		}
+		final int param = id.PMm[pmmPos] & 0xff;
+		final int e = param >> 6;
+		final int b = (param >> 3) & 0x07;
+		final int a = param & 0x07;
+		final long nsec = FELICA_T0_NSEC * ((b + 1) * n + (a + 1)) << (2 * e);
+		final long units = (nsec * FELICA_TIMEOUT_RATE + 499999) / 500000 + FELICA_TIMEOUT_MARGIN * 2;
+		return (short)Math.min(units, 0xffff);
 	}
 
-	public static boolean pollingF() {
-		return pollingF(0xffff);
+	public static boolean pollingF(PcdSession s, int systemCode) {
+		return pollingF(s, systemCode, (byte)0x01);
+	}
+
+	public static boolean pollingF(PcdSession s, SysCode code) {
+		return pollingF(s, code.val(), (byte)0x01);
+	}
+
+	public static boolean pollingF(PcdSession s) {
+		return pollingF(s, 0xffff);
 	}
 
 	////////////////////////////////////////////////////
@@ -1139,8 +1492,8 @@ public final class NfcPcd {
 	 *
 	 * @return		NFCID3t(10byte)
 	 */
-	static byte[] getNfcId3i() {
-		return mNfcId3i;
+	static byte[] getNfcId3i(PcdSession s) {
+		return s.nfcId3i;
 	}
 
 	/**
@@ -1151,8 +1504,8 @@ public final class NfcPcd {
 	 * @param	[in]	pId		設定するNFCID3(10byte)
 	 * @attention		NFCID2iを書き換える
 	 */
-	static void setNfcId3i(byte[] pId) {
-		mNfcId3i = pId.clone();
+	static void setNfcId3i(PcdSession s, byte[] pId) {
+		s.nfcId3i = pId.clone();
 	}
 
 	/**
@@ -1164,10 +1517,10 @@ public final class NfcPcd {
 	 * @param	[in]	pIdm		設定するNFCID8(8byte)
 	 * @attention		NFCID3iを書き換える
 	 */
-	static void setNfcId3iAsId2(byte[] pIdm) {
-		mNfcId3i = pIdm.clone();
-		mNfcId3i[8] = 0x00;
-		mNfcId3i[9] = 0x00;
+	static void setNfcId3iAsId2(PcdSession s, byte[] pIdm) {
+		s.nfcId3i = pIdm.clone();
+		s.nfcId3i[8] = 0x00;
+		s.nfcId3i[9] = 0x00;
 	}
 
 
@@ -1178,8 +1531,8 @@ public final class NfcPcd {
 	 *
 	 * @return		NFCID3i(10byte)
 	 */
-	static byte[] getNfcId3t() {
-		return mNfcId3t;
+	static byte[] getNfcId3t(PcdSession s) {
+		return s.nfcId3t;
 	}
 
 	/**
@@ -1190,8 +1543,8 @@ public final class NfcPcd {
 	 * @param	[in]	pId		設定するNFCID3(10byte)
 	 * @attention		NFCID2tを書き換える
 	 */
-	static void setNfcId3t(byte[] pId) {
-		mNfcId3t = pId.clone();
+	static void setNfcId3t(PcdSession s, byte[] pId) {
+		s.nfcId3t = pId.clone();
 	}
 
 	/**
@@ -1203,10 +1556,10 @@ public final class NfcPcd {
 	 * @param	[in]	pIdm		設定するNFCID8(8byte)
 	 * @attention		NFCID3tを書き換える
 	 */
-	static void setNfcId3tAsId2(byte[] pIdm) {
-		mNfcId3t= pIdm.clone();
-		mNfcId3t[8] = 0x00;
-		mNfcId3t[9] = 0x00;
+	static void setNfcId3tAsId2(PcdSession s, byte[] pIdm) {
+		s.nfcId3t= pIdm.clone();
+		s.nfcId3t[8] = 0x00;
+		s.nfcId3t[9] = 0x00;
 	}
 
 
@@ -1219,50 +1572,42 @@ public final class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	private static boolean _inJump(
+	private static boolean _inJump(PcdSession s,
 			byte Cmd, byte Ap, byte Br, boolean bNfcId3,
 			byte[] pGt, byte GtLen) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
-		s_SendBuf[POS_CMD + 0] = MAINCMD;
-		s_SendBuf[POS_CMD + 1] = Cmd;
-		s_SendBuf[POS_CMD + 2] = Ap;
-		s_SendBuf[POS_CMD + 3] = Br;
-		s_SendBuf[POS_CMD + 4] = 0x00;		//Next
+		s.sendBuf[POS_CMD + 0] = MAINCMD;
+		s.sendBuf[POS_CMD + 1] = Cmd;
+		s.sendBuf[POS_CMD + 2] = Ap;
+		s.sendBuf[POS_CMD + 3] = Br;
+		s.sendBuf[POS_CMD + 4] = 0x00;		//Next
 		byte len = 5;
 		if(Ap == AP_PASSIVE) {
-			s_SendBuf[POS_CMD + 4] |= 0x01;
+			s.sendBuf[POS_CMD + 4] |= 0x01;
 			if(Br == BR_106K) {
 				final byte[] known_id = new byte[]{ 0x08, 0x01, 0x02, 0x03 };
-				MemCpy(s_SendBuf, known_id, known_id.length, POS_CMD + len, 0);
+				MemCpy(s.sendBuf, known_id, known_id.length, POS_CMD + len, 0);
 				len += known_id.length;
 			} else {
 				final byte[] pol_req = new byte[]{ 0x00, (byte)0xff, (byte)0xff, 0x01, 0x00 };
-				MemCpy(s_SendBuf, pol_req, pol_req.length, POS_CMD + len, 0);
+				MemCpy(s.sendBuf, pol_req, pol_req.length, POS_CMD + len, 0);
 				len += pol_req.length;
 			}
 		}
 		if(bNfcId3) {
-			s_SendBuf[POS_CMD + 4] |= 0x02;
-			MemCpy(s_SendBuf, mNfcId3i, SIZE_NFCID3, POS_CMD + len, 0);
+			s.sendBuf[POS_CMD + 4] |= 0x02;
+			MemCpy(s.sendBuf, s.nfcId3i, SIZE_NFCID3, POS_CMD + len, 0);
 			len += SIZE_NFCID3;
 		}
 		if((pGt[0] != 0) && (GtLen != 0)) {
-			s_SendBuf[POS_CMD + 4] |= 0x04;
-			MemCpy(s_SendBuf, pGt, GtLen, POS_CMD + len, 0);
+			s.sendBuf[POS_CMD + 4] |= 0x04;
+			MemCpy(s.sendBuf, pGt, GtLen, POS_CMD + len, 0);
 			len += GtLen;
 		}
 
-		for(int i=0; i<len; i++) {
-			Log.d(TAG, "" + s_SendBuf[POS_CMD + i]);
-		}
-
-		short[] res_len = new short[1];
-		boolean ret = sendCmd(null, len, s_ResponseBuf, res_len);
-
-		for(int i=0; i<res_len[0]; i++) {
-			Log.d(TAG, "" + s_ResponseBuf[i]);
-		}
+		final short[] res_len = s.resLen;
+		boolean ret = sendCmd(s, null, len, null, res_len);
 
 		if(!ret || (res_len[0] < 19)) {
 			Log.e(TAG, "inJumpForDep ret=" + ret + "/len=" + res_len[0]);
@@ -1282,10 +1627,10 @@ public final class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	public static boolean inJumpForDep(
+	public static boolean inJumpForDep(PcdSession s,
 			byte Ap, byte Br, boolean bNfcId3,
 			byte[] pGt, byte GtLen) {
-		return _inJump((byte)0x56, Ap, Br, bNfcId3, pGt, GtLen);
+		return _inJump(s, (byte)0x56, Ap, Br, bNfcId3, pGt, GtLen);
 	}
 
 
@@ -1298,14 +1643,135 @@ public final class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	public static boolean inJumpForPsl(
+	public static boolean inJumpForPsl(PcdSession s,
 			byte Ap, byte Br, boolean bNfcId3,
 			byte[] pGt, byte GtLen) {
-		return _inJump((byte)0x46, Ap, Br, bNfcId3, pGt, GtLen);
+		return _inJump(s, (byte)0x46, Ap, Br, bNfcId3, pGt, GtLen);
 	}
 
 	////////////////////////////////////////////////////
+	// デフォルトセッション
 	////////////////////////////////////////////////////
+
+	public static boolean rfOff() {
+		return rfOff(s_Default);
+	}
+
+	public static boolean rfConfiguration(byte[] pCommand, int CommandLen) {
+		return rfConfiguration(s_Default, pCommand, CommandLen);
+	}
+
+	public static boolean setRfProfile(RfProfile profile) {
+		return setRfProfile(s_Default, profile);
+	}
+
+	public static boolean reset() {
+		return reset(s_Default);
+	}
+
+	public static boolean setParameters(byte val) {
+		return setParameters(s_Default, val);
+	}
+
+	public static boolean communicateThruEx(
+				short Timeout,
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, byte[] pResponseLen) {
+		return communicateThruEx(s_Default, Timeout, pCommand, CommandLen, pResponse, pResponseLen);
+	}
+
+	public static ByteBuffer communicateThruExView(
+				short Timeout,
+				byte[] pCommand, int CommandLen) {
+		return communicateThruExView(s_Default, Timeout, pCommand, CommandLen);
+	}
+
+	public static boolean communicateThruEx(
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, byte[] pResponseLen) {
+		return communicateThruEx(s_Default, pCommand, CommandLen, pResponse, pResponseLen);
+	}
+
+	public static ByteBuffer communicateThruExView(byte[] pCommand, int CommandLen) {
+		return communicateThruExView(s_Default, pCommand, CommandLen);
+	}
+
+	public static boolean inDataExchange(
+					byte[] pCommand, int CommandLen,
+					byte[] pResponse, byte[] pResponseLen) {
+		return inDataExchange(s_Default, pCommand, CommandLen, pResponse, pResponseLen);
+	}
+
+	public static boolean inDataExchange(
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, byte[] pResponseLen, boolean bCoutinue) {
+		return inDataExchange(s_Default, pCommand, CommandLen, pResponse, pResponseLen, bCoutinue);
+	}
+
+	public static boolean inDataExchange(
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, short[] pResponseLen, boolean bCoutinue) {
+		return inDataExchange(s_Default, pCommand, CommandLen, pResponse, pResponseLen, bCoutinue);
+	}
+
+	public static boolean inCommunicateThru(
+				byte[] pCommand, int CommandLen,
+				byte[] pResponse, byte[] pResponseLen) {
+		return inCommunicateThru(s_Default, pCommand, CommandLen, pResponse, pResponseLen);
+	}
+
+	public static boolean pollingA() {
+		return pollingA(s_Default);
+	}
+
+	public static boolean pollingB() {
+		return pollingB(s_Default);
+	}
+
+	public static int listTargetsA(int maxTg) {
+		return listTargetsA(s_Default, maxTg);
+	}
+
+	public static int listTargetsB(int maxTg) {
+		return listTargetsB(s_Default, maxTg);
+	}
+
+	public static int listTargetsF(int systemCode, byte reqCode, int slots, int maxTg) {
+		return listTargetsF(s_Default, systemCode, reqCode, slots, maxTg);
+	}
+
+	public static boolean selectTarget(int tg) {
+		return selectTarget(s_Default, tg);
+	}
+
+	public static boolean pollingF(int systemCode, byte reqCode) {
+		return pollingF(s_Default, systemCode, reqCode);
+	}
+
+	public static boolean pollingF(int systemCode) {
+		return pollingF(s_Default, systemCode);
+	}
+
+	public static boolean pollingF(SysCode code) {
+		return pollingF(s_Default, code);
+	}
+
+	public static boolean pollingF() {
+		return pollingF(s_Default);
+	}
+
+	public static boolean inJumpForDep(
+			byte Ap, byte Br, boolean bNfcId3,
+			byte[] pGt, byte GtLen) {
+		return inJumpForDep(s_Default, Ap, Br, bNfcId3, pGt, GtLen);
+	}
+
+	public static boolean inJumpForPsl(
+			byte Ap, byte Br, boolean bNfcId3,
+			byte[] pGt, byte GtLen) {
+		return inJumpForPsl(s_Default, Ap, Br, bNfcId3, pGt, GtLen);
+	}
+
 	////////////////////////////////////////////////////
 	////////////////////////////////////////////////////
 
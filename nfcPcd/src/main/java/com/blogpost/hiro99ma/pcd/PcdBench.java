@@ -0,0 +1,454 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import android.os.Debug;
+
+/**
+ * @class		PcdBench
+ * @brief		性能の計測
+ *
+ *  - #polling() : 常時Pollingし続ける用途でGCを起こさないよう、Polling 1回あたりに確保したメモリを数える。
+ *    定常状態(捕捉できた/できなかった、どちらも)では0バイトになるはず。
+ *  - #frame() / #frameCopy() : CommunicateThruEXフレームの組み立て・検査1回あたりの時間とコピー量。
+ *    PcdFrame(バッファ上で組み立て、ビューで返す)と、以前のコピーする方式を比べる。
+ *  - #pool() / #simPool() : PcdPoolのPCD数ごとのスループット(Job/秒)。
+ *
+ * @code
+ * PcdBench.Result res = PcdBench.polling(poller, s, 100, 1000);
+ * Log.d(TAG, res.toString());		// 0 bytes/poll ならOK
+ * Log.d(TAG, PcdBench.frame(20, 200, 100000).toString());
+ * Log.d(TAG, PcdBench.frameCopy(20, 200, 100000).toString());
+ * for(int n=1; n<=4; n*=2) {
+ *     Log.d(TAG, PcdBench.simPool(n, 2000000, 400).toString());	// 応答2msecのSimPcdをn台
+ * }
+ * @endcode
+ *
+ * @attention	Debug#startAllocCounting()はプロセス全体に影響し、遅くなる。計測以外では使わないこと。
+ */
+public final class PcdBench {
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	private PcdBench() {
+	}
+
+	/**
+	 * Polling + 搬送波停止を繰り返して、確保したメモリを数える
+	 *
+	 * 最初のwarmup回は数えない(初回だけの確保や、JITの分を除くため)。
+	 * 呼び出したスレッドで確保したメモリだけを数える。
+	 *
+	 * @param[in]	poller		Pollingする方式
+	 * @param[in]	s			pollerのセッション
+	 * @param[in]	warmup		数えずに回す回数
+	 * @param[in]	count		数える回数
+	 * @return		結果
+	 */
+	public static Result polling(PcdPoller poller, PcdSession s, int warmup, int count) {
+		for(int i=0; i<warmup; i++) {
+			poller.poll();
+			NfcPcd.rfOff(s);
+		}
+
+		int hits = 0;
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		final long start = System.nanoTime();
+		for(int i=0; i<count; i++) {
+			if(poller.poll() != null) {
+				hits++;
+			}
+			NfcPcd.rfOff(s);
+		}
+		final long time = System.nanoTime() - start;
+		final int size = Debug.getThreadAllocSize();
+		final int objs = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		return new Result(count, hits, size, objs, time);
+	}
+
+	/**
+	 * PcdPoolのスループット
+	 *
+	 * jobをjobs回投入して、全部終わるまでの時間を測る。
+	 * poolは開始(PcdPool#start())しておくこと。PCDごとの完了数はリセットする。
+	 *
+	 * @param[in]	pool		計測するPcdPool
+	 * @param[in]	job			投入するJob
+	 * @param[in]	warmup		数えずに回す回数
+	 * @param[in]	jobs		数える回数
+	 * @return		結果
+	 */
+	public static <T> PoolResult pool(PcdPool pool, PcdWorker.Job<T> job, int warmup, int jobs) {
+		runJobs(pool, job, warmup);
+		pool.resetStats();
+
+		final long start = System.nanoTime();
+		final int failed = runJobs(pool, job, jobs);
+		final long time = System.nanoTime() - start;
+
+		long[] perReader = new long[pool.size()];
+		for(int i=0; i<perReader.length; i++) {
+			perReader[i] = pool.getCompletedCount(i);
+		}
+		return new PoolResult(jobs, failed, perReader, time);
+	}
+
+	/**
+	 * @return		失敗したJob数(例外、またはfalseを返した)
+	 */
+	private static <T> int runJobs(PcdPool pool, PcdWorker.Job<T> job, int jobs) {
+		List<Future<T>> futures = new ArrayList<Future<T>>(jobs);
+		for(int i=0; i<jobs; i++) {
+			futures.add(pool.submit(job));
+		}
+		int failed = 0;
+		for(Future<T> f : futures) {
+			try {
+				if(Boolean.FALSE.equals(f.get())) {
+					failed++;
+				}
+			} catch (ExecutionException e) {
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * SimPcdを使ったPcdPoolのスループット
+	 *
+	 * FeliCaカード(サービス0x090f)を置いたSimPcdをreaders台用意し、
+	 * Polling + 4ブロック読み込みのJobで#pool()を計測する。
+	 *
+	 * @param[in]	readers		PCD数
+	 * @param[in]	latency		SimPcdの応答時間[nsec]
+	 * @param[in]	jobs		数える回数
+	 * @return		結果
+	 */
+	public static PoolResult simPool(int readers, long latency, int jobs) {
+		List<PcdSession> sessions = new ArrayList<PcdSession>(readers);
+		for(int i=0; i<readers; i++) {
+			SimPcd sim = new SimPcd();
+			sim.setCard(SimPcd.Card.felica(
+						new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, (byte)i },
+						new byte[NfcPcd.SIZE_PMM], NfcF.SysCode.CYBER.val())
+					.addService(0x090f, 16));
+			PcdSession s = new PcdSession(sim);
+			if(!NfcPcd.open(s)) {
+				return null;
+			}
+			sim.setLatency(latency);
+			sessions.add(s);
+		}
+
+		final int[] blockNo = new int[] { 0, 1, 2, 3 };
+		final int[] svcCode = new int[] { 0x090f };
+		PcdWorker.Job<Boolean> job = new PcdWorker.Job<Boolean>() {
+			@Override
+			public Boolean run(PcdSession s) {
+				byte[] buf = new byte[NfcPcd.SIZE_BLOCK * blockNo.length];
+				return NfcPcd.pollingF(s, NfcF.SysCode.CYBER)
+					&& NfcF.getInstance().read(s, buf, blockNo, blockNo.length, svcCode);
+			}
+		};
+
+		PcdPool pool = new PcdPool(sessions);
+		pool.start();
+		try {
+			return pool(pool, job, readers * 4, jobs);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * CommunicateThruEXフレーム(PcdFrame)
+	 *
+	 * カードへのコマンドを送信フレームに置いてフレームを作り、受信フレームを検査してレスポンスのビューを得る。
+	 * USBの送受信は含まない。
+	 *
+	 * @param[in]	cmdLen		カードへのコマンド長(1～#NfcPcd.SIZE_FELICA_CMD)
+	 * @param[in]	resLen		カードからのレスポンス長(1～#NfcPcd.SIZE_FELICA_CMD)
+	 * @param[in]	count		回数
+	 * @return		結果
+	 */
+	public static FrameResult frame(int cmdLen, int resLen, int count) {
+		final PcdFrame tx = new PcdFrame(PcdFrame.MAX_FRAME);
+		final PcdFrame rx = new PcdFrame(PcdFrame.MAX_FRAME);
+		final byte[] cmd = new byte[cmdLen];
+		final int rxLen = setResponse(rx.buf, PcdFrame.POS_CMD, resLen);
+		rx.encode(4 + resLen);
+
+		long copied = 0;
+		for(int i=0; i<count / 10 + 1; i++) {
+			frameOnce(tx, rx, cmd, cmdLen, rxLen);
+		}
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		final long start = System.nanoTime();
+		for(int i=0; i<count; i++) {
+			copied += frameOnce(tx, rx, cmd, cmdLen, rxLen);
+		}
+		final long time = System.nanoTime() - start;
+		final int size = Debug.getThreadAllocSize();
+		final int objs = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		return new FrameResult("PcdFrame", count, copied, size, objs, time);
+	}
+
+	/**
+	 * @return		コピーしたバイト数(失敗時は-1)
+	 */
+	private static int frameOnce(PcdFrame tx, PcdFrame rx, byte[] cmd, int cmdLen, int rxLen) {
+		//送信 : communicateThruExView()と同じ
+		final byte[] buf = tx.buf;
+		buf[PcdFrame.POS_CMD + 0] = (byte)0xd4;
+		buf[PcdFrame.POS_CMD + 1] = (byte)0xa0;
+		buf[PcdFrame.POS_CMD + 2] = 0;
+		buf[PcdFrame.POS_CMD + 3] = 0;
+		buf[PcdFrame.POS_CMD + 4] = (byte)(cmdLen + 1);
+		NfcPcd.MemCpy(buf, cmd, cmdLen, PcdFrame.POS_CMD + 5, 0);
+		tx.encode(cmdLen + 5);
+
+		//受信 : レスポンスはビューで返す
+		final int len = rx.decode(rxLen);
+		if(len < 4) {
+			return -1;
+		}
+		final ByteBuffer res = rx.view(4, len - 4);
+		return (res.remaining() == len - 4) ? cmdLen : -1;
+	}
+
+	/**
+	 * CommunicateThruEXフレーム(以前の方式)
+	 *
+	 * 以前のsendCmd()/recvResp()/communicateThruEx()と同じく、
+	 * 受信フレームからレスポンスバッファへ、さらに呼び出し元のバッファへ1byteずつコピーする。
+	 * 引数は#frame()と同じ。
+	 */
+	public static FrameResult frameCopy(int cmdLen, int resLen, int count) {
+		final byte[] sendBuf = new byte[PcdFrame.MAX_FRAME];
+		final byte[] recvBuf = new byte[PcdFrame.MAX_FRAME];
+		final byte[] responseBuf = new byte[PcdFrame.MAX_DATA];
+		final byte[] response = new byte[PcdFrame.MAX_DATA];
+		final byte[] cmd = new byte[cmdLen];
+		recvBuf[0] = 0x00;
+		recvBuf[1] = 0x00;
+		recvBuf[2] = (byte)0xff;
+		recvBuf[PcdFrame.POS_LEN] = (byte)(4 + resLen);
+		recvBuf[PcdFrame.POS_LEN + 1] = (byte)(0 - (4 + resLen));
+		setResponse(recvBuf, PcdFrame.POS_CMD, resLen);
+		recvBuf[PcdFrame.POS_CMD + 4 + resLen] = PcdFrame.dcs(recvBuf, PcdFrame.POS_CMD, 4 + resLen);
+
+		long copied = 0;
+		for(int i=0; i<count / 10 + 1; i++) {
+			frameCopyOnce(sendBuf, recvBuf, responseBuf, response, cmd, cmdLen);
+		}
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		final long start = System.nanoTime();
+		for(int i=0; i<count; i++) {
+			copied += frameCopyOnce(sendBuf, recvBuf, responseBuf, response, cmd, cmdLen);
+		}
+		final long time = System.nanoTime() - start;
+		final int size = Debug.getThreadAllocSize();
+		final int objs = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		return new FrameResult("copy", count, copied, size, objs, time);
+	}
+
+	private static int frameCopyOnce(byte[] sendBuf, byte[] recvBuf, byte[] responseBuf, byte[] response,
+					byte[] cmd, int cmdLen) {
+		int copied = 0;
+
+		//送信
+		sendBuf[PcdFrame.POS_CMD + 0] = (byte)0xd4;
+		sendBuf[PcdFrame.POS_CMD + 1] = (byte)0xa0;
+		sendBuf[PcdFrame.POS_CMD + 2] = 0;
+		sendBuf[PcdFrame.POS_CMD + 3] = 0;
+		sendBuf[PcdFrame.POS_CMD + 4] = (byte)(cmdLen + 1);
+		for(int i=0; i<cmdLen; i++) {
+			sendBuf[PcdFrame.POS_CMD + 5 + i] = cmd[i];
+		}
+		copied += cmdLen;
+		final int len = cmdLen + 5;
+		sendBuf[PcdFrame.POS_LEN] = (byte)len;
+		sendBuf[PcdFrame.POS_LEN + 1] = (byte)(0 - len);
+		sendBuf[PcdFrame.POS_CMD + len] = PcdFrame.dcs(sendBuf, PcdFrame.POS_CMD, len);
+		sendBuf[PcdFrame.POS_CMD + len + 1] = 0x00;
+
+		//受信 : recvResp()でレスポンスバッファへ
+		if(((recvBuf[PcdFrame.POS_LEN] + recvBuf[PcdFrame.POS_LEN + 1]) & 0xff) != 0) {
+			return -1;
+		}
+		final int resLen = recvBuf[PcdFrame.POS_LEN] & 0xff;
+		for(int i=0; i<resLen; i++) {
+			responseBuf[i] = recvBuf[PcdFrame.POS_CMD + i];
+		}
+		copied += resLen;
+		if(recvBuf[PcdFrame.POS_CMD + resLen] != PcdFrame.dcs(responseBuf, 0, resLen)) {
+			return -1;
+		}
+		//communicateThruEx()で呼び出し元へ
+		for(int i=0; i<resLen - 4; i++) {
+			response[i] = responseBuf[4 + i];
+		}
+		copied += resLen - 4;
+		return copied;
+	}
+
+	/**
+	 * CommunicateThruEXのレスポンス(D5 A1 Status Len カードのレスポンス)を置く
+	 *
+	 * @return		受信フレーム長
+	 */
+	private static int setResponse(byte[] buf, int pos, int resLen) {
+		buf[pos + 0] = (byte)0xd5;
+		buf[pos + 1] = (byte)0xa1;
+		buf[pos + 2] = 0x00;
+		buf[pos + 3] = (byte)(resLen + 1);
+		for(int i=0; i<resLen; i++) {
+			buf[pos + 4 + i] = (byte)i;
+		}
+		return pos + 4 + resLen + 2;
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	Result
+	 * @brief	計測結果
+	 */
+	public static final class Result {
+		/// Polling回数
+		public final int polls;
+		/// 捕捉できた回数
+		public final int hits;
+		/// 確保したメモリ[byte]
+		public final int allocSize;
+		/// 確保したオブジェクト数
+		public final int allocCount;
+		/// 所要時間[nsec]
+		public final long time;
+
+		private Result(int polls, int hits, int allocSize, int allocCount, long time) {
+			this.polls = polls;
+			this.hits = hits;
+			this.allocSize = allocSize;
+			this.allocCount = allocCount;
+			this.time = time;
+		}
+
+		/**
+		 * Polling 1回あたりの確保メモリ[byte]
+		 */
+		public double bytesPerPoll() {
+			return (polls == 0) ? 0 : (double)allocSize / polls;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("polls=%d hits=%d alloc=%d bytes/%d objs (%.2f bytes/poll) avg=%dusec",
+					polls, hits, allocSize, allocCount, bytesPerPoll(),
+					(polls == 0) ? 0 : time / polls / 1000);
+		}
+	}
+
+	/**
+	 * @class	PoolResult
+	 * @brief	PcdPoolの計測結果
+	 */
+	public static final class PoolResult {
+		/// Job数
+		public final int jobs;
+		/// 失敗したJob数
+		public final int failed;
+		/// PCDごとの完了Job数
+		public final long[] perReader;
+		/// 所要時間[nsec]
+		public final long time;
+
+		private PoolResult(int jobs, int failed, long[] perReader, long time) {
+			this.jobs = jobs;
+			this.failed = failed;
+			this.perReader = perReader;
+			this.time = time;
+		}
+
+		/**
+		 * 1秒あたりのJob数
+		 */
+		public double jobsPerSec() {
+			return (time == 0) ? 0 : jobs * 1000000000.0 / time;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("readers=%d jobs=%d failed=%d %.0fjobs/s per reader=%s",
+					perReader.length, jobs, failed, jobsPerSec(), Arrays.toString(perReader));
+		}
+	}
+
+	/**
+	 * @class	FrameResult
+	 * @brief	フレームの計測結果
+	 */
+	public static final class FrameResult {
+		/// 方式
+		public final String name;
+		/// フレーム数(送信と受信で1回)
+		public final int frames;
+		/// コピーしたバイト数
+		public final long copied;
+		/// 確保したメモリ[byte]
+		public final int allocSize;
+		/// 確保したオブジェクト数
+		public final int allocCount;
+		/// 所要時間[nsec]
+		public final long time;
+
+		private FrameResult(String name, int frames, long copied, int allocSize, int allocCount, long time) {
+			this.name = name;
+			this.frames = frames;
+			this.copied = copied;
+			this.allocSize = allocSize;
+			this.allocCount = allocCount;
+			this.time = time;
+		}
+
+		/**
+		 * 1回あたりの時間[nsec]
+		 */
+		public long nsPerFrame() {
+			return (frames == 0) ? 0 : time / frames;
+		}
+
+		/**
+		 * 1回あたりのコピー量[byte]
+		 */
+		public long bytesCopiedPerFrame() {
+			return (frames == 0) ? 0 : copied / frames;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: frames=%d copied=%d bytes/frame alloc=%d bytes/%d objs avg=%dnsec",
+					name, frames, bytesCopiedPerFrame(), allocSize, allocCount, nsPerFrame());
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @class		PcdFrame
+ * @brief		PCDフレームのエンコード/デコード
+ *
+ * プリアンブル、LEN/LCS、データ、DCS、ポストアンブルを1つのバッファ上で組み立て・検査する。
+ * データ部は常に#POS_CMDから始まり、コピーせずにビューとして参照できる。
+ *
+ * データが255byteを超える場合は拡張フレーム(00 00 ff ff ff LENM LENL LCS ...)になる。
+ * 拡張フレームのときだけ、データを3byteずらす。
+ */
+final class PcdFrame {
+
+	///////////////////////////
+	// fields
+	///////////////////////////
+
+	/// LEN位置
+	static final int POS_LEN = 3;
+	/// データ(TFI)開始位置
+	static final int POS_CMD = 5;
+	/// 拡張フレームのデータ(TFI)開始位置
+	static final int POS_EXT_CMD = 8;
+
+	/// 通常フレームの最大データ長
+	static final int MAX_NORMAL_DATA = 255;
+	/// 最大データ長(TFI + PD0～PD263)
+	static final int MAX_DATA = 265;
+	/// 最大フレーム長
+	static final int MAX_FRAME = POS_EXT_CMD + MAX_DATA + 2;
+
+	/// ACKフレーム
+	static final byte[] ACK = { 0x00, 0x00, (byte)0xff, 0x00, (byte)0xff, 0x00 };
+
+	/// decode()のエラー
+	static final int EPREAMBLE = -2;		///< プリアンブル不正
+	static final int ELCS = -4;				///< LCS不正
+	static final int ELEN = -5;				///< 長さ不正
+	static final int EDCS = -8;				///< DCS不正
+
+	/// フレームバッファ
+	final byte[] buf;
+
+	private final ByteBuffer mView;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	size		フレームバッファサイズ
+	 */
+	PcdFrame(int size) {
+		buf = new byte[size];
+		buf[0] = 0x00;
+		buf[1] = 0x00;
+		buf[2] = (byte)0xff;
+		mView = ByteBuffer.wrap(buf);
+	}
+
+	/**
+	 * フレーム作成
+	 *
+	 * #POS_CMDから書かれたデータの前後にヘッダとフッタを付ける。
+	 *
+	 * @param[in]	len			データ長(～#MAX_DATA)
+	 * @return		フレーム長
+	 * @attention	拡張フレームになった場合、データは#POS_EXT_CMDに移動する。
+	 */
+	int encode(int len) {
+		if(len > MAX_NORMAL_DATA) {
+			System.arraycopy(buf, POS_CMD, buf, POS_EXT_CMD, len);
+			buf[POS_LEN] = (byte)0xff;
+			buf[POS_LEN + 1] = (byte)0xff;
+			buf[POS_LEN + 2] = (byte)(len >> 8);
+			buf[POS_LEN + 3] = (byte)len;
+			buf[POS_LEN + 4] = (byte)(0 - buf[POS_LEN + 2] - buf[POS_LEN + 3]);
+			buf[POS_EXT_CMD + len] = dcs(buf, POS_EXT_CMD, len);
+			buf[POS_EXT_CMD + len + 1] = 0x00;
+			return POS_EXT_CMD + len + 2;
+		}
+		buf[POS_LEN] = (byte)len;
+		buf[POS_LEN + 1] = (byte)(0 - len);
+		buf[POS_CMD + len] = dcs(buf, POS_CMD, len);
+		buf[POS_CMD + len + 1] = 0x00;
+		return POS_CMD + len + 2;
+	}
+
+	/**
+	 * フレーム検査
+	 *
+	 * @param[in]	rxLen		受信したフレーム長
+	 * @return		データ長(負値はエラー)
+	 * @note		拡張フレームの場合も、データは#POS_CMDに移動する。
+	 */
+	int decode(int rxLen) {
+		if((rxLen < POS_CMD) || (buf[0] != 0x00) || (buf[1] != 0x00) || (buf[2] != (byte)0xff)) {
+			return EPREAMBLE;
+		}
+		if((buf[POS_LEN] == (byte)0xff) && (buf[POS_LEN + 1] == (byte)0xff)) {
+			// extend frame
+			if((rxLen < POS_EXT_CMD)
+			  || (((buf[POS_LEN + 2] + buf[POS_LEN + 3] + buf[POS_LEN + 4]) & 0xff) != 0)) {
+				return ELCS;
+			}
+			int len = ((buf[POS_LEN + 2] & 0xff) << 8) | (buf[POS_LEN + 3] & 0xff);
+			if((len > MAX_DATA) || (POS_EXT_CMD + len + 2 > rxLen)) {
+				return ELEN;
+			}
+			if((buf[POS_EXT_CMD + len] != dcs(buf, POS_EXT_CMD, len)) || (buf[POS_EXT_CMD + len + 1] != 0x00)) {
+				return EDCS;
+			}
+			System.arraycopy(buf, POS_EXT_CMD, buf, POS_CMD, len);
+			return len;
+		}
+		if(((buf[POS_LEN] + buf[POS_LEN + 1]) & 0xff) != 0) {
+			return ELCS;
+		}
+		int len = buf[POS_LEN] & 0xff;
+		if(POS_CMD + len + 2 > rxLen) {
+			return ELEN;
+		}
+		if((buf[POS_CMD + len] != dcs(buf, POS_CMD, len)) || (buf[POS_CMD + len + 1] != 0x00)) {
+			return EDCS;
+		}
+		return len;
+	}
+
+	/**
+	 * プリアンブル合わせ
+	 *
+	 * 受信データの先頭にゴミがあった場合、プリアンブル(00 00 ff)を先頭に移動する。
+	 *
+	 * @param[in]	rxLen		受信したフレーム長
+	 * @return		移動後の長さ(プリアンブルが見つからなければ-1)
+	 */
+	int resync(int rxLen) {
+		int pos = findPreamble(buf, 0, rxLen);
+		if(pos < 0) {
+			return -1;
+		}
+		if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, rxLen - pos);
+		}
+		return rxLen - pos;
+	}
+
+	/**
+	 * プリアンブル検索
+	 *
+	 * @param[in]	data		受信データ
+	 * @param[in]	from		検索開始位置
+	 * @param[in]	len			dataの長さ
+	 * @return		プリアンブル位置(見つからなければ-1)
+	 */
+	static int findPreamble(byte[] data, int from, int len) {
+		for(int i = from; i + 2 < len; i++) {
+			if((data[i] == 0x00) && (data[i + 1] == 0x00) && (data[i + 2] == (byte)0xff)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * ACKフレームかどうか
+	 */
+	static boolean isAck(byte[] data, int pos, int len) {
+		if(pos + ACK.length > len) {
+			return false;
+		}
+		for(int i = 0; i < ACK.length; i++) {
+			if(data[pos + i] != ACK[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * データ部のビュー
+	 *
+	 * 次のフレームを受信するまで有効。
+	 *
+	 * @param[in]	offset		データ先頭からの位置
+	 * @param[in]	len			長さ
+	 */
+	ByteBuffer view(int offset, int len) {
+		mView.clear();
+		mView.position(POS_CMD + offset);
+		mView.limit(POS_CMD + offset + len);
+		return mView;
+	}
+
+	/**
+	 * DCS計算
+	 */
+	static byte dcs(byte[] data, int offset, int len) {
+		byte sum = 0;
+		for(int i = 0; i < len; i++) {
+			sum += data[offset + i];
+		}
+		return (byte)(0 - sum);
+	}
+}
@@ -0,0 +1,332 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		PcdPoller
+ * @brief		複数方式のPolling
+ *
+ * 有効にした方式(NFC-A/B/F、NFC-Fはシステムコードごと)を順にPollingし、最初に捕捉できたものを返す。
+ * 順番は、最近の捕捉率と1回あたりの所要時間から「単位時間あたりに見つかる見込み」が高い順にする。
+ * よく来るカードや、外れても短時間で済む方式が先になる。
+ *
+ * 捕捉率はカードを捕捉できた回だけ更新する(カードがない間は全方式が等しく外れるので順番の参考にならない)。
+ * 順番を変えるだけで、毎回すべての方式を試すことは変わらない。
+ *
+ * @code
+ * PcdPoller poller = new PcdPoller(s,
+ *         PcdPoller.Target.nfcF(NfcF.SYSCODE), PcdPoller.Target.nfcF(), PcdPoller.Target.nfcA());
+ * PcdPoller.Result res = poller.poll();
+ * if(res != null) { ... }
+ * @endcode
+ *
+ * @attention	セッションと同じく、1つのスレッドから使うこと。
+ */
+public final class PcdPoller {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/// 方式
+	public enum Tech {
+		NFC_A,
+		NFC_B,
+		NFC_F,
+	}
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	/// 捕捉率/所要時間の平滑化係数
+	private static final double ALPHA = 0.2;
+	/// 捕捉率の初期値
+	private static final double INIT_HIT_RATE = 0.5;
+	/// 所要時間の初期値[nsec]
+	private static final double INIT_LATENCY = 1000000;
+
+	private final PcdSession mSession;
+	private final Target[] mTargets;
+	/// 試す順番(mTargetsの添字)
+	private final int[] mOrder;
+	/// 捕捉率(EWMA)
+	private final double[] mHitRate;
+	/// 1回の所要時間[nsec](EWMA)
+	private final double[] mLatency;
+
+	private final Result mResult = new Result();
+
+	/// 統計
+	private long mPolls = 0;
+	private long mHits = 0;
+	private long mDetectSum = 0;
+	private long mAttemptSum = 0;
+	private final long[] mTargetHits;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	s			セッション
+	 * @param[in]	targets		Pollingする方式(同じ捕捉率/所要時間なら、この順番になる)
+	 */
+	public PcdPoller(PcdSession s, Target... targets) {
+		mSession = s;
+		mTargets = targets.clone();
+		mOrder = new int[mTargets.length];
+		mHitRate = new double[mTargets.length];
+		mLatency = new double[mTargets.length];
+		mTargetHits = new long[mTargets.length];
+		for(int i=0; i<mTargets.length; i++) {
+			mOrder[i] = i;
+			mHitRate[i] = INIT_HIT_RATE;
+			mLatency[i] = INIT_LATENCY;
+		}
+	}
+
+	/**
+	 * Polling
+	 *
+	 * 見込みの高い順に試し、最初に捕捉できたところで終わる。
+	 *
+	 * @return		結果(捕捉できなければnull)
+	 * @attention	結果は次のpoll()で書き換わる。NFC IDはセッションのもの(保持するならCardIdを使う)。
+	 */
+	public Result poll() {
+		sort();
+		mPolls++;
+
+		final long start = System.nanoTime();
+		long t = start;
+		for(int n=0; n<mOrder.length; n++) {
+			final int i = mOrder[n];
+			final boolean hit = poll(mTargets[i]);
+			final long now = System.nanoTime();
+			mLatency[i] += ALPHA * ((now - t) - mLatency[i]);
+			t = now;
+			if(hit) {
+				//カードがあったときだけ捕捉率を更新する
+				for(int m=0; m<n; m++) {
+					mHitRate[mOrder[m]] *= (1.0 - ALPHA);
+				}
+				mHitRate[i] += ALPHA * (1.0 - mHitRate[i]);
+
+				mHits++;
+				mTargetHits[i]++;
+				mDetectSum += now - start;
+				mAttemptSum += n + 1;
+
+				mResult.mTarget = mTargets[i];
+				mResult.mNfcId = mSession.nfcId;
+				mResult.mCardId = mSession.getCardId();
+				mResult.mDetectTime = now - start;
+				mResult.mAttempts = n + 1;
+				return mResult;
+			}
+		}
+		return null;
+	}
+
+	private boolean poll(Target target) {
+		switch(target.tech) {
+		case NFC_A:
+			return NfcPcd.pollingA(mSession);
+		case NFC_B:
+			return NfcPcd.pollingB(mSession);
+		case NFC_F:
+			return NfcPcd.pollingF(mSession, target.sysCode);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 見込み(捕捉率/所要時間)の高い順に並べる
+	 *
+	 * 数個なので挿入ソート(同じ値なら元の順番)。
+	 */
+	private void sort() {
+		for(int i=1; i<mOrder.length; i++) {
+			final int v = mOrder[i];
+			final double sv = score(v);
+			int j = i - 1;
+			while((j >= 0) && (score(mOrder[j]) < sv)) {
+				mOrder[j + 1] = mOrder[j];
+				j--;
+			}
+			mOrder[j + 1] = v;
+		}
+	}
+
+	private double score(int i) {
+		return mHitRate[i] / mLatency[i];
+	}
+
+	/**
+	 * 次に試す順番
+	 */
+	public Target[] getOrder() {
+		sort();
+		Target[] order = new Target[mOrder.length];
+		for(int i=0; i<mOrder.length; i++) {
+			order[i] = mTargets[mOrder[i]];
+		}
+		return order;
+	}
+
+	/**
+	 * poll()の回数
+	 */
+	public long getPollCount() {
+		return mPolls;
+	}
+
+	/**
+	 * 捕捉できた回数
+	 */
+	public long getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * 方式ごとの捕捉できた回数
+	 *
+	 * @param[in]	target		コンストラクタで指定したもの
+	 */
+	public long getHitCount(Target target) {
+		for(int i=0; i<mTargets.length; i++) {
+			if(mTargets[i] == target) {
+				return mTargetHits[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 捕捉までの平均時間[nsec]
+	 */
+	public long getAverageDetectTime() {
+		return (mHits == 0) ? 0 : mDetectSum / mHits;
+	}
+
+	/**
+	 * 捕捉までの平均Polling回数
+	 */
+	public double getAverageAttempts() {
+		return (mHits == 0) ? 0 : (double)mAttemptSum / mHits;
+	}
+
+	/**
+	 * 統計を0に戻す(捕捉率と所要時間は残す)
+	 */
+	public void resetStats() {
+		mPolls = 0;
+		mHits = 0;
+		mDetectSum = 0;
+		mAttemptSum = 0;
+		for(int i=0; i<mTargetHits.length; i++) {
+			mTargetHits[i] = 0;
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	Target
+	 * @brief	Pollingする方式
+	 */
+	public static final class Target {
+		public final Tech tech;
+		/// システムコード(NFC-Fのみ)
+		public final int sysCode;
+
+		private Target(Tech tech, int sysCode) {
+			this.tech = tech;
+			this.sysCode = sysCode;
+		}
+
+		public static Target nfcA() {
+			return new Target(Tech.NFC_A, 0);
+		}
+
+		public static Target nfcB() {
+			return new Target(Tech.NFC_B, 0);
+		}
+
+		public static Target nfcF(int sysCode) {
+			return new Target(Tech.NFC_F, sysCode & 0xffff);
+		}
+
+		public static Target nfcF(NfcF.SysCode code) {
+			return nfcF(code.val());
+		}
+
+		/**
+		 * NFC-F(ワイルドカード)
+		 */
+		public static Target nfcF() {
+			return nfcF(0xffff);
+		}
+
+		@Override
+		public String toString() {
+			return (tech == Tech.NFC_F) ? String.format("NFC_F(%04x)", sysCode) : tech.name();
+		}
+	}
+
+	/**
+	 * @class	Result
+	 * @brief	Polling結果
+	 */
+	public static final class Result {
+		private Target mTarget;
+		private NfcPcd.NfcId mNfcId;
+		private CardId mCardId;
+		private long mDetectTime;
+		private int mAttempts;
+
+		private Result() {
+		}
+
+		/**
+		 * 捕捉できた方式
+		 */
+		public Target getTarget() {
+			return mTarget;
+		}
+
+		public Tech getTech() {
+			return mTarget.tech;
+		}
+
+		/**
+		 * 捕捉したNFC ID(セッションのもの)
+		 */
+		public NfcPcd.NfcId getNfcId() {
+			return mNfcId;
+		}
+
+		/**
+		 * 捕捉したカードのID(変更不可、保持してよい)
+		 */
+		public CardId getCardId() {
+			return mCardId;
+		}
+
+		/**
+		 * poll()開始から捕捉までの時間[nsec]
+		 */
+		public long getDetectTime() {
+			return mDetectTime;
+		}
+
+		/**
+		 * 捕捉までのPolling回数
+		 */
+		public int getAttempts() {
+			return mAttempts;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.blogpost.hiro99ma.pcd.PcdWorker.Callback;
+import com.blogpost.hiro99ma.pcd.PcdWorker.Job;
+
+import android.util.Log;
+
+/**
+ * @class		PcdPool
+ * @brief		複数PCDの同時使用
+ *
+ * PCDごとにスレッドを1本ずつ持ち、共有キューに積まれたJobを空いているPCDが取って実行する。
+ * Jobにはそれを実行するPCDのセッションが渡されるため、
+ * 「Polling→読み書き」のように1枚のカードに対する一連の処理を1つのJobにまとめること。
+ *
+ * @code
+ * PcdPool pool = new PcdPool(NfcPcd.openAll(mgr, intent));
+ * pool.start();
+ * pool.submit(job, cb);
+ * @endcode
+ */
+public final class PcdPool {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final String TAG = "PcdPool";
+
+	private final PcdSession[] mSessions;
+	private final Thread[] mThreads;
+	private final BlockingQueue<ReaderTask<?>> mQueue = new LinkedBlockingQueue<ReaderTask<?>>();
+	private volatile boolean mRunning = false;
+	/// mRunningの変更とキューへの追加を排他する
+	private final Object mSubmitLock = new Object();
+
+	/// PCDごとの完了数
+	private final AtomicLongArray mCompleted;
+	/// PCDごとの失敗数(例外)
+	private final AtomicLongArray mFailed;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	sessions	使用するPCDのセッション(open済み)
+	 */
+	public PcdPool(List<PcdSession> sessions) {
+		mSessions = sessions.toArray(new PcdSession[sessions.size()]);
+		mThreads = new Thread[mSessions.length];
+		mCompleted = new AtomicLongArray(mSessions.length);
+		mFailed = new AtomicLongArray(mSessions.length);
+	}
+
+	/**
+	 * PCD数
+	 */
+	public int size() {
+		return mSessions.length;
+	}
+
+	public PcdSession getSession(int reader) {
+		return mSessions[reader];
+	}
+
+	/**
+	 * 全PCDのスレッド開始
+	 */
+	public synchronized void start() {
+		if(mRunning) {
+			return;
+		}
+		for(Thread th : mThreads) {
+			if((th != null) && th.isAlive()) {
+				//停止が終わっていないスレッドがある
+				return;
+			}
+		}
+		synchronized(mSubmitLock) {
+			mRunning = true;
+		}
+		for(int i=0; i<mSessions.length; i++) {
+			final int reader = i;
+			mThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop(reader);
+				}
+			}, "NfcPcdPool-" + i);
+			mThreads[i].setDaemon(true);
+			mThreads[i].start();
+		}
+	}
+
+	/**
+	 * 全PCDのスレッド停止
+	 *
+	 * 実行中のJobが終わるのを待ち(割り込みはしない)、未実行のJobはキャンセルする。
+	 * 待っている間に呼び出し元が割り込まれたら、スレッドの終了を待たずに戻る。
+	 * セッションは閉じないので、必要なら呼び出し元で閉じること。
+	 */
+	public synchronized void shutdown() {
+		if(!mRunning) {
+			return;
+		}
+		synchronized(mSubmitLock) {
+			//これ以降のsubmit()はキャンセルされる
+			mRunning = false;
+		}
+		//キューを待っているスレッドを起こす(取り出したスレッドがキャンセルする)
+		for(int i=0; i<mThreads.length; i++) {
+			mQueue.add(new ReaderTask<Void>(new JobCall<Void>(null, null)));
+		}
+		for(int i=0; i<mThreads.length; i++) {
+			try {
+				mThreads[i].join();
+				mThreads[i] = null;
+			} catch (InterruptedException e) {
+				//スレッドはまだ動いているので参照は残す(残りのJobはスレッドもキャンセルする)
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		ReaderTask<?> task;
+		while((task = mQueue.poll()) != null) {
+			task.cancel(false);
+		}
+	}
+
+	private void loop(int reader) {
+		while(mRunning) {
+			ReaderTask<?> task;
+			try {
+				task = mQueue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if(!mRunning) {
+				task.cancel(false);
+				break;
+			}
+			task.mCall.mReader = reader;
+			task.run();
+		}
+	}
+
+	/**
+	 * Job投入
+	 *
+	 * 空いているPCDで実行される。
+	 *
+	 * @param[in]	job			実行する処理(実行したPCDのセッションが渡される)
+	 * @param[in]	cb			完了通知(null可、実行したPCDのスレッドから呼ばれる)
+	 *
+	 * @return		実行結果
+	 */
+	public <T> Future<T> submit(Job<T> job, Callback<T> cb) {
+		ReaderTask<T> task = new ReaderTask<T>(new JobCall<T>(job, cb));
+		synchronized(mSubmitLock) {
+			if(!mRunning) {
+				task.cancel(false);
+				return task;
+			}
+			mQueue.add(task);
+		}
+		return task;
+	}
+
+	/**
+	 * Job投入(完了通知なし)
+	 */
+	public <T> Future<T> submit(Job<T> job) {
+		return submit(job, null);
+	}
+
+	/**
+	 * 未実行のJob数
+	 */
+	public int getPendingCount() {
+		return mQueue.size();
+	}
+
+	/**
+	 * PCDごとの完了Job数(例外で終わったものを含む)
+	 */
+	public long getCompletedCount(int reader) {
+		return mCompleted.get(reader);
+	}
+
+	/**
+	 * 全PCDの完了Job数
+	 */
+	public long getCompletedCount() {
+		long sum = 0;
+		for(int i=0; i<mSessions.length; i++) {
+			sum += mCompleted.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * PCDごとの、例外で終わったJob数
+	 */
+	public long getFailedCount(int reader) {
+		return mFailed.get(reader);
+	}
+
+	public void resetStats() {
+		for(int i=0; i<mSessions.length; i++) {
+			mCompleted.set(i, 0);
+			mFailed.set(i, 0);
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * Job実行
+	 *
+	 * 実行するPCDはキューから取り出したスレッドで決まる。
+	 */
+	private final class JobCall<T> implements Callable<T> {
+		private final Job<T> mJob;
+		private final Callback<T> mCb;
+		int mReader;
+
+		JobCall(Job<T> job, Callback<T> cb) {
+			mJob = job;
+			mCb = cb;
+		}
+
+		@Override
+		public T call() throws Exception {
+			T result;
+			try {
+				result = mJob.run(mSessions[mReader]);
+			} catch (Exception ex) {
+				Log.e(TAG, "job fail(" + mReader + ") : " + ex);
+				mFailed.incrementAndGet(mReader);
+				mCompleted.incrementAndGet(mReader);
+				if(mCb != null) {
+					mCb.failed(ex);
+				}
+				throw ex;
+			}
+			mCompleted.incrementAndGet(mReader);
+			if(mCb != null) {
+				mCb.completed(result);
+			}
+			return result;
+		}
+	}
+
+	private static final class ReaderTask<T> extends FutureTask<T> {
+		final JobCall<T> mCall;
+
+		ReaderTask(JobCall<T> call) {
+			super(call);
+			mCall = call;
+		}
+	}
+}
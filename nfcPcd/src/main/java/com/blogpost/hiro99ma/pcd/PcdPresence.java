@@ -0,0 +1,370 @@
+package com.blogpost.hiro99ma.pcd;
+
+import android.util.Log;
+
+/**
+ * @class		PcdPresence
+ * @brief		カードの有無の監視
+ *
+ * PcdWorkerのキューが空いている間、一定間隔でPollingし、カードが来た/離れたことを通知する。
+ * Pollingはワーカースレッドで行うので、通知を受けてsubmit()したJobはすぐ次に実行される。
+ * カードがある間は搬送波を止めないので、Jobは捕捉済みのカードにそのままアクセスできる。
+ * カードがない間は、Pollingの合間は搬送波を止め、スレッドは寝ている。
+ *
+ * カードがある間の確認は、FeliCaならRequest Response(搬送波もカードの状態もそのまま)で行う。
+ * それ以外は搬送波を入れ直してPollingし直すので、選択などのカードの状態は次の確認までしか続かない。
+ *
+ * 読み取り範囲の端では捕捉に失敗することがあるため、
+ * 離れた判定は続けて#setDebounce()回捕捉できなかったときにする。
+ *
+ * @code
+ * PcdPresence presence = new PcdPresence(new PcdPoller(worker.getSession(), ...), listener);
+ * presence.start(worker);
+ * @endcode
+ */
+public final class PcdPresence {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/**
+	 * 通知(ワーカースレッドから呼ばれる)
+	 */
+	public interface Listener {
+		/**
+		 * カードが来た
+		 *
+		 * @param[in]	id		捕捉したカードのID
+		 */
+		public void cardArrived(CardId id);
+
+		/**
+		 * カードが離れた
+		 *
+		 * @param[in]	id		離れたカードのID(cardArrived()と同じもの)
+		 */
+		public void cardRemoved(CardId id);
+	}
+
+	public static final int DEFAULT_INTERVAL = 50;
+	public static final int DEFAULT_ARRIVE_COUNT = 1;
+	public static final int DEFAULT_REMOVE_COUNT = 3;
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final String TAG = "PcdPresence";
+
+	private final PcdPoller mPoller;
+	private final Listener mListener;
+	private PcdWorker mWorker = null;
+
+	/// Polling間隔[msec]
+	private volatile long mInterval = DEFAULT_INTERVAL;
+	/// カードがない状態がこれだけ続いたら間隔を延ばす[msec](0:延ばさない)
+	private volatile long mIdleAfter = 0;
+	/// 延ばしたときの最大間隔[msec]
+	private volatile long mIdleInterval = DEFAULT_INTERVAL;
+	/// 来た判定に必要な連続捕捉回数
+	private volatile int mArriveCount = DEFAULT_ARRIVE_COUNT;
+	/// 離れた判定に必要な連続失敗回数
+	private volatile int mRemoveCount = DEFAULT_REMOVE_COUNT;
+
+	/// 通知済みのカード(null:なし)
+	private volatile CardId mCard = null;
+	/// 来た判定中のカード
+	private CardId mCandidate = null;
+	private int mHitRun = 0;
+	private int mMissRun = 0;
+
+	/// カードがなくなった時刻
+	private long mIdleSince = 0;
+	/// 最後にカードがないことを確認したPollingの開始時刻
+	private long mLastEmpty = 0;
+	private long mWait = 0;
+
+	/// 統計(Pollingのスレッドで更新し、どのスレッドからでも読めるようにmStatLockで守る)
+	private final Object mStatLock = new Object();
+	/// 検出遅延[nsec]
+	private long mLatencySum = 0;
+	private long mLatencyMax = 0;
+	private long mLatencyCount = 0;
+	private long mArrived = 0;
+	private long mRemoved = 0;
+	private long mPolls = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	poller		Pollingする方式(ワーカーのセッションで作ったもの)
+	 * @param[in]	listener	通知先
+	 */
+	public PcdPresence(PcdPoller poller, Listener listener) {
+		mPoller = poller;
+		mListener = listener;
+	}
+
+	/**
+	 * Polling間隔
+	 *
+	 * カードを置いてから通知までは、最大でおよそ「間隔 + Polling 1周の時間」かかる。
+	 *
+	 * @param[in]	msec		間隔[msec]
+	 */
+	public void setInterval(long msec) {
+		mInterval = msec;
+		if(mIdleInterval < msec) {
+			mIdleInterval = msec;
+		}
+	}
+
+	/**
+	 * カードがないときの間隔の延長
+	 *
+	 * カードがない状態がafter続いたら、間隔を倍々にしてmaxまで延ばす。カードが来たら元に戻す。
+	 * 延ばしている間は、置いてから通知までがその分遅くなる。
+	 *
+	 * @param[in]	after		延ばし始めるまでの時間[msec](0:延ばさない)
+	 * @param[in]	max			最大間隔[msec]
+	 */
+	public void setIdleBackoff(long after, long max) {
+		mIdleAfter = after;
+		mIdleInterval = Math.max(max, mInterval);
+	}
+
+	/**
+	 * 判定に必要な連続回数
+	 *
+	 * @param[in]	arrive		来た判定(同じカードを続けて捕捉する回数)
+	 * @param[in]	remove		離れた判定(続けて捕捉できない回数)
+	 */
+	public void setDebounce(int arrive, int remove) {
+		mArriveCount = Math.max(1, arrive);
+		mRemoveCount = Math.max(1, remove);
+	}
+
+	/**
+	 * 監視開始
+	 *
+	 * @param[in]	worker		Pollingを行うワーカー(PcdPollerと同じセッションのもの)
+	 */
+	public synchronized void start(PcdWorker worker) {
+		if(mWorker != null) {
+			return;
+		}
+		mWorker = worker;
+		worker.setIdleTask(mIdleTask);
+	}
+
+	/**
+	 * 監視停止
+	 *
+	 * カードがあっても離れた通知はしない。
+	 * カードがあれば搬送波は入ったままなので、必要なら停止後にNfcPcd#rfOff()を呼ぶ。
+	 */
+	public synchronized void stop() {
+		if(mWorker == null) {
+			return;
+		}
+		mWorker.setIdleTask(null);
+		mWorker = null;
+	}
+
+	/**
+	 * 通知済みのカードがあるか
+	 */
+	public boolean isPresent() {
+		return mCard != null;
+	}
+
+	/**
+	 * 通知済みのカード
+	 *
+	 * @return		ID(なければnull)
+	 */
+	public CardId getCard() {
+		return mCard;
+	}
+
+	private final PcdWorker.IdleTask mIdleTask = new PcdWorker.IdleTask() {
+		@Override
+		public long idle(PcdSession s) {
+			return pollOnce(s);
+		}
+	};
+
+	/**
+	 * 1回分のPolling
+	 *
+	 * @return		次のPollingまでの時間[msec]
+	 */
+	long pollOnce(PcdSession s) {
+		final long start = System.nanoTime();
+		synchronized(mStatLock) {
+			mPolls++;
+		}
+		final CardId card = mCard;
+		if((card != null) && stillThere(s, card)) {
+			hit(card);
+		} else {
+			if(card != null) {
+				//捕捉し直すため、カードを初期状態に戻す
+				NfcPcd.rfOff(s);
+			}
+			PcdPoller.Result res = mPoller.poll();
+			if(res != null) {
+				hit(res.getCardId());
+			} else {
+				miss(start);
+			}
+		}
+		//カードがない間だけ、合間は搬送波を止めておく
+		if(mCard == null) {
+			NfcPcd.rfOff(s);
+		}
+
+		return nextWait(start);
+	}
+
+	/**
+	 * 通知済みのカードが捕捉したままあるか
+	 *
+	 * FeliCaのみ、Request Responseで確かめる。Jobが別のカードを捕捉していたり、搬送波を止めていたらfalse。
+	 */
+	private static boolean stillThere(PcdSession s, CardId card) {
+		return (card.getType() == NfcPcd.NfcIdType.NFCID2) && card.matches(s.nfcId)
+				&& (NfcF.getInstance().requestResponse(s) >= 0);
+	}
+
+	private void hit(CardId id) {
+		mMissRun = 0;
+		if(id.equals(mCard)) {
+			return;
+		}
+		if(mCard != null) {
+			//別のカードに替わった
+			removed();
+		}
+
+		if((mHitRun > 0) && id.equals(mCandidate)) {
+			mHitRun++;
+		} else {
+			mCandidate = id;
+			mHitRun = 1;
+		}
+		if(mHitRun >= mArriveCount) {
+			mHitRun = 0;
+			mCandidate = null;
+			mCard = id;
+			final long latency = System.nanoTime() - mLastEmpty;
+			synchronized(mStatLock) {
+				mArrived++;
+				if(mLastEmpty != 0) {
+					mLatencySum += latency;
+					mLatencyCount++;
+					if(latency > mLatencyMax) {
+						mLatencyMax = latency;
+					}
+				}
+			}
+			try {
+				mListener.cardArrived(id);
+			} catch (RuntimeException ex) {
+				Log.e(TAG, "cardArrived : " + ex);
+			}
+		}
+	}
+
+	private void miss(long start) {
+		mHitRun = 0;
+		mCandidate = null;
+		if(mCard == null) {
+			mLastEmpty = start;
+			return;
+		}
+		if(++mMissRun >= mRemoveCount) {
+			mMissRun = 0;
+			mLastEmpty = start;
+			removed();
+		}
+	}
+
+	private void removed() {
+		final CardId id = mCard;
+		mCard = null;
+		synchronized(mStatLock) {
+			mRemoved++;
+		}
+		mIdleSince = System.nanoTime();
+		try {
+			mListener.cardRemoved(id);
+		} catch (RuntimeException ex) {
+			Log.e(TAG, "cardRemoved : " + ex);
+		}
+	}
+
+	private long nextWait(long start) {
+		if((mCard != null) || (mHitRun > 0)) {
+			mIdleSince = 0;
+			mWait = mInterval;
+			return mInterval;
+		}
+		if(mIdleSince == 0) {
+			mIdleSince = start;
+		}
+		if((mIdleAfter > 0) && ((start - mIdleSince) / 1000000 >= mIdleAfter)) {
+			mWait = Math.min(Math.max(mWait, mInterval) * 2, mIdleInterval);
+		} else {
+			mWait = mInterval;
+		}
+		return mWait;
+	}
+
+	/**
+	 * Polling回数
+	 */
+	public long getPollCount() {
+		synchronized(mStatLock) {
+			return mPolls;
+		}
+	}
+
+	public long getArrivedCount() {
+		synchronized(mStatLock) {
+			return mArrived;
+		}
+	}
+
+	public long getRemovedCount() {
+		synchronized(mStatLock) {
+			return mRemoved;
+		}
+	}
+
+	/**
+	 * 平均検出遅延[nsec]
+	 *
+	 * カードがないことを最後に確認したPollingの開始から、来た通知までの時間。
+	 * 実際に置いてから通知までの時間はこれより短い。
+	 */
+	public long getAverageLatency() {
+		synchronized(mStatLock) {
+			return (mLatencyCount == 0) ? 0 : mLatencySum / mLatencyCount;
+		}
+	}
+
+	/**
+	 * 最大検出遅延[nsec]
+	 */
+	public long getMaxLatency() {
+		synchronized(mStatLock) {
+			return mLatencyMax;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		PcdRecovery
+ * @brief		通信エラーからの復帰
+ *
+ * フレーム異常やプロトコルエラーの後、PCDを次のコマンドを受け付けられる状態に戻す。
+ * ACKで処理中のコマンドを中断し、INに残ったデータを読み捨て、
+ * プリアンブル(00 00 ff)でフレームを見つけながら静かになるまで待つ。
+ * 全体は#setBudget()のミリ秒以内で打ち切る。
+ */
+public final class PcdRecovery {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	public enum State {
+		ABORT,			///< ACK送信(コマンド中断)
+		DRAIN,			///< INの読み捨て
+		RESYNC,			///< 読み捨てたデータからフレームを探す
+		DONE,			///< 復帰
+		FAIL,			///< 予算切れ
+	}
+
+	/// 復帰にかける時間のデフォルト[msec]
+	public static final int DEFAULT_BUDGET = 20;
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	/// 読み捨て時のreadタイムアウト[msec]
+	private static final int DRAIN_TIMEOUT = 2;
+	/// ACK再送の上限
+	private static final int MAX_RETRY = 3;
+
+	private int mBudget = DEFAULT_BUDGET;
+
+	private volatile long mCount = 0;
+	private volatile long mFailCount = 0;
+	private volatile long mDiscardCount = 0;
+	private volatile long mLastNs = 0;
+	private volatile long mMaxNs = 0;
+	private volatile long mTotalNs = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * 復帰にかける時間
+	 *
+	 * @param[in]	msec		上限[msec]
+	 */
+	public void setBudget(int msec) {
+		mBudget = msec;
+	}
+
+	public int getBudget() {
+		return mBudget;
+	}
+
+	/// 復帰を行った回数
+	public long getCount() {
+		return mCount;
+	}
+
+	/// 予算内に復帰できなかった回数
+	public long getFailCount() {
+		return mFailCount;
+	}
+
+	/// 読み捨てたフレーム数
+	public long getDiscardCount() {
+		return mDiscardCount;
+	}
+
+	/// 直近の復帰時間[nsec]
+	public long getLastLatency() {
+		return mLastNs;
+	}
+
+	/// 最大の復帰時間[nsec]
+	public long getMaxLatency() {
+		return mMaxNs;
+	}
+
+	/// 平均の復帰時間[nsec]
+	public long getAverageLatency() {
+		final long cnt = mCount;
+		return (cnt == 0) ? 0 : mTotalNs / cnt;
+	}
+
+	public void resetStats() {
+		mCount = 0;
+		mFailCount = 0;
+		mDiscardCount = 0;
+		mLastNs = 0;
+		mMaxNs = 0;
+		mTotalNs = 0;
+	}
+
+	/**
+	 * 復帰処理
+	 *
+	 * @param[in]	port		通信路
+	 * @param[out]	buf			読み捨て用バッファ
+	 *
+	 * @retval		true		PCDが静かになった
+	 * @retval		false		予算内に復帰できなかった
+	 */
+	boolean recover(IPcdPort port, byte[] buf) {
+		final long start = System.nanoTime();
+		final long limit = start + mBudget * 1000000L;
+		State st = State.ABORT;
+		int retry = 0;
+		int len = 0;
+
+		while((st != State.DONE) && (st != State.FAIL)) {
+			switch(st) {
+			case ABORT:
+				if(port.write(PcdFrame.ACK, PcdFrame.ACK.length, DRAIN_TIMEOUT) == PcdFrame.ACK.length) {
+					st = State.DRAIN;
+				} else if(++retry > MAX_RETRY) {
+					st = State.FAIL;
+				}
+				break;
+
+			case DRAIN:
+				len = port.read(buf, buf.length, DRAIN_TIMEOUT);
+				st = (len > 0) ? State.RESYNC : State.DONE;
+				break;
+
+			case RESYNC:
+				st = State.DRAIN;
+				for(int pos = PcdFrame.findPreamble(buf, 0, len); pos >= 0;
+						pos = PcdFrame.findPreamble(buf, pos + 3, len)) {
+					mDiscardCount++;
+					if(!PcdFrame.isAck(buf, pos, len)) {
+						//中断前のレスポンスが残っていたので、もう一度中断する
+						st = (++retry > MAX_RETRY) ? State.FAIL : State.ABORT;
+						break;
+					}
+				}
+				break;
+
+			default:
+				break;
+			}
+			if((st != State.DONE) && (System.nanoTime() - limit > 0)) {
+				st = State.FAIL;
+			}
+		}
+
+		final long ns = System.nanoTime() - start;
+		mCount++;
+		mLastNs = ns;
+		mTotalNs += ns;
+		if(ns > mMaxNs) {
+			mMaxNs = ns;
+		}
+		if(st == State.FAIL) {
+			mFailCount++;
+			return false;
+		}
+		return true;
+	}
+}
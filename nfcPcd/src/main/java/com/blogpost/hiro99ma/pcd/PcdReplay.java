@@ -0,0 +1,267 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.blogpost.hiro99ma.pcd.PcdStats.Phase;
+
+/**
+ * @class		PcdReplay
+ * @brief		記録したフレームの再生による回帰計測
+ *
+ * WireTraceのキャプチャモードで記録した送受信を、ReplayPort経由でNfcPcdに流し直す。
+ * 記録された送信フレームからコマンドを取り出してsendCmd()するので、
+ * フレームの組み立て/検査、ACK待ち、エラーからの復帰まで実機と同じ経路を通る。
+ * 同じ記録なら毎回同じ結果になるため、変更前後の比較に使える。
+ *
+ * @code
+ * //記録
+ * WireTrace trace = new WireTrace(8192, 1024 * 1024);
+ * trace.setCapture(true);
+ * NfcPcd.getSession().setTrace(trace);
+ * ...
+ * trace.dump(file);
+ *
+ * //再生と比較
+ * PcdReplay.Report rep = PcdReplay.run(ReplayPort.load(file), false);
+ * List<String> ng = rep.check(PcdReplay.Report.load(baseFile), 10);
+ * @endcode
+ */
+public final class PcdReplay {
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	private PcdReplay() {
+	}
+
+	/**
+	 * 再生
+	 *
+	 * @param[in]	port		再生する記録
+	 * @param[in]	realtime	trueなら記録時の応答時間を再現する
+	 * @return		結果
+	 */
+	public static Report run(ReplayPort port, boolean realtime) {
+		PcdSession s = new PcdSession(port);
+		byte[] cmd = new byte[PcdFrame.MAX_DATA];
+		short[] res_len = new short[1];
+		int commands = 0;
+		int failures = 0;
+
+		port.rewind();
+		port.setRealtime(realtime);
+		s.stats.reset();
+		int len;
+		while((len = port.nextCommand(cmd)) > 0) {
+			commands++;
+			if(!NfcPcd.sendCmd(s, cmd, len, null, res_len)) {
+				failures++;
+			}
+		}
+		return new Report(commands, failures, port.getMismatchCount() + port.getSkippedCount(),
+							s.stats.snapshot());
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	Report
+	 * @brief	再生結果
+	 *
+	 * #save()で基準として保存し、次回の結果を#check()で比較する。
+	 */
+	public static final class Report {
+		private final int mCommands;
+		private final int mFailures;
+		private final int mMismatch;
+		private final double mThroughput;
+		/// [コマンド] レスポンス待ちp50/p99[nsec]
+		private final long[] mP50 = new long[PcdStats.COMMANDS.length];
+		private final long[] mP99 = new long[PcdStats.COMMANDS.length];
+
+		private Report(int commands, int failures, int mismatch, PcdStats.Snapshot snap) {
+			mCommands = commands;
+			mFailures = failures;
+			mMismatch = mismatch;
+			mThroughput = (snap.getElapsed() <= 0) ? 0 : commands * 1e9 / snap.getElapsed();
+			for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+				mP50[i] = snap.getPercentile(PcdStats.COMMANDS[i], Phase.RESPONSE, 50);
+				mP99[i] = snap.getPercentile(PcdStats.COMMANDS[i], Phase.RESPONSE, 99);
+			}
+		}
+
+		private Report(Properties prop) throws IOException {
+			try {
+				mCommands = Integer.parseInt(prop.getProperty("commands", "0"));
+				mFailures = Integer.parseInt(prop.getProperty("failures", "0"));
+				mMismatch = Integer.parseInt(prop.getProperty("mismatch", "0"));
+				mThroughput = Double.parseDouble(prop.getProperty("throughput", "0"));
+				for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+					String key = cmdName(PcdStats.COMMANDS[i]);
+					mP50[i] = Long.parseLong(prop.getProperty("p50." + key, "0"));
+					mP99[i] = Long.parseLong(prop.getProperty("p99." + key, "0"));
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("bad baseline : " + e.getMessage());
+			}
+		}
+
+		private static String cmdName(byte cmd) {
+			return String.format("%02x", cmd & 0xff);
+		}
+
+		/**
+		 * 再生したコマンド数
+		 */
+		public int getCommandCount() {
+			return mCommands;
+		}
+
+		/**
+		 * 失敗したコマンド数
+		 */
+		public int getFailCount() {
+			return mFailures;
+		}
+
+		/**
+		 * 記録と違う送受信の数(0でなければ記録時と動作が変わっている)
+		 */
+		public int getMismatchCount() {
+			return mMismatch;
+		}
+
+		/**
+		 * 秒あたりのコマンド数
+		 */
+		public double getThroughput() {
+			return mThroughput;
+		}
+
+		/**
+		 * レスポンス待ちのp50[nsec]
+		 */
+		public long getP50(byte cmd) {
+			int i = index(cmd);
+			return (i < 0) ? 0 : mP50[i];
+		}
+
+		/**
+		 * レスポンス待ちのp99[nsec]
+		 */
+		public long getP99(byte cmd) {
+			int i = index(cmd);
+			return (i < 0) ? 0 : mP99[i];
+		}
+
+		private static int index(byte cmd) {
+			for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+				if(PcdStats.COMMANDS[i] == cmd) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * 基準との比較
+		 *
+		 * 不一致がある、失敗が増えた、スループットが下がった、p99が延びた場合にNGとする。
+		 *
+		 * @param[in]	base		基準
+		 * @param[in]	tolerance	スループット/p99の許容幅[%]
+		 * @return		NG項目(空ならOK)
+		 */
+		public List<String> check(Report base, double tolerance) {
+			List<String> ng = new ArrayList<String>();
+			if(mMismatch != 0) {
+				ng.add("mismatch " + mMismatch);
+			}
+			if(mCommands != base.mCommands) {
+				ng.add("commands " + mCommands + " (base " + base.mCommands + ")");
+			}
+			if(mFailures > base.mFailures) {
+				ng.add("failures " + mFailures + " (base " + base.mFailures + ")");
+			}
+			if(mThroughput < base.mThroughput * (1.0 - tolerance / 100.0)) {
+				ng.add(String.format("throughput %.1f/s (base %.1f/s)", mThroughput, base.mThroughput));
+			}
+			for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+				if((base.mP99[i] > 0) && (mP99[i] > base.mP99[i] * (1.0 + tolerance / 100.0))) {
+					ng.add(String.format("p99[%s] %dus (base %dus)",
+								cmdName(PcdStats.COMMANDS[i]), mP99[i] / 1000, base.mP99[i] / 1000));
+				}
+			}
+			return ng;
+		}
+
+		/**
+		 * 基準として保存
+		 */
+		public void save(OutputStream os) throws IOException {
+			Properties prop = new Properties();
+			prop.setProperty("commands", Integer.toString(mCommands));
+			prop.setProperty("failures", Integer.toString(mFailures));
+			prop.setProperty("mismatch", Integer.toString(mMismatch));
+			prop.setProperty("throughput", Double.toString(mThroughput));
+			for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+				if(mP99[i] > 0) {
+					String key = cmdName(PcdStats.COMMANDS[i]);
+					prop.setProperty("p50." + key, Long.toString(mP50[i]));
+					prop.setProperty("p99." + key, Long.toString(mP99[i]));
+				}
+			}
+			prop.store(os, "PcdReplay baseline");
+		}
+
+		public void save(File file) throws IOException {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				save(fos);
+			} finally {
+				fos.close();
+			}
+		}
+
+		/**
+		 * 基準の読み込み
+		 */
+		public static Report load(InputStream is) throws IOException {
+			Properties prop = new Properties();
+			prop.load(is);
+			return new Report(prop);
+		}
+
+		public static Report load(File file) throws IOException {
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				return load(fis);
+			} finally {
+				fis.close();
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("commands %d, failures %d, mismatch %d, %.1f/s",
+							mCommands, mFailures, mMismatch, mThroughput));
+			for(int i=0; i<PcdStats.COMMANDS.length; i++) {
+				if(mP99[i] > 0) {
+					sb.append(String.format("\n  %s : p50 %dus, p99 %dus",
+							cmdName(PcdStats.COMMANDS[i]), mP50[i] / 1000, mP99[i] / 1000));
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		PcdSession
+ * @brief		PCD 1台分の通信状態
+ *
+ * 送受信フレーム、カード向けコマンド/レスポンスバッファ、捕捉中のNFC IDを持つ。
+ * セッションごとに独立しているため、別々のPCDを別々のスレッドから同時に扱える。
+ *
+ * @attention	1つのセッションを複数スレッドから同時に使わないこと(PcdWorkerなどで1本にまとめる)。
+ */
+public final class PcdSession {
+
+	///////////////////////////
+	// fields
+	///////////////////////////
+
+	/// PCDとの通信路(トレース中はWireTraceを通す)
+	IPcdPort port;
+	/// 設定された通信路
+	private IPcdPort mRawPort;
+	/// 送受信の記録
+	private WireTrace mTrace;
+
+	/// PCDへの送信フレーム
+	final PcdFrame txFrame = new PcdFrame(PcdFrame.MAX_FRAME);
+	/// PCDからの受信フレーム
+	final PcdFrame rxFrame = new PcdFrame(PcdFrame.MAX_FRAME);
+	/// PCDへの送信バッファ
+	final byte[] sendBuf = txFrame.buf;
+	/// PCDからの受信バッファ(レスポンスは#PcdFrame.POS_CMDから)
+	final byte[] recvBuf = rxFrame.buf;
+
+	/// NfcPcd内部のレスポンス長(sendCmd()1回分だけ使う)
+	final short[] resLen = new short[1];
+
+	/// カードへのコマンド作成用
+	final byte[] cmdBuf = new byte[NfcPcd.SIZE_CMDBUF];
+	/// カードからのレスポンス受信用
+	final byte[] resBuf = new byte[NfcPcd.SIZE_RESBUF];
+
+	/// 通信エラーからの復帰
+	final PcdRecovery recovery = new PcdRecovery();
+	/// 処理時間と失敗数
+	final PcdStats stats = new PcdStats();
+	/// PCDに設定済みのRFConfiguration
+	final RfState rf = new RfState();
+	/// 最後に設定したRFConfiguration
+	RfProfile rfProfile = null;
+
+	/// NFC ID
+	NfcPcd.NfcId nfcId = NfcPcd.NfcId.allocate();
+	/// 最後に作ったCardId(同じカードなら使い回す)
+	private CardId mCardId = null;
+	/// FeliCa Pollingで最初に試す通信速度
+	final BitRateMemory bitRate = new BitRateMemory();
+	/// FeliCaブロックのキャッシュ
+	final BlockCache blockCache = new BlockCache();
+	/// FeliCa 1コマンドあたりのブロック数の上限(0:フレーム長とICコードから決める)
+	int maxReadBlocks = 0;
+	int maxWriteBlocks = 0;
+	/// 捕捉したTarget(先頭#targetNum個が有効)
+	final NfcPcd.NfcId[] targets = new NfcPcd.NfcId[NfcPcd.MAX_TG];
+	int targetNum = 0;
+	/// NFCID3 for Initiator
+	byte[] nfcId3i = new byte[NfcPcd.SIZE_NFCID3];
+	/// NFCID3 for Target
+	byte[] nfcId3t = new byte[NfcPcd.SIZE_NFCID3];
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	port		PCDとの通信路(null可)
+	 */
+	public PcdSession(IPcdPort port) {
+		setPort(port);
+		nfcId.reset();
+		for(int i=0; i<targets.length; i++) {
+			targets[i] = NfcPcd.NfcId.allocate();
+			targets[i].reset();
+		}
+	}
+
+	public PcdSession() {
+		this(null);
+	}
+
+	/**
+	 * 通信路
+	 */
+	public IPcdPort getPort() {
+		return mRawPort;
+	}
+
+	void setPort(IPcdPort p) {
+		if(p != mRawPort) {
+			//別のPCDなので設定は分からない
+			rf.clear();
+			rfProfile = null;
+			blockCache.clear();
+		}
+		mRawPort = p;
+		port = ((mTrace != null) && (p != null)) ? mTrace.wrap(p) : p;
+	}
+
+	/**
+	 * 送受信の記録
+	 *
+	 * @param[in]	trace		記録先(nullで記録しない)
+	 */
+	public void setTrace(WireTrace trace) {
+		mTrace = trace;
+		setPort(mRawPort);
+	}
+
+	public WireTrace getTrace() {
+		return mTrace;
+	}
+
+	/**
+	 * 捕捉中のNFC ID
+	 *
+	 * 次のPollingやrfOff()で書き換わる。保持したり、別スレッドに渡す場合は#getCardId()を使う。
+	 */
+	public NfcPcd.NfcId getNfcId() {
+		return nfcId;
+	}
+
+	/**
+	 * 捕捉中のカードのID(変更不可)
+	 *
+	 * 同じカードを捕捉している間は同じインスタンスを返すので、Pollingのたびに確保はしない。
+	 *
+	 * @return		ID(捕捉していなければnull)
+	 */
+	public CardId getCardId() {
+		if(nfcId.Type == NfcPcd.NfcIdType.NONE) {
+			return null;
+		}
+		CardId id = mCardId;
+		if((id == null) || !id.matches(nfcId)) {
+			id = new CardId(nfcId);
+			mCardId = id;
+		}
+		return id;
+	}
+
+	public void setNfcId(NfcPcd.NfcId nfcid) {
+		nfcId = nfcid;
+	}
+
+	/**
+	 * 直前のPollingで捕捉したカード数
+	 *
+	 * NfcPcd#listTargetsA()などで複数捕捉した場合に使う。次のPollingやrfOff()で0に戻る。
+	 */
+	public int getTargetCount() {
+		return targetNum;
+	}
+
+	/**
+	 * 直前のPollingで捕捉したカード
+	 *
+	 * @param[in]	index		0～#getTargetCount()-1
+	 * @see			NfcPcd#selectTarget(PcdSession, int)
+	 */
+	public NfcPcd.NfcId getTarget(int index) {
+		return targets[index];
+	}
+
+	/**
+	 * 通信エラーからの復帰状況
+	 */
+	public PcdRecovery getRecovery() {
+		return recovery;
+	}
+
+	/**
+	 * コマンドごとの処理時間と失敗数
+	 */
+	public PcdStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * 最後に設定したRFConfiguration
+	 *
+	 * @return		NfcPcd#setRfProfile()で設定したもの(未設定ならnull)
+	 */
+	public RfProfile getRfProfile() {
+		return rfProfile;
+	}
+
+	/**
+	 * 送信したRFConfigurationの数
+	 */
+	public long getRfSentCount() {
+		return rf.getSentCount();
+	}
+
+	/**
+	 * 設定済みのため省いたRFConfigurationの数
+	 */
+	public long getRfSkippedCount() {
+		return rf.getSkippedCount();
+	}
+
+	/**
+	 * FeliCaブロックのキャッシュ(初期状態は無効)
+	 */
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	/**
+	 * 通信路を閉じる
+	 */
+	public void close() {
+		if(port != null) {
+			port.close();
+		}
+		setPort(null);
+	}
+}
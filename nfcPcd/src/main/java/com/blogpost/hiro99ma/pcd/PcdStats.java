@@ -0,0 +1,289 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class		PcdStats
+ * @brief		コマンドごとの処理時間と失敗数
+ *
+ * PN533コマンドコードごとに、送信(write)、ACK待ち、レスポンス待ちの時間をヒストグラムで持つ。
+ * ヒストグラムは2のべき乗ごとに16分割したバケット(誤差6%程度、1usec～約30sec)で、
+ * 更新はロックなしで行うため、I/Oスレッドを止めずに別スレッドから#snapshot()できる。
+ * 失敗は理由ごとに数える。
+ */
+public final class PcdStats {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/// 計測区間
+	public enum Phase {
+		WRITE,			///< フレーム送信
+		ACK,			///< ACK受信まで
+		RESPONSE,		///< レスポンス受信まで
+	}
+
+	/// 失敗理由
+	public enum Failure {
+		WRITE,			///< 送信失敗
+		ACK,			///< ACKが来ない(sendCmd 0)
+		TIMEOUT,		///< レスポンスが来ない(recvResp 1)
+		PREAMBLE,		///< プリアンブル不正(recvResp 2)
+		LCS,			///< LCS不正(recvResp 4)
+		LEN,			///< 長さ不正(recvResp 5)
+		DCS,			///< DCS不正(recvResp 8)
+		ERROR_FRAME,	///< エラーフレーム/TFI不正(recvResp 6)
+		CMD,			///< レスポンスコード不一致(recvResp 7)
+		RECOVERY,		///< エラーからの復帰失敗
+	}
+
+	/// 個別に集計するコマンド(それ以外は「その他」にまとめる)
+	public static final byte[] COMMANDS = {
+		0x4a,			//InListPassiveTarget
+		0x40,			//InDataExchange
+		0x42,			//InCommunicateThru
+		(byte)0xa0,		//CommunicateThruEX
+		0x32,			//RFConfiguration
+		0x56,			//InJumpForDEP
+		0x46,			//InJumpForPSL
+		0x12,			//SetParameters
+		0x18,			//Reset
+	};
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	/// 2のべき乗あたりのバケット数(2^SUB_BITS)
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	/// 最大値 2^MAX_EXP [usec]
+	private static final int MAX_EXP = 25;
+	private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+
+	private static final int PHASES = Phase.values().length;
+	/// コマンド枠(最後は「その他」)
+	private static final int SLOTS = COMMANDS.length + 1;
+
+	/// コマンドコード→枠
+	private static final byte[] SLOT_OF = new byte[256];
+	static {
+		for(int i=0; i<256; i++) {
+			SLOT_OF[i] = (byte)COMMANDS.length;
+		}
+		for(int i=0; i<COMMANDS.length; i++) {
+			SLOT_OF[COMMANDS[i] & 0xff] = (byte)i;
+		}
+	}
+
+	/// [枠][区間][バケット]
+	private final AtomicLongArray mHist = new AtomicLongArray(SLOTS * PHASES * BUCKETS);
+	/// [枠][区間] 合計[nsec]
+	private final AtomicLongArray mSum = new AtomicLongArray(SLOTS * PHASES);
+	/// [枠][区間] 最大[nsec]
+	private final AtomicLongArray mMax = new AtomicLongArray(SLOTS * PHASES);
+	/// [枠] 失敗数
+	private final AtomicLongArray mCmdFail = new AtomicLongArray(SLOTS);
+	/// [理由] 失敗数
+	private final AtomicLongArray mFail = new AtomicLongArray(Failure.values().length);
+
+	private volatile long mStart = System.nanoTime();
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * 時間の記録
+	 *
+	 * @param[in]	cmd			コマンドコード
+	 * @param[in]	phase		区間
+	 * @param[in]	nsec		時間[nsec]
+	 */
+	void record(byte cmd, Phase phase, long nsec) {
+		final int pos = (SLOT_OF[cmd & 0xff] * PHASES) + phase.ordinal();
+		mHist.incrementAndGet(pos * BUCKETS + bucket(nsec / 1000));
+		mSum.addAndGet(pos, nsec);
+		long max;
+		while(nsec > (max = mMax.get(pos))) {
+			if(mMax.compareAndSet(pos, max, nsec)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 失敗の記録
+	 */
+	void fail(byte cmd, Failure reason) {
+		mCmdFail.incrementAndGet(SLOT_OF[cmd & 0xff]);
+		mFail.incrementAndGet(reason.ordinal());
+	}
+
+	/**
+	 * 値[usec]→バケット
+	 */
+	static int bucket(long usec) {
+		if(usec < SUB_COUNT) {
+			return (usec < 0) ? 0 : (int)usec;
+		}
+		final int exp = 63 - Long.numberOfLeadingZeros(usec);
+		if(exp > MAX_EXP) {
+			return BUCKETS - 1;
+		}
+		final int sub = (int)(usec >> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * バケットの上限値[usec]
+	 */
+	static long bucketLimit(int bucket) {
+		if(bucket < SUB_COUNT) {
+			return bucket;
+		}
+		final int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+		final int sub = bucket % SUB_COUNT;
+		return ((long)(SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * 現在値のコピー
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this, false);
+	}
+
+	/**
+	 * 現在値をコピーして0に戻す
+	 *
+	 * 定期的に取得する場合に使う(取得間隔ごとの値になる)。
+	 */
+	public Snapshot snapshotAndReset() {
+		return new Snapshot(this, true);
+	}
+
+	public void reset() {
+		snapshotAndReset();
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * @class	Snapshot
+	 * @brief	ある時点の集計値
+	 */
+	public static final class Snapshot {
+		private final long[] mHist = new long[SLOTS * PHASES * BUCKETS];
+		private final long[] mCount = new long[SLOTS * PHASES];
+		private final long[] mSum = new long[SLOTS * PHASES];
+		private final long[] mMax = new long[SLOTS * PHASES];
+		private final long[] mCmdFail = new long[SLOTS];
+		private final long[] mFail = new long[Failure.values().length];
+		private final long mElapsed;
+
+		private Snapshot(PcdStats st, boolean reset) {
+			final long now = System.nanoTime();
+			mElapsed = now - st.mStart;
+			if(reset) {
+				st.mStart = now;
+			}
+			for(int i=0; i<mHist.length; i++) {
+				mHist[i] = reset ? st.mHist.getAndSet(i, 0) : st.mHist.get(i);
+				mCount[i / BUCKETS] += mHist[i];
+			}
+			for(int i=0; i<mSum.length; i++) {
+				mSum[i] = reset ? st.mSum.getAndSet(i, 0) : st.mSum.get(i);
+				mMax[i] = reset ? st.mMax.getAndSet(i, 0) : st.mMax.get(i);
+			}
+			for(int i=0; i<mCmdFail.length; i++) {
+				mCmdFail[i] = reset ? st.mCmdFail.getAndSet(i, 0) : st.mCmdFail.get(i);
+			}
+			for(int i=0; i<mFail.length; i++) {
+				mFail[i] = reset ? st.mFail.getAndSet(i, 0) : st.mFail.get(i);
+			}
+		}
+
+		private static int pos(byte cmd, Phase phase) {
+			return SLOT_OF[cmd & 0xff] * PHASES + phase.ordinal();
+		}
+
+		/**
+		 * 集計期間[nsec]
+		 */
+		public long getElapsed() {
+			return mElapsed;
+		}
+
+		/**
+		 * 回数
+		 *
+		 * @param[in]	cmd			コマンドコード(#COMMANDS以外は「その他」の値)
+		 * @param[in]	phase		区間
+		 */
+		public long getCount(byte cmd, Phase phase) {
+			return mCount[pos(cmd, phase)];
+		}
+
+		/**
+		 * 平均[nsec]
+		 */
+		public long getMean(byte cmd, Phase phase) {
+			final int p = pos(cmd, phase);
+			return (mCount[p] == 0) ? 0 : mSum[p] / mCount[p];
+		}
+
+		/**
+		 * 最大[nsec]
+		 */
+		public long getMax(byte cmd, Phase phase) {
+			return mMax[pos(cmd, phase)];
+		}
+
+		/**
+		 * パーセンタイル[nsec]
+		 *
+		 * @param[in]	percent		0～100(50ならp50)
+		 * @return		その割合の値が収まるバケットの上限(記録がなければ0)
+		 */
+		public long getPercentile(byte cmd, Phase phase, double percent) {
+			final int p = pos(cmd, phase);
+			if(mCount[p] == 0) {
+				return 0;
+			}
+			final long target = Math.max(1, (long)Math.ceil(mCount[p] * percent / 100.0));
+			long acc = 0;
+			for(int b=0; b<BUCKETS; b++) {
+				acc += mHist[p * BUCKETS + b];
+				if(acc >= target) {
+					return Math.min(bucketLimit(b) * 1000, mMax[p]);
+				}
+			}
+			return mMax[p];
+		}
+
+		/**
+		 * 秒あたりの完了数
+		 */
+		public double getThroughput(byte cmd) {
+			return (mElapsed <= 0) ? 0 : getCount(cmd, Phase.RESPONSE) * 1e9 / mElapsed;
+		}
+
+		/**
+		 * コマンドごとの失敗数
+		 */
+		public long getFailCount(byte cmd) {
+			return mCmdFail[SLOT_OF[cmd & 0xff]];
+		}
+
+		/**
+		 * 理由ごとの失敗数
+		 */
+		public long getFailCount(Failure reason) {
+			return mFail[reason.ordinal()];
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.blogpost.hiro99ma.pcd.NfcF.SysCode;
+
+import android.util.Log;
+
+/**
+ * @class		PcdWorker
+ * @brief		PCDアクセス専用スレッド
+ *
+ * PCDへのアクセスを1本のスレッドにまとめ、呼び出し元をUSB通信で待たせない。
+ * コマンドはキューに積まれた順に、間を空けずに実行される。
+ * 結果はFutureで受け取るか、Callbackで通知を受ける(Callbackはワーカースレッドから呼ばれる)。
+ *
+ * ワーカー1つにつきPcdSessionを1つ持ち、Jobにはそのセッションが渡される。
+ *
+ * @attention	ワーカーを使う場合、そのセッションへのアクセスはすべてワーカー経由にすること。
+ */
+public final class PcdWorker {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/**
+	 * ワーカースレッドで実行する処理
+	 */
+	public interface Job<T> {
+		public T run(PcdSession s) throws Exception;
+	}
+
+	/**
+	 * キューが空いているときの処理
+	 */
+	interface IdleTask {
+		/**
+		 * @return		次に呼ぶまでの時間[msec](その間にJobが来ればJobが先)
+		 */
+		long idle(PcdSession s);
+	}
+
+	/**
+	 * 完了通知
+	 */
+	public interface Callback<T> {
+		public void completed(T result);
+		public void failed(Exception ex);
+	}
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final String TAG = "PcdWorker";
+
+	private final PcdSession mSession;
+	private final BlockingQueue<FutureTask<?>> mQueue = new LinkedBlockingQueue<FutureTask<?>>();
+	private Thread mThread = null;
+	private volatile boolean mRunning = false;
+	/// mRunningの変更とキューへの追加を排他する
+	private final Object mSubmitLock = new Object();
+	private volatile IdleTask mIdle = null;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	session		このワーカーが扱うセッション
+	 */
+	public PcdWorker(PcdSession session) {
+		mSession = session;
+	}
+
+	/**
+	 * デフォルトセッションを扱うワーカー
+	 */
+	public PcdWorker() {
+		this(NfcPcd.getSession());
+	}
+
+	public PcdSession getSession() {
+		return mSession;
+	}
+
+	/**
+	 * ワーカースレッド開始
+	 */
+	public synchronized void start() {
+		if((mThread != null) && mThread.isAlive()) {
+			//停止が終わっていないスレッドがある
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "NfcPcdWorker");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * ワーカースレッド停止
+	 *
+	 * 実行中のコマンドが終わるのを待ち(割り込みはしない)、未実行のコマンドはキャンセルする。
+	 * 待っている間に呼び出し元が割り込まれたら、スレッドの終了を待たずに戻る。
+	 */
+	public synchronized void shutdown() {
+		if(mThread == null) {
+			return;
+		}
+		synchronized(mSubmitLock) {
+			//これ以降のsubmit()はキャンセルされる
+			mRunning = false;
+		}
+		wakeUp();
+		try {
+			mThread.join();
+			mThread = null;
+		} catch (InterruptedException e) {
+			//スレッドはまだ動いているので参照は残す(残りのコマンドはスレッドもキャンセルする)
+			Thread.currentThread().interrupt();
+		}
+
+		FutureTask<?> task;
+		while((task = mQueue.poll()) != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * ワーカースレッドかどうか
+	 */
+	public boolean isWorkerThread() {
+		return Thread.currentThread() == mThread;
+	}
+
+	/**
+	 * キューが空いているときの処理の設定
+	 *
+	 * @param[in]	idle		処理(nullで解除)
+	 */
+	void setIdleTask(IdleTask idle) {
+		mIdle = idle;
+		wakeUp();
+	}
+
+	/**
+	 * キューを待っているスレッドを起こす(何もしないタスクを積む)
+	 */
+	private void wakeUp() {
+		mQueue.add(new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, null));
+	}
+
+	private void loop() {
+		long wait = 0;
+		while(mRunning) {
+			FutureTask<?> task;
+			final IdleTask idle = mIdle;
+			try {
+				if(idle == null) {
+					task = mQueue.take();
+				} else {
+					task = mQueue.poll(wait, TimeUnit.MILLISECONDS);
+					if(task == null) {
+						wait = idle.idle(mSession);
+						continue;
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			//積まれているものは続けて実行する(停止中は実行せず、残りはshutdown()でキャンセル)
+			while(task != null) {
+				if(!mRunning) {
+					task.cancel(false);
+					break;
+				}
+				task.run();
+				task = mQueue.poll();
+			}
+		}
+	}
+
+	/**
+	 * コマンド投入
+	 *
+	 * @param[in]	job			ワーカースレッドで実行する処理
+	 * @param[in]	cb			完了通知(null可)
+	 *
+	 * @return		実行結果
+	 */
+	public <T> Future<T> submit(final Job<T> job, final Callback<T> cb) {
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				T result;
+				try {
+					result = job.run(mSession);
+				} catch (Exception ex) {
+					Log.e(TAG, "job fail : " + ex);
+					if(cb != null) {
+						cb.failed(ex);
+					}
+					throw ex;
+				}
+				if(cb != null) {
+					cb.completed(result);
+				}
+				return result;
+			}
+		});
+		synchronized(mSubmitLock) {
+			if(!mRunning) {
+				task.cancel(false);
+				return task;
+			}
+			mQueue.add(task);
+		}
+		return task;
+	}
+
+	/**
+	 * コマンド投入(完了通知なし)
+	 */
+	public <T> Future<T> submit(Job<T> job) {
+		return submit(job, null);
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * [NFC-F]Polling
+	 *
+	 * @see			NfcPcd#pollingF(PcdSession, SysCode)
+	 */
+	public Future<Boolean> pollingF(final SysCode code, Callback<Boolean> cb) {
+		return submit(new Job<Boolean>() {
+			@Override
+			public Boolean run(PcdSession s) {
+				return NfcPcd.pollingF(s, code);
+			}
+		}, cb);
+	}
+
+	/**
+	 * [NFC-A]Polling
+	 *
+	 * @see			NfcPcd#pollingA(PcdSession)
+	 */
+	public Future<Boolean> pollingA(Callback<Boolean> cb) {
+		return submit(new Job<Boolean>() {
+			@Override
+			public Boolean run(PcdSession s) {
+				return NfcPcd.pollingA(s);
+			}
+		}, cb);
+	}
+
+	/**
+	 * read from card
+	 *
+	 * @param[in]	nfc			NfcF, NfcAなど
+	 * @param[out]	buf			read buffer(完了するまで触らないこと)
+	 *
+	 * @see			INfc#read(PcdSession, byte[], int[], int, int[])
+	 */
+	public Future<Boolean> read(final INfc nfc, final byte[] buf,
+				final int[] blockNo, final int blockNum, final int[] opt, Callback<Boolean> cb) {
+		return submit(new Job<Boolean>() {
+			@Override
+			public Boolean run(PcdSession s) {
+				return nfc.read(s, buf, blockNo, blockNum, opt);
+			}
+		}, cb);
+	}
+
+	/**
+	 * write to card
+	 *
+	 * @param[in]	nfc			NfcF, NfcAなど
+	 * @param[in]	buf			write buffer(完了するまで触らないこと)
+	 *
+	 * @see			INfc#write(PcdSession, byte[], int[], int, int[])
+	 */
+	public Future<Boolean> write(final INfc nfc, final byte[] buf,
+				final int[] blockNo, final int blockNum, final int[] opt, Callback<Boolean> cb) {
+		return submit(new Job<Boolean>() {
+			@Override
+			public Boolean run(PcdSession s) {
+				return nfc.write(s, buf, blockNo, blockNum, opt);
+			}
+		}, cb);
+	}
+
+	/**
+	 * CommunicateThruEX
+	 *
+	 * @param[in]	command		送信するコマンド(完了するまで触らないこと)
+	 * @param[in]	commandLen	commandの長さ
+	 *
+	 * @return		レスポンス(失敗時はnull)
+	 */
+	public Future<byte[]> communicateThruEx(final byte[] command, final int commandLen, Callback<byte[]> cb) {
+		return submit(new Job<byte[]>() {
+			@Override
+			public byte[] run(PcdSession s) {
+				ByteBuffer res = NfcPcd.communicateThruExView(s, command, commandLen);
+				if(res == null) {
+					return null;
+				}
+				byte[] ret = new byte[res.remaining()];
+				res.get(ret);
+				return ret;
+			}
+		}, cb);
+	}
+}
@@ -0,0 +1,216 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class		ReplayPort
+ * @brief		記録したフレームの再生
+ *
+ * WireTrace#dump()で書き出した記録を読み込み、PCDの代わりに応答する。
+ * writeは記録された送信フレームと比較し、readは記録された受信フレームを順に返す。
+ * 記録と違う送信をした場合は不一致として数える(再生は続ける)。
+ *
+ * 実時間モードでは、記録時の「送信→受信」の間隔だけ待ってから返す。
+ * 実時間モードでなければ待たずに返すので、ホスト側の処理だけを計測できる。
+ *
+ * @see	PcdReplay
+ */
+public final class ReplayPort implements IPcdPort {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private final long[] mTime;
+	private final byte[] mDir;
+	private final int[] mResult;
+	private final byte[][] mData;
+
+	/// 次のエントリ
+	private int mCursor = 0;
+	private boolean mRealtime = false;
+
+	/// 直前のwriteの実時刻と記録時刻
+	private long mWriteNow = 0;
+	private long mWriteRec = 0;
+
+	/// 記録と違う送受信の数
+	private int mMismatch = 0;
+	/// 読み飛ばしたエントリ数
+	private int mSkipped = 0;
+
+	/// 送信フレームのデコード用
+	private final PcdFrame mFrame = new PcdFrame(PcdFrame.MAX_FRAME);
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	private ReplayPort(int num) {
+		mTime = new long[num];
+		mDir = new byte[num];
+		mResult = new int[num];
+		mData = new byte[num][];
+	}
+
+	/**
+	 * 記録の読み込み
+	 *
+	 * @param[in]	is		WireTrace#dump()で書き出したデータ
+	 * @throws		IOException		形式が違う
+	 */
+	public static ReplayPort load(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		if(dis.readInt() != WireTrace.MAGIC) {
+			throw new IOException("not a trace");
+		}
+		short ver = dis.readShort();
+		if(ver != WireTrace.VERSION) {
+			throw new IOException("unknown version : " + ver);
+		}
+		int num = dis.readInt();
+		if(num < 0) {
+			throw new IOException("bad count : " + num);
+		}
+
+		ReplayPort rp = new ReplayPort(num);
+		for(int i=0; i<num; i++) {
+			rp.mTime[i] = dis.readLong();
+			rp.mDir[i] = dis.readByte();
+			dis.readByte();		//cmd
+			rp.mResult[i] = dis.readInt();
+			rp.mData[i] = new byte[dis.readUnsignedShort()];
+			dis.readFully(rp.mData[i]);
+		}
+		return rp;
+	}
+
+	public static ReplayPort load(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return load(fis);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * 実時間モード
+	 *
+	 * @param[in]	realtime	trueなら記録時の応答時間を再現する
+	 */
+	public void setRealtime(boolean realtime) {
+		mRealtime = realtime;
+	}
+
+	/**
+	 * 先頭に戻す
+	 */
+	public void rewind() {
+		mCursor = 0;
+		mMismatch = 0;
+		mSkipped = 0;
+	}
+
+	/**
+	 * 記録されたフレーム数
+	 */
+	public int size() {
+		return mTime.length;
+	}
+
+	/**
+	 * 記録と違う送受信の数
+	 */
+	public int getMismatchCount() {
+		return mMismatch;
+	}
+
+	/**
+	 * 読み飛ばしたエントリ数
+	 */
+	public int getSkippedCount() {
+		return mSkipped;
+	}
+
+	/**
+	 * 次に送るコマンドの取り出し
+	 *
+	 * 現在位置以降で最初の(ACK以外の)送信フレームを探し、データ部(D4 ...)を返す。
+	 * 位置はそのフレームの直前に合わせるので、続けてsendCmd()すると記録どおりに応答する。
+	 * 間にあるエントリは読み飛ばしとして数える。
+	 *
+	 * @param[out]	cmd		データ部(#PcdFrame.MAX_DATA以上)
+	 * @return		データ長(残っていなければ-1)
+	 */
+	int nextCommand(byte[] cmd) {
+		for(int i=mCursor; i<mTime.length; i++) {
+			final byte[] data = mData[i];
+			if((mDir[i] != WireTrace.DIR_OUT) || PcdFrame.isAck(data, 0, data.length)) {
+				continue;
+			}
+			System.arraycopy(data, 0, mFrame.buf, 0, data.length);
+			int len = mFrame.decode(data.length);
+			if(len <= 0) {
+				//上書きされて残っていない
+				continue;
+			}
+			System.arraycopy(mFrame.buf, PcdFrame.POS_CMD, cmd, 0, len);
+			mSkipped += i - mCursor;
+			mCursor = i;
+			return len;
+		}
+		mSkipped += mTime.length - mCursor;
+		mCursor = mTime.length;
+		return -1;
+	}
+
+	@Override
+	public int write(byte[] data, int len, int timeout) {
+		if((mCursor >= mTime.length) || (mDir[mCursor] != WireTrace.DIR_OUT)) {
+			mMismatch++;
+			return len;
+		}
+		final int i = mCursor++;
+		final byte[] rec = mData[i];
+		if((rec.length != len) || !NfcPcd.MemCmp(rec, data, len, 0, 0)) {
+			mMismatch++;
+		}
+		mWriteNow = System.nanoTime();
+		mWriteRec = mTime[i];
+		return mResult[i];
+	}
+
+	@Override
+	public int read(byte[] data, int len, int timeout) {
+		if((mCursor >= mTime.length) || (mDir[mCursor] != WireTrace.DIR_IN)) {
+			mMismatch++;
+			return -1;
+		}
+		final int i = mCursor++;
+		if(mRealtime) {
+			final long due = mWriteNow + (mTime[i] - mWriteRec);
+			long wait;
+			while((wait = due - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		if(mResult[i] <= 0) {
+			return mResult[i];
+		}
+		final int n = Math.min(len, mData[i].length);
+		System.arraycopy(mData[i], 0, data, 0, n);
+		return n;
+	}
+
+	@Override
+	public void close() {
+	}
+}
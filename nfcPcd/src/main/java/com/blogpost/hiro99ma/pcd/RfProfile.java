@@ -0,0 +1,95 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		RfProfile
+ * @brief		RFConfigurationの設定一式
+ *
+ * RF通信のタイムアウト、リトライ回数、ウェイト時間をまとめたもの。
+ * NfcPcd#setRfProfile()で切り替えると、PCDに設定済みの値と違う項目だけを送信する。
+ */
+public final class RfProfile {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/**
+	 * FeliCa向け(初期設定)
+	 *
+	 * FeliCaはCommunicateThruEXで個別にタイムアウトを指定するので、RF通信のT/Oは無し。
+	 */
+	public static final RfProfile FELICA_GATE = new RfProfile("felica-gate",
+			0x00, 0x00,
+			0x00, 0x00, 0x00,
+			0xb7);
+
+	/**
+	 * MIFARE読み出し向け
+	 *
+	 * InDataExchangeが応答のないカードで止まらないよう、非DEP通信時のT/Oを102.4msにする。
+	 * 捕捉もリトライを1回入れる。
+	 */
+	public static final RfProfile MIFARE_DUMP = new RfProfile("mifare-dump",
+			0x00, 0x0b,
+			0x00, 0x00, 0x01,
+			0xb7);
+
+	/// NfcPcd#open()で設定する値
+	public static final RfProfile DEFAULT = FELICA_GATE;
+
+
+	///////////////////////////
+	// package fields
+	///////////////////////////
+
+	/// RFConfigurationの項目
+	static final byte ITEM_FIELD = 0x01;			///< RF field
+	static final byte ITEM_TIMEOUT = 0x02;			///< T/O
+	static final byte ITEM_RETRY = 0x05;			///< Retry
+	static final byte ITEM_WAIT = (byte)0x81;		///< RF ONからの追加ウェイト
+
+	/// 項目ごとのRFConfigurationデータ(項目番号 + 設定値)
+	final byte[][] items;
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private final String mName;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	name			名前(ログ用)
+	 * @param[in]	atrTimeout		ATR_RESのT/O(0x00:無し)
+	 * @param[in]	nonDepTimeout	非DEP通信時のT/O(0x00:無し)
+	 * @param[in]	atrRetry		ATR_REQ/RESのリトライ回数(0xff:無限)
+	 * @param[in]	pslRetry		PSL_REQ/RESのリトライ回数(0xff:無限)
+	 * @param[in]	passiveRetry	InListPassiveTargetのリトライ回数(0xff:無限)
+	 * @param[in]	wait			RF出力ONからTargetID取得コマンド送信までの追加ウェイト
+	 */
+	public RfProfile(String name,
+				int atrTimeout, int nonDepTimeout,
+				int atrRetry, int pslRetry, int passiveRetry,
+				int wait) {
+		mName = name;
+		items = new byte[][] {
+			{ ITEM_TIMEOUT, 0x00, (byte)atrTimeout, (byte)nonDepTimeout },
+			{ ITEM_RETRY, (byte)atrRetry, (byte)pslRetry, (byte)passiveRetry },
+			{ ITEM_WAIT, (byte)wait },
+		};
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String toString() {
+		return mName;
+	}
+}
@@ -0,0 +1,91 @@
+package com.blogpost.hiro99ma.pcd;
+
+/**
+ * @class		RfState
+ * @brief		PCDに設定済みのRFConfiguration
+ *
+ * 項目ごとに最後に設定できた値を覚えておき、同じ値の再送を省く。
+ * 分からなくなった項目(失敗した、PCDがリセットされた等)は忘れて、次は必ず送る。
+ */
+final class RfState {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	/// [項目番号] 設定値
+	private final byte[][] mValue = new byte[256][];
+	/// [項目番号] 設定値が分かっているか(忘れてもmValueは使い回す)
+	private final boolean[] mKnown = new boolean[256];
+
+	/// 送信した数
+	private long mSent = 0;
+	/// 省いた数
+	private long mSkipped = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * 設定済みかどうか
+	 *
+	 * @param[in]	cmd		RFConfigurationデータ(項目番号 + 設定値)
+	 * @param[in]	len		cmdの長さ
+	 */
+	boolean isApplied(byte[] cmd, int len) {
+		final int item = cmd[0] & 0xff;
+		final byte[] v = mValue[item];
+		if(!mKnown[item] || (v.length != len - 1)) {
+			return false;
+		}
+		for(int i=0; i<v.length; i++) {
+			if(v[i] != cmd[1 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 設定できた値を覚える
+	 */
+	void applied(byte[] cmd, int len) {
+		final int item = cmd[0] & 0xff;
+		if((mValue[item] == null) || (mValue[item].length != len - 1)) {
+			mValue[item] = new byte[len - 1];
+		}
+		System.arraycopy(cmd, 1, mValue[item], 0, len - 1);
+		mKnown[item] = true;
+		mSent++;
+	}
+
+	void skipped() {
+		mSkipped++;
+	}
+
+	/**
+	 * 項目を忘れる
+	 */
+	void forget(byte item) {
+		mKnown[item & 0xff] = false;
+	}
+
+	/**
+	 * すべて忘れる
+	 */
+	void clear() {
+		for(int i=0; i<mKnown.length; i++) {
+			mKnown[i] = false;
+		}
+	}
+
+	long getSentCount() {
+		return mSent;
+	}
+
+	long getSkippedCount() {
+		return mSkipped;
+	}
+}
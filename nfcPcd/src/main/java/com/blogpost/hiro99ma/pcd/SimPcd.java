@@ -0,0 +1,767 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class		SimPcd
+ * @brief		シミュレーションPCD
+ *
+ * RC-S370相当のACK/レスポンスフレームをプロセス内で返す通信路。
+ * 実機なしでsendCmd/recvRespの経路を動かしたり、負荷をかけたりするためのもの。
+ * 同じコマンド列に対しては常に同じ応答を返す。
+ */
+public final class SimPcd implements IPcdPort {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	/**
+	 * @brief		故障注入
+	 */
+	public enum Fault {
+		NONE,
+		NO_ACK,				///< コマンドを無視する(ACKもレスポンスも返さない)
+		BAD_DCS,			///< レスポンスのDCSを壊す
+		NOISE,				///< ACKの前にゴミを付ける
+		ERROR_FRAME,		///< エラーフレームを返す
+		LATE_RESPONSE,		///< タイムアウト後、中断されてからレスポンスを返す
+	}
+
+	/**
+	 * @brief		シミュレーションカード
+	 */
+	public static final class Card {
+		final boolean mFelica;
+		final byte[] mId;
+		final byte[] mPmm = new byte[8];
+		final int mSysCode;
+		final short mSensRes;
+		final byte mSelRes;
+		boolean m424k = true;
+		/// 1コマンドあたりのブロック数の上限
+		int mMaxRead = 15;
+		int mMaxWrite = 13;
+		/// key : サービス番号(サービスコード >> 6)
+		final HashMap<Integer, byte[]> mServices = new HashMap<Integer, byte[]>();
+		/// 追加したサービスコード(Search Service Code用、追加順)
+		final ArrayList<Integer> mSvCodes = new ArrayList<Integer>();
+		/// 追加したシステムコード(Request System Code用)
+		final ArrayList<Integer> mSystems = new ArrayList<Integer>();
+
+		private Card(boolean felica, byte[] id, int sysCode, short sensRes, byte selRes) {
+			mFelica = felica;
+			mId = id.clone();
+			mSysCode = sysCode;
+			mSensRes = sensRes;
+			mSelRes = selRes;
+		}
+
+		/**
+		 * FeliCaカード
+		 *
+		 * @param[in]	idm			IDm(8byte)
+		 * @param[in]	pmm			PMm(8byte)
+		 * @param[in]	sysCode		システムコード
+		 */
+		public static Card felica(byte[] idm, byte[] pmm, int sysCode) {
+			Card card = new Card(true, idm, sysCode, (short)0, (byte)0);
+			NfcPcd.MemCpy(card.mPmm, pmm, card.mPmm.length, 0, 0);
+			return card;
+		}
+
+		/**
+		 * NFC-Aカード
+		 *
+		 * @param[in]	uid			UID(4 or 7byte)
+		 * @param[in]	sensRes		SENS_RES
+		 * @param[in]	selRes		SEL_RES
+		 */
+		public static Card nfcA(byte[] uid, short sensRes, byte selRes) {
+			return new Card(false, uid, 0, sensRes, selRes);
+		}
+
+		/**
+		 * 424kbps対応の有無
+		 */
+		public Card set424k(boolean support) {
+			m424k = support;
+			return this;
+		}
+
+		/**
+		 * 1コマンドあたりのブロック数の上限
+		 */
+		public Card setMaxBlocks(int read, int write) {
+			mMaxRead = read;
+			mMaxWrite = write;
+			return this;
+		}
+
+		/**
+		 * サービス追加(RO/RWは同じサービス番号で同じ領域を指す)
+		 *
+		 * @param[in]	svCode		サービスコード
+		 * @param[in]	blockNum	ブロック数
+		 */
+		public Card addService(int svCode, int blockNum) {
+			mServices.put(svCode >> 6, new byte[blockNum * NfcPcd.SIZE_BLOCK]);
+			mSvCodes.add(svCode);
+			return this;
+		}
+
+		/**
+		 * システム追加
+		 *
+		 * Request System Codeで返し、Pollingにも応答する(IDmとサービスは共通)。
+		 */
+		public Card addSystem(int sysCode) {
+			mSystems.add(sysCode);
+			return this;
+		}
+
+		/**
+		 * Pollingに応答するシステム
+		 *
+		 * @return		システムコード(-1:なし)
+		 */
+		int findSystem(byte h, byte l) {
+			if(matchSysCode(mSysCode, h, l)) {
+				return mSysCode;
+			}
+			for(int sys : mSystems) {
+				if(matchSysCode(sys, h, l)) {
+					return sys;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * ブロックデータ取得(シミュレーション側の内容確認用)
+		 */
+		public byte[] blocks(int svCode) {
+			return mServices.get(svCode >> 6);
+		}
+	}
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private static final byte[] ACK = { 0x00, 0x00, (byte)0xff, 0x00, (byte)0xff, 0x00 };
+
+	/// FeliCa status flag2
+	private static final byte ST_SVCODE = (byte)0xa6;		///< サービスコード不正
+	private static final byte ST_BLOCK = (byte)0xa8;		///< ブロック番号不正
+	private static final byte ST_BLKNUM = (byte)0xa2;		///< ブロック数不正
+
+	/// 読み取り範囲にあるカード
+	private volatile Card[] mCards = new Card[0];
+	/// 直前のInListPassiveTargetで捕捉されたカード(Tg - 1)
+	private final Card[] mListed = new Card[NfcPcd.MAX_TG];
+	private int mListedNum = 0;
+	private final long[] mLatencyNs = new long[256];
+
+	private boolean mAckPending = false;
+	private final byte[] mResp = new byte[300];
+	private int mRespLen = 0;
+	private int mRespCmd = 0;
+	/// レスポンスを返せる時刻[nsec]
+	private long mRespDue = 0;
+	/// RFのタイムアウト待ち[nsec]
+	private long mRfWaitNs = 0;
+	private final byte[] mPayload = new byte[300];
+	private final byte[] mOut = new byte[300];
+	private final int[] mElem = new int[2];
+	private final int[] mSvList = new int[16];
+
+	private volatile long mCommandCount = 0;
+
+	private volatile Fault mFault = Fault.NONE;
+	private volatile int mFaultCount = 0;
+	private boolean mNoise = false;
+	private boolean mLate = false;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * 読み取り範囲にカードを置く(nullで取り除く)
+	 */
+	public void setCard(Card card) {
+		mCards = (card == null) ? new Card[0] : new Card[]{ card };
+	}
+
+	/**
+	 * 読み取り範囲にカードを重ねる
+	 */
+	public synchronized void addCard(Card card) {
+		Card[] cards = new Card[mCards.length + 1];
+		System.arraycopy(mCards, 0, cards, 0, mCards.length);
+		cards[mCards.length] = card;
+		mCards = cards;
+	}
+
+	public Card getCard() {
+		final Card[] cards = mCards;
+		return (cards.length == 0) ? null : cards[0];
+	}
+
+	/**
+	 * コマンドごとの応答遅延
+	 *
+	 * @param[in]	cmd			コマンドコード(0x4a, 0xa0など)
+	 * @param[in]	nanos		レスポンスを返すまでの時間[nsec]
+	 */
+	public void setLatency(int cmd, long nanos) {
+		mLatencyNs[cmd & 0xff] = nanos;
+	}
+
+	/**
+	 * 全コマンドの応答遅延
+	 *
+	 * @param[in]	nanos		レスポンスを返すまでの時間[nsec]
+	 */
+	public void setLatency(long nanos) {
+		for(int i=0; i<mLatencyNs.length; i++) {
+			mLatencyNs[i] = nanos;
+		}
+	}
+
+	/**
+	 * 故障注入
+	 *
+	 * @param[in]	fault		故障の種類
+	 * @param[in]	count		故障させるコマンド数
+	 */
+	public void injectFault(Fault fault, int count) {
+		mFaultCount = count;
+		mFault = fault;
+	}
+
+	/**
+	 * 処理したコマンド数
+	 */
+	public long getCommandCount() {
+		return mCommandCount;
+	}
+
+	@Override
+	public int write(byte[] data, int len, int timeout) {
+		if((len == ACK.length) && NfcPcd.MemCmp(data, ACK, ACK.length, 0, 0)) {
+			//中断
+			mAckPending = false;
+			mNoise = false;
+			if(mLate) {
+				//中断が間に合わず、レスポンスが出てくる
+				mLate = false;
+			} else {
+				mRespLen = 0;
+			}
+			return len;
+		}
+		if((len < 8) || (data[0] != 0x00) || (data[1] != 0x00) || (data[2] != (byte)0xff)) {
+			return len;
+		}
+		int plen;
+		int pos;
+		if((data[3] == (byte)0xff) && (data[4] == (byte)0xff)) {
+			// extend frame
+			plen = ((data[5] & 0xff) << 8) | (data[6] & 0xff);
+			pos = 8;
+			if(((data[5] + data[6] + data[7]) & 0xff) != 0) {
+				return len;
+			}
+		} else {
+			plen = data[3] & 0xff;
+			pos = 5;
+			if(((data[3] + data[4]) & 0xff) != 0) {
+				return len;
+			}
+		}
+		if((plen > mPayload.length) || (len < pos + plen + 2)) {
+			//PCDはおかしなフレームを無視する
+			return len;
+		}
+		byte sum = 0;
+		for(int i=0; i<plen; i++) {
+			sum += data[pos + i];
+		}
+		if((byte)(sum + data[pos + plen]) != 0) {
+			return len;
+		}
+		NfcPcd.MemCpy(mPayload, data, plen, 0, pos);
+
+		mCommandCount++;
+		Fault fault = Fault.NONE;
+		if(mFaultCount > 0) {
+			mFaultCount--;
+			fault = mFault;
+		}
+		if(fault == Fault.NO_ACK) {
+			return len;
+		}
+		mAckPending = true;
+		mRespCmd = mPayload[1] & 0xff;
+		mRfWaitNs = 0;
+		execute(mPayload, plen);
+		mRespDue = System.nanoTime() + mLatencyNs[mRespCmd] + mRfWaitNs;
+		switch(fault) {
+		case BAD_DCS:
+			mResp[mRespLen - 2] ^= 0x5a;
+			break;
+		case NOISE:
+			mNoise = true;
+			break;
+		case ERROR_FRAME:
+			mOut[0] = 0x7f;
+			setResponse(mOut, 1);
+			break;
+		case LATE_RESPONSE:
+			mLate = true;
+			break;
+		default:
+			break;
+		}
+		return len;
+	}
+
+	@Override
+	public int read(byte[] data, int len, int timeout) {
+		if(mAckPending) {
+			mAckPending = false;
+			int pos = 0;
+			if(mNoise) {
+				mNoise = false;
+				data[pos++] = 0x55;
+				data[pos++] = (byte)0xaa;
+			}
+			NfcPcd.MemCpy(data, ACK, ACK.length, pos, 0);
+			return pos + ACK.length;
+		}
+		if((mRespLen == 0) || mLate) {
+			//タイムアウト扱い
+			return -1;
+		}
+		long wait = mRespDue - System.nanoTime();
+		if(wait > timeout * 1000000L) {
+			//USBのタイムアウトが先(レスポンスは残る)
+			LockSupport.parkNanos(timeout * 1000000L);
+			return -1;
+		}
+		if(wait > 0) {
+			LockSupport.parkNanos(wait);
+		}
+		int sz = (mRespLen < len) ? mRespLen : len;
+		NfcPcd.MemCpy(data, mResp, sz, 0, 0);
+		mRespLen = 0;
+		return sz;
+	}
+
+	@Override
+	public void close() {
+		mAckPending = false;
+		mNoise = false;
+		mLate = false;
+		mRespLen = 0;
+	}
+
+	////////////////////////////////////////////////////
+
+	/**
+	 * レスポンスフレーム作成
+	 *
+	 * @param[in]	payload		TFI(0xd5)から始まるデータ
+	 * @param[in]	len			payloadの長さ
+	 */
+	private void setResponse(byte[] payload, int len) {
+		int pos;
+		mResp[0] = 0x00;
+		mResp[1] = 0x00;
+		mResp[2] = (byte)0xff;
+		if(len > 255) {
+			// extend frame
+			mResp[3] = (byte)0xff;
+			mResp[4] = (byte)0xff;
+			mResp[5] = (byte)(len >> 8);
+			mResp[6] = (byte)len;
+			mResp[7] = (byte)(0 - mResp[5] - mResp[6]);
+			pos = 8;
+		} else {
+			mResp[3] = (byte)len;
+			mResp[4] = (byte)(0 - len);
+			pos = 5;
+		}
+		byte sum = 0;
+		for(int i=0; i<len; i++) {
+			mResp[pos + i] = payload[i];
+			sum += payload[i];
+		}
+		mResp[pos + len] = (byte)(0 - sum);
+		mResp[pos + len + 1] = 0x00;
+		mRespLen = pos + len + 2;
+	}
+
+	private void execute(byte[] cmd, int len) {
+		mOut[0] = (byte)0xd5;
+		mOut[1] = (byte)(cmd[1] + 1);
+		int olen = 2;
+		switch(cmd[1]) {
+		case 0x4a:		//InListPassiveTarget
+			olen = inListPassiveTarget(cmd, len);
+			break;
+		case (byte)0xa0:	//CommunicateThruEX
+			olen = communicateThruEx(cmd, len);
+			break;
+		case 0x54:		//InSelect
+			olen = inSelect(cmd, len);
+			break;
+		case 0x40:		//InDataExchange
+		case 0x42:		//InCommunicateThru
+		case 0x46:		//InJumpForPSL
+		case 0x56:		//InJumpForDEP
+			mOut[2] = 0x01;		//timeout
+			olen = 3;
+			break;
+		default:
+			//RFConfiguration, Reset, SetParameters...
+			break;
+		}
+		setResponse(mOut, olen);
+	}
+
+	/**
+	 * InListPassiveTarget
+	 *
+	 * NFC-Aは衝突防止で全カードを見つける。
+	 * FeliCaはカードiがタイムスロット(i % スロット数)で応答し、同じスロットに重なったカードは捕捉できない。
+	 */
+	private int inListPassiveTarget(byte[] cmd, int len) {
+		final Card[] cards = mCards;
+		final int maxTg = cmd[2];
+		mListedNum = 0;
+		int pos = 3;
+		if((cmd[3] == NfcPcd.BR_212K) || (cmd[3] == NfcPcd.BR_424K)) {
+			//cmd[4..8] : 00 SC(2) RC TSN
+			final int slots = (cmd[8] & 0xff) + 1;
+			for(int slot=0; (slot<slots) && (mListedNum<maxTg); slot++) {
+				Card hit = null;
+				int cnt = 0;
+				for(int i=slot; i<cards.length; i+=slots) {
+					Card card = cards[i];
+					if(!card.mFelica || ((cmd[3] == NfcPcd.BR_424K) && !card.m424k)
+					  || (card.findSystem(cmd[5], cmd[6]) < 0)) {
+						continue;
+					}
+					hit = card;
+					cnt++;
+				}
+				if(cnt != 1) {
+					//応答なし、または衝突
+					continue;
+				}
+				boolean rc = (cmd[7] == 0x01) || (cmd[7] == 0x02);
+				mListed[mListedNum++] = hit;
+				mOut[pos++] = (byte)mListedNum;		//Tg
+				mOut[pos++] = (byte)(rc ? 0x14 : 0x12);
+				mOut[pos++] = 0x01;		//Polling Response
+				NfcPcd.MemCpy(mOut, hit.mId, 8, pos, 0);
+				pos += 8;
+				NfcPcd.MemCpy(mOut, hit.mPmm, 8, pos, 0);
+				pos += 8;
+				if(cmd[7] == 0x01) {
+					final int sys = hit.findSystem(cmd[5], cmd[6]);
+					mOut[pos++] = NfcPcd.h16((short)sys);
+					mOut[pos++] = NfcPcd.l16((short)sys);
+				} else if(rc) {
+					//通信性能
+					mOut[pos++] = 0x00;
+					mOut[pos++] = (byte)(hit.m424k ? 0x03 : 0x01);
+				}
+			}
+		} else if(cmd[3] == NfcPcd.BR_106K) {
+			for(int i=0; (i<cards.length) && (mListedNum<maxTg); i++) {
+				Card card = cards[i];
+				if(card.mFelica) {
+					continue;
+				}
+				mListed[mListedNum++] = card;
+				mOut[pos++] = (byte)mListedNum;		//Tg
+				mOut[pos++] = NfcPcd.h16(card.mSensRes);
+				mOut[pos++] = NfcPcd.l16(card.mSensRes);
+				mOut[pos++] = card.mSelRes;
+				mOut[pos++] = (byte)card.mId.length;
+				NfcPcd.MemCpy(mOut, card.mId, card.mId.length, pos, 0);
+				pos += card.mId.length;
+			}
+		}
+		mOut[2] = (byte)mListedNum;		//NbTg
+		return pos;
+	}
+
+	/**
+	 * InSelect
+	 */
+	private int inSelect(byte[] cmd, int len) {
+		final int tg = cmd[2];
+		mOut[2] = ((tg >= 1) && (tg <= mListedNum)) ? (byte)0x00 : (byte)0x27;
+		return 3;
+	}
+
+	private static boolean matchSysCode(int sysCode, byte h, byte l) {
+		boolean hok = (h == (byte)0xff) || (h == NfcPcd.h16((short)sysCode));
+		boolean lok = (l == (byte)0xff) || (l == NfcPcd.l16((short)sysCode));
+		return hok && lok;
+	}
+
+	private int communicateThruEx(byte[] cmd, int len) {
+		//cmd : d4 a0 TO(2) LEN felica...
+		if(len < 6) {
+			return rfTimeout(cmd);
+		}
+		int flen = (cmd[4] & 0xff) - 1;
+		int fpos = 5;
+		final Card card = (flen >= 9) ? findFelica(cmd, fpos + 1) : null;
+		int rlen;
+		if(card != null) {
+			switch(cmd[fpos]) {
+			case 0x06:
+				rlen = readWoEnc(card, cmd, fpos, flen);
+				break;
+			case 0x08:
+				rlen = writeWoEnc(card, cmd, fpos, flen);
+				break;
+			case 0x02:
+				rlen = requestService(card, cmd, fpos);
+				break;
+			case 0x04:
+				rlen = requestResponse(card);
+				break;
+			case 0x0c:
+				rlen = requestSystemCode(card);
+				break;
+			case 0x0a:
+				rlen = searchServiceCode(card, cmd, fpos);
+				break;
+			default:
+				rlen = 0;
+				break;
+			}
+		} else {
+			rlen = 0;
+		}
+		if(rlen == 0) {
+			return rfTimeout(cmd);
+		}
+		mOut[2] = 0x00;
+		mOut[3] = (byte)(rlen + 1);
+		return 4 + rlen;
+	}
+
+	/**
+	 * IDm宛てのFeliCaカード
+	 */
+	private Card findFelica(byte[] cmd, int idmPos) {
+		for(Card card : mCards) {
+			if(card.mFelica && NfcPcd.MemCmp(cmd, card.mId, 8, idmPos, 0)) {
+				return card;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * カードが応答しない
+	 *
+	 * PCDは指定されたタイムアウト(cmd[2-3], LE, 0.5msec単位)だけ待ってからステータスを返す。
+	 */
+	private int rfTimeout(byte[] cmd) {
+		mRfWaitNs = ((cmd[2] & 0xff) | ((cmd[3] & 0xff) << 8)) * 500000L;
+		mOut[2] = 0x01;		//status : timeout
+		return 3;
+	}
+
+	/**
+	 * ブロックリスト解析
+	 *
+	 * @return		次のエレメント位置。[0]サービスインデックス、[1]ブロック番号
+	 */
+	private static int parseBlockElement(byte[] cmd, int pos, int[] elem) {
+		elem[0] = cmd[pos] & 0x0f;
+		if((cmd[pos] & 0x80) != 0) {
+			elem[1] = cmd[pos + 1] & 0xff;
+			return pos + 2;
+		} else {
+			elem[1] = (cmd[pos + 1] & 0xff) | ((cmd[pos + 2] & 0xff) << 8);
+			return pos + 3;
+		}
+	}
+
+	private int parseServices(byte[] cmd, int pos, int svNum) {
+		for(int i=0; i<svNum; i++) {
+			mSvList[i] = (cmd[pos] & 0xff) | ((cmd[pos + 1] & 0xff) << 8);
+			pos += 2;
+		}
+		return pos;
+	}
+
+	/**
+	 * ステータスフラグ(リストの位置によらないエラー)
+	 *
+	 * エラーならステータスフラグ1はFF。
+	 */
+	private int setStatus(Card card, int cmdCode, byte st2) {
+		return setStatusFlags(card, cmdCode, (byte)((st2 == 0x00) ? 0x00 : 0xff), st2);
+	}
+
+	/**
+	 * ステータスフラグ(ブロックリストの位置のエラー)
+	 *
+	 * @param[in]	index		エラーになったブロックリストエレメント(ステータスフラグ1はそのビット)
+	 */
+	private int setStatus(Card card, int cmdCode, int index, byte st2) {
+		return setStatusFlags(card, cmdCode, (byte)(1 << Math.min(index, 7)), st2);
+	}
+
+	private int setStatusFlags(Card card, int cmdCode, byte st1, byte st2) {
+		mOut[4] = (byte)(cmdCode + 1);
+		NfcPcd.MemCpy(mOut, card.mId, 8, 5, 0);
+		mOut[13] = st1;
+		mOut[14] = st2;
+		return 11;
+	}
+
+	/**
+	 * レスポンスコードとIDm
+	 */
+	private int setHeader(Card card, int cmdCode) {
+		mOut[4] = (byte)(cmdCode + 1);
+		NfcPcd.MemCpy(mOut, card.mId, 8, 5, 0);
+		return 4 + 9;
+	}
+
+	private int requestService(Card card, byte[] cmd, int fpos) {
+		final int num = cmd[fpos + 9] & 0xff;
+		int out = setHeader(card, 0x02);
+		mOut[out++] = (byte)num;
+		for(int i=0; i<num; i++) {
+			final int node = (cmd[fpos + 10 + i*2] & 0xff) | ((cmd[fpos + 11 + i*2] & 0xff) << 8);
+			//エリアはルートのみ、サービスは追加したもの
+			final boolean exist = ((node & 0x3e) == 0) ? (node == 0x0000) : card.mServices.containsKey(node >> 6);
+			final int keyVer = exist ? 0x0000 : 0xffff;
+			mOut[out++] = (byte)keyVer;
+			mOut[out++] = (byte)(keyVer >> 8);
+		}
+		return out - 4;
+	}
+
+	private int requestResponse(Card card) {
+		int out = setHeader(card, 0x04);
+		mOut[out++] = 0x00;		//mode0
+		return out - 4;
+	}
+
+	private int requestSystemCode(Card card) {
+		int out = setHeader(card, 0x0c);
+		mOut[out++] = (byte)(1 + card.mSystems.size());
+		mOut[out++] = NfcPcd.h16((short)card.mSysCode);
+		mOut[out++] = NfcPcd.l16((short)card.mSysCode);
+		for(int sys : card.mSystems) {
+			mOut[out++] = NfcPcd.h16((short)sys);
+			mOut[out++] = NfcPcd.l16((short)sys);
+		}
+		return out - 4;
+	}
+
+	private int searchServiceCode(Card card, byte[] cmd, int fpos) {
+		final int index = (cmd[fpos + 9] & 0xff) | ((cmd[fpos + 10] & 0xff) << 8);
+		int out = setHeader(card, 0x0a);
+		if(index == 0) {
+			//ルートエリア
+			mOut[out++] = 0x00;
+			mOut[out++] = 0x00;
+			mOut[out++] = (byte)0xfe;
+			mOut[out++] = (byte)0xff;
+		} else {
+			final int code = (index <= card.mSvCodes.size()) ? card.mSvCodes.get(index - 1) : 0xffff;
+			mOut[out++] = (byte)code;
+			mOut[out++] = (byte)(code >> 8);
+		}
+		return out - 4;
+	}
+
+	private int readWoEnc(Card card, byte[] cmd, int fpos, int flen) {
+		int pos = fpos + 9;
+		int svNum = cmd[pos++] & 0xff;
+		if((svNum < 1) || (svNum > mSvList.length)) {
+			return setStatus(card, 0x06, ST_SVCODE);
+		}
+		pos = parseServices(cmd, pos, svNum);
+		int blkNum = cmd[pos++] & 0xff;
+		if((blkNum < 1) || (blkNum > card.mMaxRead)) {
+			return setStatus(card, 0x06, ST_BLKNUM);
+		}
+		int out = 4 + 12;
+		for(int i=0; i<blkNum; i++) {
+			pos = parseBlockElement(cmd, pos, mElem);
+			if(mElem[0] >= svNum) {
+				return setStatus(card, 0x06, i, ST_SVCODE);
+			}
+			byte[] area = card.mServices.get(mSvList[mElem[0]] >> 6);
+			if(area == null) {
+				return setStatus(card, 0x06, i, ST_SVCODE);
+			}
+			int ofs = mElem[1] * NfcPcd.SIZE_BLOCK;
+			if(ofs + NfcPcd.SIZE_BLOCK > area.length) {
+				return setStatus(card, 0x06, i, ST_BLOCK);
+			}
+			NfcPcd.MemCpy(mOut, area, NfcPcd.SIZE_BLOCK, out, ofs);
+			out += NfcPcd.SIZE_BLOCK;
+		}
+		setStatus(card, 0x06, (byte)0x00);
+		mOut[15] = (byte)blkNum;
+		return out - 4;
+	}
+
+	private int writeWoEnc(Card card, byte[] cmd, int fpos, int flen) {
+		int pos = fpos + 9;
+		int svNum = cmd[pos++] & 0xff;
+		if((svNum < 1) || (svNum > mSvList.length)) {
+			return setStatus(card, 0x08, ST_SVCODE);
+		}
+		pos = parseServices(cmd, pos, svNum);
+		int blkNum = cmd[pos++] & 0xff;
+		if((blkNum < 1) || (blkNum > card.mMaxWrite)) {
+			return setStatus(card, 0x08, ST_BLKNUM);
+		}
+		int data = pos;
+		//データ位置を求める
+		for(int i=0; i<blkNum; i++) {
+			data = parseBlockElement(cmd, data, mElem);
+		}
+		for(int i=0; i<blkNum; i++) {
+			pos = parseBlockElement(cmd, pos, mElem);
+			if(mElem[0] >= svNum) {
+				return setStatus(card, 0x08, i, ST_SVCODE);
+			}
+			int svCode = mSvList[mElem[0]];
+			byte[] area = card.mServices.get(svCode >> 6);
+			if((area == null) || ((svCode & 0x02) != 0)) {
+				//read only
+				return setStatus(card, 0x08, i, ST_SVCODE);
+			}
+			int ofs = mElem[1] * NfcPcd.SIZE_BLOCK;
+			if(ofs + NfcPcd.SIZE_BLOCK > area.length) {
+				return setStatus(card, 0x08, i, ST_BLOCK);
+			}
+			NfcPcd.MemCpy(area, cmd, NfcPcd.SIZE_BLOCK, ofs, data + i * NfcPcd.SIZE_BLOCK);
+		}
+		return setStatus(card, 0x08, (byte)0x00);
+	}
+}
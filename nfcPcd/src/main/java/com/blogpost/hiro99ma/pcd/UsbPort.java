@@ -0,0 +1,82 @@
+package com.blogpost.hiro99ma.pcd;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+/**
+ * @class		UsbPort
+ * @brief		USBバルク転送によるPCD通信路
+ *
+ * Android USB Host APIでPaSoRi(RC-S370)と通信する。
+ */
+public final class UsbPort implements IPcdPort {
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private UsbDeviceConnection mDeviceConnection;
+	private UsbInterface mInterface;
+	private UsbEndpoint mEndpointOut;
+	private UsbEndpoint mEndpointIn;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	connection		claim済みのコネクション
+	 * @param[in]	intf			claim済みのインターフェース
+	 */
+	public UsbPort(UsbDeviceConnection connection, UsbInterface intf) {
+		mDeviceConnection = connection;
+		mInterface = intf;
+		findEndPoint(intf);
+	}
+
+	private void findEndPoint(UsbInterface intf) {
+		UsbEndpoint epOut = null;
+		UsbEndpoint epIn = null;
+		// look for our bulk end points
+		for (int i = 0; i < intf.getEndpointCount(); i++) {
+			UsbEndpoint ep = intf.getEndpoint(i);
+			if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+				if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+					epOut = ep;
+				} else {
+					epIn = ep;
+				}
+			}
+		}
+		if (epOut == null || epIn == null) {
+			throw new IllegalArgumentException("not all endpoints found");
+		}
+		mEndpointOut = epOut;
+		mEndpointIn = epIn;
+	}
+
+	@Override
+	public int write(byte[] data, int len, int timeout) {
+		return mDeviceConnection.bulkTransfer(mEndpointOut, data, len, timeout);
+	}
+
+	@Override
+	public int read(byte[] data, int len, int timeout) {
+		return mDeviceConnection.bulkTransfer(mEndpointIn, data, len, timeout);
+	}
+
+	@Override
+	public void close() {
+		if (mDeviceConnection != null) {
+			if (mInterface != null) {
+				mDeviceConnection.releaseInterface(mInterface);
+				mInterface = null;
+			}
+			mDeviceConnection.close();
+			mDeviceConnection = null;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package com.blogpost.hiro99ma.pcd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @class		WireTrace
+ * @brief		PCDとの送受信フレームの記録
+ *
+ * 送受信したフレームを、時刻(System.nanoTime())とコマンドコードを付けてリングバッファに残す。
+ * バッファは最初に確保するだけなので、常に有効にしておいてもほとんど負荷にならない。
+ * 古いものから上書きされ、必要なときに#dump()でバイナリファイルに書き出す。
+ *
+ * PcdSession#setTrace()で設定すると、ACKや読み捨てを含めすべての送受信が記録される。
+ * #setCapture()で上書きしないようにすると、最初からの完全な記録になる(ReplayPortで再生できる)。
+ *
+ * ファイル形式(ビッグエンディアン)
+ * @code
+ * header : "PCDT"(4) version(2) count(4)
+ * entry  : time(8) dir(1) cmd(1) result(4) len(2) data(len)
+ * @endcode
+ * resultはwrite/readの戻り値(負値はエラー)。
+ * lenはdataの長さで、上書きされてデータが残っていない場合は0になる。
+ */
+public final class WireTrace {
+
+	///////////////////////////
+	// public fields
+	///////////////////////////
+
+	public static final byte DIR_OUT = 0;		///< Host → PCD
+	public static final byte DIR_IN = 1;		///< PCD → Host
+
+	public static final int DEFAULT_ENTRIES = 1024;
+	public static final int DEFAULT_ARENA = 64 * 1024;
+
+	static final int MAGIC = 0x50434454;		//"PCDT"
+	static final short VERSION = 1;
+
+
+	///////////////////////////
+	// private fields
+	///////////////////////////
+
+	private final long[] mTime;
+	private final byte[] mDir;
+	private final byte[] mCmd;
+	private final int[] mResult;
+	private final int[] mLen;
+	/// arena上の位置(通算)
+	private final long[] mPos;
+
+	private final byte[] mArena;
+	private long mArenaPos = 0;
+
+	/// 次に書くエントリ
+	private int mHead = 0;
+	/// 記録した総数
+	private long mCount = 0;
+	/// 最後に送信したコマンド(INに付ける)
+	private byte mLastCmd = 0;
+
+	private volatile boolean mEnabled = true;
+	/// 一杯になったら記録をやめる
+	private boolean mCapture = false;
+	/// 記録できなかったフレーム数
+	private long mDropped = 0;
+
+
+	///////////////////////////
+	// methods
+	///////////////////////////
+
+	/**
+	 * @param[in]	entries		記録するフレーム数
+	 * @param[in]	arenaSize	フレームデータを残すバッファサイズ[byte]
+	 */
+	public WireTrace(int entries, int arenaSize) {
+		mTime = new long[entries];
+		mDir = new byte[entries];
+		mCmd = new byte[entries];
+		mResult = new int[entries];
+		mLen = new int[entries];
+		mPos = new long[entries];
+		mArena = new byte[arenaSize];
+	}
+
+	public WireTrace() {
+		this(DEFAULT_ENTRIES, DEFAULT_ARENA);
+	}
+
+	public void setEnabled(boolean enable) {
+		mEnabled = enable;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * キャプチャモード
+	 *
+	 * trueにすると古いフレームを上書きせず、一杯になった時点で記録をやめる。
+	 * 記録できなかった数は#getDroppedCount()で分かる。
+	 */
+	public synchronized void setCapture(boolean capture) {
+		mCapture = capture;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+
+	/**
+	 * 残っているフレーム数
+	 */
+	public synchronized int size() {
+		return (mCount < mTime.length) ? (int)mCount : mTime.length;
+	}
+
+	/**
+	 * これまでに記録したフレーム数
+	 */
+	public synchronized long getTotalCount() {
+		return mCount;
+	}
+
+	public synchronized void clear() {
+		mHead = 0;
+		mCount = 0;
+		mArenaPos = 0;
+		mDropped = 0;
+	}
+
+	/**
+	 * フレーム記録
+	 *
+	 * @param[in]	dir			#DIR_OUT / #DIR_IN
+	 * @param[in]	data		フレーム
+	 * @param[in]	result		write/readの戻り値(正ならdataの長さ)
+	 */
+	synchronized void record(byte dir, byte[] data, int result) {
+		final int len = (result > 0) ? Math.min(result, mArena.length) : 0;
+		final int idx = mHead;
+		if(mCapture && ((mCount >= mTime.length) || (mArenaPos + len > mArena.length))) {
+			mDropped++;
+			return;
+		}
+
+		byte cmd;
+		if(dir == DIR_OUT) {
+			cmd = commandCode(data, len);
+			mLastCmd = cmd;
+		} else {
+			cmd = mLastCmd;
+		}
+
+		mTime[idx] = System.nanoTime();
+		mDir[idx] = dir;
+		mCmd[idx] = cmd;
+		mResult[idx] = result;
+		mLen[idx] = len;
+		mPos[idx] = mArenaPos;
+
+		int apos = (int)(mArenaPos % mArena.length);
+		int first = Math.min(len, mArena.length - apos);
+		System.arraycopy(data, 0, mArena, apos, first);
+		if(first < len) {
+			System.arraycopy(data, first, mArena, 0, len - first);
+		}
+		mArenaPos += len;
+
+		mHead = (idx + 1 == mTime.length) ? 0 : idx + 1;
+		mCount++;
+	}
+
+	/**
+	 * 送信フレームのコマンドコード(ACKは0x00)
+	 */
+	private static byte commandCode(byte[] data, int len) {
+		if((len >= PcdFrame.POS_EXT_CMD + 2) && (data[PcdFrame.POS_LEN] == (byte)0xff) && (data[PcdFrame.POS_LEN + 1] == (byte)0xff)) {
+			return data[PcdFrame.POS_EXT_CMD + 1];
+		}
+		if(len >= PcdFrame.POS_CMD + 2) {
+			return data[PcdFrame.POS_CMD + 1];
+		}
+		return 0x00;
+	}
+
+	/**
+	 * バイナリ形式で書き出す
+	 *
+	 * 記録中でも呼び出せる(呼び出した時点の内容を書き出す)。
+	 */
+	public void dump(OutputStream os) throws IOException {
+		long[] time;
+		byte[] dir;
+		byte[] cmd;
+		int[] result;
+		int[] len;
+		byte[] data;
+		int[] off;
+		int num;
+
+		//スナップショットを取ってから書き出す
+		synchronized(this) {
+			num = size();
+			time = new long[num];
+			dir = new byte[num];
+			cmd = new byte[num];
+			result = new int[num];
+			len = new int[num];
+			off = new int[num];
+			data = mArena.clone();
+
+			final long oldest = mArenaPos - mArena.length;
+			int idx = (mCount < mTime.length) ? 0 : mHead;
+			for(int i=0; i<num; i++) {
+				time[i] = mTime[idx];
+				dir[i] = mDir[idx];
+				cmd[i] = mCmd[idx];
+				result[i] = mResult[idx];
+				len[i] = (mPos[idx] >= oldest) ? mLen[idx] : 0;
+				off[i] = (int)(mPos[idx] % mArena.length);
+				idx = (idx + 1 == mTime.length) ? 0 : idx + 1;
+			}
+		}
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		dos.writeInt(MAGIC);
+		dos.writeShort(VERSION);
+		dos.writeInt(num);
+		for(int i=0; i<num; i++) {
+			dos.writeLong(time[i]);
+			dos.writeByte(dir[i]);
+			dos.writeByte(cmd[i]);
+			dos.writeInt(result[i]);
+			dos.writeShort(len[i]);
+			int first = Math.min(len[i], data.length - off[i]);
+			dos.write(data, off[i], first);
+			if(first < len[i]) {
+				dos.write(data, 0, len[i] - first);
+			}
+		}
+		dos.flush();
+	}
+
+	/**
+	 * ファイルに書き出す
+	 */
+	public void dump(File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			dump(fos);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * 記録付きの通信路
+	 */
+	IPcdPort wrap(IPcdPort port) {
+		return new TracePort(port);
+	}
+
+	private final class TracePort implements IPcdPort {
+		private final IPcdPort mPort;
+
+		TracePort(IPcdPort port) {
+			mPort = port;
+		}
+
+		@Override
+		public int write(byte[] data, int len, int timeout) {
+			int ret = mPort.write(data, len, timeout);
+			if(mEnabled) {
+				record(DIR_OUT, data, (ret > 0) ? Math.min(ret, len) : ret);
+			}
+			return ret;
+		}
+
+		@Override
+		public int read(byte[] data, int len, int timeout) {
+			int ret = mPort.read(data, len, timeout);
+			if(mEnabled) {
+				record(DIR_IN, data, ret);
+			}
+			return ret;
+		}
+
+		@Override
+		public void close() {
+			mPort.close();
+		}
+	}
+}